@@ -154,6 +154,8 @@ class OaiPmhHarvester {
 
         } catch (any) {
             log.error("bulkstorfel", any)
+        } finally {
+            whelk.flushRemovals()
         }
         log.debug("Done reading stream. Documents still in documentList: ${documentList.size()}")
         log.debug("Imported ${hdata.numberOfDocuments}. Last timestamp: ${hdata.lastRecordDatestamp}. Number deleted: ${hdata.numberOfDocumentsDeleted}")
@@ -237,7 +239,7 @@ class OaiPmhHarvester {
                         "Collection is: ${getCollection(marcRecord)}")
                 try {
                     //TODO: Do not hard code ChangedIn parameter
-                    whelk.remove(systemId, 'voyager', null, getCollection(marcRecord))
+                    whelk.queueRemove(systemId, 'voyager', null, getCollection(marcRecord))
                 } catch (all) {
                     log.error("Could not remove record with ID ${record.identifier}. " +
                             "Located in system as ${systemId}. " +
@@ -56,7 +56,7 @@ class WhelkSaver implements MySQLLoader.LoadHandler {
                             String systemId = l?.id
                             if (systemId) {
                                 log.trace "Removing record with systemID: ${systemId}"
-                                whelk.remove(systemId, sourceSystem, null, record.collection as String)
+                                whelk.queueRemove(systemId, sourceSystem, null, record.collection as String)
                                 importResult.numberOfDocumentsDeleted++
                             }
                         } else {
@@ -85,5 +85,6 @@ class WhelkSaver implements MySQLLoader.LoadHandler {
                     log.error "Error saving to Whelk", any
                 }
             }
+            whelk.flushRemovals()
     }
 }
@@ -137,6 +137,19 @@ class ImporterMain {
         reindex.reindex(collection)
     }
 
+    /**
+     * Typical invocation:
+     * java -jar build/libs/vcopyImporter.jar reindexIntoNewIndex generated_es_config.json
+     */
+    @Command(args='CONFIG_FILE_NAME [EXISTING_INDEX]')
+    void reindexIntoNewIndex(String configFileName, String existingIndex=null) {
+        boolean useCache = true
+        Whelk whelk = Whelk.createLoadedSearchWhelk(props, useCache)
+        Map indexConfig = PostgreSQLComponent.mapper.readValue(new File(configFileName).text, Map)
+        def reindex = new ElasticReindexer(whelk)
+        reindex.reindexIntoNewIndex(indexConfig, existingIndex)
+    }
+
     @Command(args='[FROM]')
     void reindexFrom(String from=null) {
         boolean useCache = true
@@ -3,13 +3,22 @@ package whelk.reindexer
 import groovy.util.logging.Log4j2 as Log
 import whelk.Document
 import whelk.Whelk
-import whelk.util.ThreadPool
 import whelk.util.Tools
 
 @Log
 class ElasticReindexer {
 
-    static final int BATCH_SIZE = 1000
+    // Send all documents, the index may not contain what was last recorded as indexed
+    static final boolean SKIP_UNCHANGED = false
+
+    static final int PARTITION_COUNT = 8
+    static final int SENDER_COUNT = 8
+
+    // Replay changes from a bit before they could have been missed, to allow for clock differences
+    static final long REPLAY_MARGIN_MS = 5 * 60 * 1000
+
+    static final String BUILD_KEY_PREFIX = "reindex-build-"
+
     Whelk whelk
 
     long startTime
@@ -38,73 +47,105 @@ class ElasticReindexer {
      */
     void reindexFrom(long fromUnixTime) {
         try {
-            int counter = 0
-            for (collection in whelk.storage.loadCollections()) {
-                boolean includeDeleted = true
-                List<Document> documents = []
-                for (document in whelk.storage.loadAll(collection, includeDeleted, new Date(fromUnixTime*1000))) {
-
-                        documents.add(document)
-                        counter++
-                        if (counter % BATCH_SIZE == 0) {
-                            double docsPerSec = ((double) counter) / ((double) ((System.currentTimeMillis() - startTime) / 1000))
-                            println("Indexing $docsPerSec documents per second (running average since process start). Total count: $counter.")
-                            whelk.elastic.bulkIndex(documents, collection, whelk)
-                            documents = []
-                        }
-                }
-                if (documents.size() > 0) {
-                    whelk.elastic.bulkIndex(documents, collection, whelk)
-                }
-            }
+            reindexSince(new Date(fromUnixTime*1000))
         } catch (Throwable e) {
             println("Reindex failed with:\n" + e.toString() + "\ncallstack:\n" + e.printStackTrace())
         }
     }
 
-    void reindex(String suppliedCollection) {
-        try {
-            int counter = 0
-            startTime = System.currentTimeMillis()
-            List<String> collections = suppliedCollection ? [suppliedCollection] : whelk.storage.loadCollections()
-            ThreadPool threadPool = new ThreadPool(Runtime.getRuntime().availableProcessors() * 4)
-            collections.each { collection ->
-                List<Document> documents = []
-                for (document in whelk.storage.loadAll(collection)) {
-                    if ( ! document.getDeleted() ) {
-                        documents.add(document)
-                        counter++
-                        if (counter % BATCH_SIZE == 0) {
-                            double docsPerSec = ((double) counter) / ((double) ((System.currentTimeMillis() - startTime) / 1000))
-                            println("Indexing $docsPerSec documents per second (running average since process start). Total count: $counter.")
-                            threadPool.executeOnThread(new Batch(documents, collection), new BatchHandler())
-                            documents = []
-                        }
-                    }
+    /**
+     * Build a new index from scratch while searches go on against the current one, then switch over to it.
+     *
+     * The configured index name (elasticIndex) must be an alias. The new index is loaded without replicas and
+     * refreshing, and changes made while it was being loaded are replayed both before and after the alias is moved.
+     * The old index is left as it is, for removal once the new one is known to be good.
+     *
+     * Pass the name of an index from an interrupted run as existingIndex to resume loading it. If loading fails the
+     * alias is left where it is.
+     */
+    void reindexIntoNewIndex(Map indexConfig, String existingIndex = null) {
+        String alias = whelk.elastic.getIndexName()
+        String newIndex = existingIndex ?: whelk.elastic.createIndexForBuild(indexConfig)
+        long buildStartTime = existingIndex ? loadBuildStartTime(newIndex) : saveBuildStartTime(newIndex)
+        println("Building index $newIndex, to be aliased as $alias.")
+
+        whelk.elastic.defaultIndex = newIndex
+        reindexCollections(null)
+        long replayStartTime = System.currentTimeMillis()
+        reindexSince(new Date(buildStartTime - REPLAY_MARGIN_MS))
+        whelk.elastic.finishIndexBuild(newIndex, indexConfig)
+
+        List<String> previous = whelk.elastic.swapAlias(alias, newIndex)
+        whelk.elastic.defaultIndex = alias
+        // Changes made after the first replay went to the previous index, until the alias was moved
+        reindexSince(new Date(replayStartTime - REPLAY_MARGIN_MS))
+        whelk.storage.saveSettings(BUILD_KEY_PREFIX + newIndex, [:])
+        println("Done! $alias now points at $newIndex instead of $previous.")
+    }
+
+    /**
+     * Record when loading of a new index started, so that a resumed build replays changes from then on.
+     */
+    private long saveBuildStartTime(String index) {
+        long buildStartTime = System.currentTimeMillis()
+        whelk.storage.saveSettings(BUILD_KEY_PREFIX + index, ["startTime": buildStartTime])
+        return buildStartTime
+    }
+
+    private long loadBuildStartTime(String index) {
+        Number buildStartTime = (Number) whelk.storage.loadSettings(BUILD_KEY_PREFIX + index).get("startTime")
+        if (buildStartTime == null) {
+            throw new IllegalStateException("No recorded start of the build of $index, it cannot be resumed.")
+        }
+        println("Resuming build of $index, started ${new Date(buildStartTime.longValue())}.")
+        return buildStartTime.longValue()
+    }
+
+    private void reindexSince(Date since) {
+        int counter = 0
+        startTime = System.currentTimeMillis()
+        for (collection in whelk.storage.loadCollections()) {
+            boolean includeDeleted = true
+            List<Document> documents = []
+            for (document in whelk.storage.loadAll(collection, includeDeleted, since)) {
+                if (document.getDeleted()) {
+                    whelk.elastic.queueRemove(document.getShortId(), collection)
+                    continue
                 }
-                if (documents.size() > 0) {
-                    whelk.elastic.bulkIndex(documents, collection, whelk)
+
+                documents.add(document)
+                counter++
+                if (documents.size() >= whelk.elastic.indexingController.getBatchSize()) {
+                    double docsPerSec = ((double) counter) / ((double) ((System.currentTimeMillis() - startTime) / 1000))
+                    println("Indexing $docsPerSec documents per second (running average since process start). Total count: $counter.")
+                    whelk.elastic.bulkIndex(documents, collection, whelk, SKIP_UNCHANGED)
+                    documents = []
                 }
             }
-            threadPool.joinAll()
-            println("Done! $counter documents reindexed in ${(System.currentTimeMillis() - startTime) / 1000} seconds.")
-        } catch (Throwable e) {
-            println("Reindex failed with:\n" + e.toString() + "\ncallstack:\n" + e.printStackTrace())
+            if (documents.size() > 0) {
+                whelk.elastic.bulkIndex(documents, collection, whelk, SKIP_UNCHANGED)
+            }
         }
+        whelk.elastic.flushRemovals()
     }
 
-    private class Batch {
-        Batch(List<Document> documents, String collection) {
-            this.documents = documents
-            this.collection = collection
+    void reindex(String suppliedCollection) {
+        try {
+            reindexCollections(suppliedCollection)
+        } catch (Throwable e) {
+            println("Reindex failed with:\n" + e.toString() + "\ncallstack:\n" + e.printStackTrace())
         }
-        List<Document> documents
-        String collection
     }
 
-    private class BatchHandler implements ThreadPool.Worker<Batch> {
-        void doWork(Batch batch, int threadIndex) {
-            whelk.elastic.bulkIndex(batch.documents, batch.collection, whelk)
+    private void reindexCollections(String suppliedCollection) {
+        long counter = 0
+        startTime = System.currentTimeMillis()
+        List<String> collections = suppliedCollection ? [suppliedCollection] : whelk.storage.loadCollections()
+        int cores = Runtime.getRuntime().availableProcessors()
+        collections.each { collection ->
+            ReindexPipeline pipeline = new ReindexPipeline(whelk, collection, PARTITION_COUNT, cores, SENDER_COUNT)
+            counter += pipeline.run()
         }
+        println("Done! $counter documents reindexed in ${(System.currentTimeMillis() - startTime) / 1000} seconds.")
     }
 }
@@ -0,0 +1,299 @@
+package whelk.reindexer
+
+import groovy.util.logging.Log4j2 as Log
+import whelk.Document
+import whelk.Whelk
+import whelk.component.ElasticBulkWriter
+import whelk.exception.WhelkIndexException
+
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Reindexes one collection in three stages running concurrently, connected by bounded queues:
+ *
+ * 1. Readers, one per partition (a range of ids) of the collection, loading documents in batches.
+ * 2. Shapers, building the bulk requests (running getShapeForIndex).
+ * 3. Senders, sending the bulk requests to ElasticSearch.
+ *
+ * How far each partition has come is saved as a checkpoint in the settings table (per index and collection), so that
+ * an interrupted reindex can be resumed by running it again.
+ *
+ * If any stage fails, the others are stopped and run() throws, leaving the checkpoint for a later run to resume from.
+ */
+@Log
+class ReindexPipeline {
+
+    static final int QUEUED_BATCHES_PER_WORKER = 2
+    static final long CHECKPOINT_INTERVAL_MS = 30000
+    static final String CHECKPOINT_KEY_PREFIX = "reindex-checkpoint-"
+
+    // How often a stage blocked on a queue checks whether the run has failed
+    static final long QUEUE_POLL_MS = 1000
+
+    private static final Batch END = new Batch()
+
+    Whelk whelk
+    String collection
+    int partitionCount
+    int shaperCount
+    int senderCount
+
+    private List<Partition> partitions
+    private BlockingQueue<Batch> shapeQueue
+    private BlockingQueue<Batch> sendQueue
+    private final AtomicLong indexedCount = new AtomicLong()
+    private long lastCheckpointTime = 0
+    private long startTime
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>()
+
+    ReindexPipeline(Whelk whelk, String collection, int partitionCount, int shaperCount, int senderCount) {
+        this.whelk = whelk
+        this.collection = collection
+        this.partitionCount = partitionCount
+        this.shaperCount = shaperCount
+        this.senderCount = senderCount
+        this.shapeQueue = new ArrayBlockingQueue<Batch>(shaperCount * QUEUED_BATCHES_PER_WORKER)
+        this.sendQueue = new ArrayBlockingQueue<Batch>(senderCount * QUEUED_BATCHES_PER_WORKER)
+    }
+
+    /**
+     * Returns the number of documents indexed.
+     */
+    long run() {
+        startTime = System.currentTimeMillis()
+        partitions = loadCheckpoint()
+        if (partitions) {
+            println("Resuming reindex of $collection from checkpoint.")
+        } else {
+            partitions = createPartitions()
+        }
+
+        List<Partition> remaining = partitions.findAll { !it.done }
+        int threadCount = remaining.size() + shaperCount + senderCount
+        AtomicInteger threadNumber = new AtomicInteger()
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount, { Runnable r ->
+            new Thread(r, "reindex-${collection}-${threadNumber.incrementAndGet()}")
+        } as ThreadFactory)
+        try {
+            List<Future> readers = remaining.collect { Partition partition -> submit(executor) { read(partition) } }
+            List<Future> shapers = (1..shaperCount).collect { submit(executor) { shape() } }
+            List<Future> senders = (1..senderCount).collect { submit(executor) { send() } }
+
+            await(readers)
+            shaperCount.times { put(shapeQueue, END) }
+            await(shapers)
+            senderCount.times { put(sendQueue, END) }
+            await(senders)
+        } catch (Throwable e) {
+            // Rethrow the first failure, not this run being stopped because of it
+            failure.compareAndSet(null, e)
+            throw failure.get()
+        } finally {
+            executor.shutdownNow()
+            executor.awaitTermination(QUEUE_POLL_MS * 10, TimeUnit.MILLISECONDS)
+        }
+
+        // Done, nothing left to resume
+        whelk.storage.saveSettings(checkpointKey(), [:])
+        return indexedCount.get()
+    }
+
+    /**
+     * Run a stage, recording its failure (which stops all the others).
+     */
+    private Future submit(ExecutorService executor, Closure stage) {
+        return executor.submit({
+            try {
+                stage.call()
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e)
+                throw e
+            }
+            return null
+        } as Callable)
+    }
+
+    /**
+     * Wait for all of a stage to finish, rethrowing the first failure of the run if any.
+     */
+    private void await(List<Future> stage) {
+        for (Future future : stage) {
+            try {
+                future.get()
+            } catch (ExecutionException e) {
+                throw failure.get() ?: e.getCause()
+            }
+        }
+    }
+
+    private boolean isFailed() {
+        return failure.get() != null
+    }
+
+    /**
+     * Put a batch on a queue, giving up if the run fails while the queue is full (when the stage taking from it has
+     * died, for instance).
+     */
+    private void put(BlockingQueue<Batch> queue, Batch batch) {
+        while (!queue.offer(batch, QUEUE_POLL_MS, TimeUnit.MILLISECONDS)) {
+            if (isFailed())
+                throw new InterruptedException("Reindex of $collection failed")
+        }
+    }
+
+    private Batch take(BlockingQueue<Batch> queue) {
+        Batch batch
+        while ((batch = queue.poll(QUEUE_POLL_MS, TimeUnit.MILLISECONDS)) == null) {
+            if (isFailed())
+                throw new InterruptedException("Reindex of $collection failed")
+        }
+        return batch
+    }
+
+    private void read(Partition partition) {
+        long sequence = 0
+        List<Document> documents = []
+        for (Document document : whelk.storage.loadAllInIdRange(collection, partition.afterId, partition.toId)) {
+            documents.add(document)
+            if (documents.size() >= whelk.elastic.indexingController.getBatchSize()) {
+                put(shapeQueue, new Batch(partition, sequence++, documents))
+                documents = []
+            }
+        }
+        if (documents) {
+            put(shapeQueue, new Batch(partition, sequence++, documents))
+        }
+        partition.setBatchCount(sequence)
+    }
+
+    private void shape() {
+        Batch batch
+        while ((batch = take(shapeQueue)) != END) {
+            batch.bulkWriter = new ElasticBulkWriter(whelk.elastic, batch.documents, collection, whelk)
+            batch.bulkWriter.prepare()
+            put(sendQueue, batch)
+        }
+    }
+
+    private void send() {
+        Batch batch
+        while ((batch = take(sendQueue)) != END) {
+            List<Document> failed = whelk.elastic.bulkIndex(batch.bulkWriter, whelk)
+            if (failed) {
+                // The checkpoint must not move past them
+                throw new WhelkIndexException("Gave up indexing ${failed.size()} documents of $collection: ${failed*.getShortId()}")
+            }
+            batch.partition.completed(batch)
+            long count = indexedCount.addAndGet(batch.documents.size())
+            double docsPerSec = ((double) count) / ((double) ((System.currentTimeMillis() - startTime) / 1000))
+            println("Indexing $docsPerSec documents per second (running average since reindex start). Total count: $count.")
+            saveCheckpoint(false)
+        }
+        saveCheckpoint(true)
+    }
+
+    private List<Partition> createPartitions() {
+        List<String> bounds = whelk.storage.getIdPartitionBounds(collection, partitionCount)
+        List<Partition> result = []
+        String afterId = ""
+        for (String bound : bounds) {
+            result.add(new Partition(result.size(), afterId, bound))
+            afterId = bound
+        }
+        result.add(new Partition(result.size(), afterId, null))
+        return result
+    }
+
+    private List<Partition> loadCheckpoint() {
+        List checkpoint = (List) whelk.storage.loadSettings(checkpointKey()).get("partitions")
+        return checkpoint?.withIndex()?.collect { Map p, int i ->
+            new Partition(i, (String) p.afterId, (String) p.toId, (boolean) p.done)
+        }
+    }
+
+    private synchronized void saveCheckpoint(boolean force) {
+        long now = System.currentTimeMillis()
+        if (!force && now - lastCheckpointTime < CHECKPOINT_INTERVAL_MS)
+            return
+        lastCheckpointTime = now
+        List checkpoint = partitions.collect { it.toCheckpoint() }
+        whelk.storage.saveSettings(checkpointKey(), ["partitions": checkpoint])
+    }
+
+    private String checkpointKey() {
+        return CHECKPOINT_KEY_PREFIX + whelk.elastic.getIndexName() + "-" + collection
+    }
+
+    /**
+     * A range of ids, afterId < id <= toId (no upper bound if toId is null).
+     *
+     * Batches may be completed out of order, afterId is only moved past batches when all batches before them are
+     * completed too.
+     */
+    private static class Partition {
+        final int index
+        final String toId
+        private String afterId
+        private boolean done
+        private long nextSequence = 0
+        private long batchCount = -1
+        private final Map<Long, String> completedAhead = new HashMap<>()
+
+        Partition(int index, String afterId, String toId, boolean done = false) {
+            this.index = index
+            this.afterId = afterId
+            this.toId = toId
+            this.done = done
+        }
+
+        synchronized String getAfterId() {
+            return afterId
+        }
+
+        synchronized void setBatchCount(long batchCount) {
+            this.batchCount = batchCount
+            done = nextSequence == batchCount
+        }
+
+        synchronized void completed(Batch batch) {
+            completedAhead.put(batch.sequence, batch.lastId)
+            while (completedAhead.containsKey(nextSequence)) {
+                afterId = completedAhead.remove(nextSequence)
+                ++nextSequence
+            }
+            done = nextSequence == batchCount
+        }
+
+        synchronized Map toCheckpoint() {
+            return ["afterId": afterId, "toId": toId, "done": done]
+        }
+    }
+
+    private static class Batch {
+        Partition partition
+        long sequence
+        List<Document> documents
+        String lastId
+        ElasticBulkWriter bulkWriter
+
+        Batch() {}
+
+        Batch(Partition partition, long sequence, List<Document> documents) {
+            this.partition = partition
+            this.sequence = sequence
+            this.documents = documents
+            this.lastId = documents.last().getShortId()
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import spock.lang.Specification
+import whelk.Document
+import whelk.Whelk
+import whelk.component.ElasticBulkWriter
+import whelk.component.ElasticSearch
+import whelk.component.PostgreSQLComponent
+import whelk.exception.WhelkIndexException
+import whelk.reindexer.ElasticReindexer
+import whelk.reindexer.ReindexPipeline
+
+class ElasticReindexerSpec extends Specification {
+
+    static final long BUILD_START = 1500000000000L
+
+    Map<String, Map> settings = [:]
+    List<String> calls = []
+    List<Date> replayedSince = []
+    boolean failSending = false
+    boolean givenUp = false
+
+    List<Document> docs = (1..10).collect {
+        new Document(["@graph": [["@id": "https://libris.kb.se/id$it", "mainEntity": ["@id": "x"]], ["@id": "x"]]])
+    }
+
+    PostgreSQLComponent storage = new PostgreSQLComponent(null, "lddb") {
+        @Override
+        List<String> loadCollections() { ["bib"] }
+
+        @Override
+        List<String> getIdPartitionBounds(String collection, int count) { [] }
+
+        @Override
+        Iterable<Document> loadAllInIdRange(String collection, String afterId, String toId) { docs }
+
+        @Override
+        Iterable<Document> loadAll(String collection, boolean includeDeleted, Date since, Date until) {
+            replayedSince.add(since)
+            return []
+        }
+
+        @Override
+        Map loadSettings(String key) { settings.get(key) ?: [:] }
+
+        @Override
+        void saveSettings(String key, Map value) { settings.put(key, value) }
+    }
+
+    ElasticSearch elastic = new ElasticSearch("localhost", null, "lddb") {
+        @Override
+        String createIndexForBuild(Map indexConfig) {
+            calls.add("create")
+            return "lddb_new"
+        }
+
+        @Override
+        void finishIndexBuild(String index, Map indexConfig) { calls.add("finish " + index) }
+
+        @Override
+        List<String> swapAlias(String alias, String index) {
+            calls.add("swap $alias $index".toString())
+            return ["lddb_old"]
+        }
+
+        @Override
+        Map getShapeForIndex(Document document, Whelk whelk, String collection) { document.data }
+
+        @Override
+        List<Document> bulkIndex(ElasticBulkWriter bulkWriter, Whelk whelk) {
+            if (failSending)
+                throw new WhelkIndexException("Failed to index batch")
+            return givenUp ? bulkWriter.docs : []
+        }
+    }
+
+    ElasticReindexer reindexer
+
+    void setup() {
+        Whelk whelk = new Whelk()
+        whelk.storage = storage
+        whelk.elastic = elastic
+        reindexer = new ElasticReindexer(whelk)
+    }
+
+    def "should leave the alias alone if building the new index fails"() {
+        given:
+        failSending = true
+
+        when:
+        reindexer.reindexIntoNewIndex([:])
+
+        then:
+        thrown(WhelkIndexException)
+        calls == ["create"]
+        settings.get(ElasticReindexer.BUILD_KEY_PREFIX + "lddb_new").get("startTime") != null
+    }
+
+    def "should replay changes from the start of a resumed build"() {
+        given:
+        settings.put(ElasticReindexer.BUILD_KEY_PREFIX + "lddb_resumed", ["startTime": BUILD_START])
+
+        when:
+        reindexer.reindexIntoNewIndex([:], "lddb_resumed")
+
+        then:
+        calls == ["finish lddb_resumed", "swap lddb lddb_resumed"]
+        replayedSince[0] == new Date(BUILD_START - ElasticReindexer.REPLAY_MARGIN_MS)
+        settings.get(ElasticReindexer.BUILD_KEY_PREFIX + "lddb_resumed") == [:]
+        elastic.getIndexName() == "lddb"
+    }
+
+    def "should not resume a build with no recorded start"() {
+        when:
+        reindexer.reindexIntoNewIndex([:], "lddb_unknown")
+
+        then:
+        thrown(IllegalStateException)
+        calls.isEmpty()
+    }
+
+    def "should not record a batch given up on as indexed"() {
+        given:
+        givenUp = true
+
+        when:
+        reindexer.reindexIntoNewIndex([:])
+
+        then:
+        thrown(WhelkIndexException)
+        calls == ["create"]
+        settings.findAll { key, value -> key.startsWith(ReindexPipeline.CHECKPOINT_KEY_PREFIX) }.every { key, value ->
+            value.partitions.every { Map partition -> !partition.done && partition.afterId == "" }
+        }
+    }
+}
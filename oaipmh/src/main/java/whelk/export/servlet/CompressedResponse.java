@@ -0,0 +1,235 @@
+package whelk.export.servlet;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A response sent gzip or deflate compressed, whichever the client accepts (gzip preferred).
+ *
+ * Compression only starts when the body is first written, so a response that ends up without a body (like a 304) or
+ * is sent as an error is sent as it is. The body must be completed with finish().
+ */
+public class CompressedResponse extends HttpServletResponseWrapper
+{
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String encoding;
+    private DeflaterOutputStream compressed = null;
+    private ServletOutputStream outputStream = null;
+    private PrintWriter printWriter = null;
+    private boolean discarded = false;
+
+    private CompressedResponse(HttpServletResponse response, String encoding)
+    {
+        super(response);
+        this.encoding = encoding;
+    }
+
+    /**
+     * Returns 'response' wrapped in a CompressedResponse, or 'response' itself if the client does not accept a
+     * compressed response.
+     */
+    public static HttpServletResponse wrap(HttpServletRequest request, HttpServletResponse response)
+    {
+        // Whether compressed or not, the response depends on what the client accepts
+        response.addHeader("Vary", "Accept-Encoding");
+
+        String encoding = getAcceptedEncoding(request.getHeader("Accept-Encoding"));
+        if (encoding == null)
+            return response;
+        return new CompressedResponse(response, encoding);
+    }
+
+    /**
+     * Write what remains of the compressed body, if any.
+     */
+    public void finish() throws IOException
+    {
+        if (printWriter != null)
+            printWriter.flush();
+        if (compressed != null && !discarded)
+            compressed.finish();
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException
+    {
+        if (printWriter != null)
+            throw new IllegalStateException("getWriter() has already been called.");
+        return getCompressedStream();
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException
+    {
+        if (printWriter == null)
+        {
+            if (outputStream != null)
+                throw new IllegalStateException("getOutputStream() has already been called.");
+            printWriter = new PrintWriter(new OutputStreamWriter(getCompressedStream(), getCharacterEncoding()));
+        }
+        return printWriter;
+    }
+
+    @Override
+    public void setContentLength(int length)
+    {
+        // The length of the compressed body is not known beforehand
+    }
+
+    @Override
+    public void setContentLengthLong(long length)
+    {
+    }
+
+    @Override
+    public void flushBuffer() throws IOException
+    {
+        if (printWriter != null)
+            printWriter.flush();
+        if (compressed != null)
+            compressed.flush();
+        super.flushBuffer();
+    }
+
+    @Override
+    public void sendError(int status) throws IOException
+    {
+        discardCompressed();
+        super.sendError(status);
+    }
+
+    @Override
+    public void sendError(int status, String message) throws IOException
+    {
+        discardCompressed();
+        super.sendError(status, message);
+    }
+
+    private void discardCompressed()
+    {
+        // Anything written so far is thrown away by sendError, the error page is sent as it is
+        discarded = true;
+        if (compressed != null && !isCommitted())
+            setHeader("Content-Encoding", "identity");
+    }
+
+    private ServletOutputStream getCompressedStream() throws IOException
+    {
+        if (discarded)
+            return super.getOutputStream();
+
+        if (outputStream == null)
+        {
+            setHeader("Content-Encoding", encoding);
+            final ServletOutputStream target = super.getOutputStream();
+            if (encoding.equals("gzip"))
+                compressed = new GZIPOutputStream(target, BUFFER_SIZE, true);
+            else
+                compressed = new DeflaterOutputStream(target, new Deflater(), BUFFER_SIZE, true);
+            outputStream = new CompressedOutputStream(compressed, target);
+        }
+        return outputStream;
+    }
+
+    /**
+     * The first of gzip and deflate accepted (with a q-value above 0) in an Accept-Encoding header, or null.
+     */
+    static String getAcceptedEncoding(String acceptEncoding)
+    {
+        if (acceptEncoding == null)
+            return null;
+
+        boolean gzip = false;
+        boolean deflate = false;
+        for (String part : acceptEncoding.split(","))
+        {
+            String[] parameters = part.split(";");
+            String coding = parameters[0].trim().toLowerCase();
+            if (isRejected(parameters))
+                continue;
+            if (coding.equals("gzip") || coding.equals("x-gzip"))
+                gzip = true;
+            else if (coding.equals("deflate"))
+                deflate = true;
+        }
+
+        if (gzip)
+            return "gzip";
+        if (deflate)
+            return "deflate";
+        return null;
+    }
+
+    private static boolean isRejected(String[] parameters)
+    {
+        for (int i = 1; i < parameters.length; ++i)
+        {
+            String parameter = parameters[i].trim();
+            if (parameter.startsWith("q="))
+            {
+                try
+                {
+                    return Double.parseDouble(parameter.substring(2)) <= 0;
+                }
+                catch (NumberFormatException e)
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static class CompressedOutputStream extends ServletOutputStream
+    {
+        private final OutputStream compressed;
+        private final ServletOutputStream target;
+
+        CompressedOutputStream(OutputStream compressed, ServletOutputStream target)
+        {
+            this.compressed = compressed;
+            this.target = target;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            compressed.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            compressed.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            compressed.flush();
+        }
+
+        @Override
+        public boolean isReady()
+        {
+            return target.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener)
+        {
+            target.setWriteListener(writeListener);
+        }
+    }
+}
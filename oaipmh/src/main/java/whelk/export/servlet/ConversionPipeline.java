@@ -0,0 +1,156 @@
+package whelk.export.servlet;
+
+import whelk.Document;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * Converts documents to an XML metadata format in a pool of worker threads shared by all requests.
+ *
+ * Each request (or other user) has its own pipeline, which runs at most maxConcurrent conversions at a time, and
+ * queues the rest. Conversions are handed out as futures, so that a response can be written in the original order
+ * while the conversions further down the list are still running.
+ *
+ * A request that fails (say, because the client went away) should cancel() its pipeline, so that the conversions still
+ * queued are not run for nothing.
+ */
+public class ConversionPipeline
+{
+    private static ExecutorService s_pool = null;
+
+    private final int maxConcurrent;
+    private final BiFunction<Document, String, String> converter;
+    private int running = 0;
+    private boolean cancelled = false;
+    private final Queue<Conversion> waiting = new ArrayDeque<>();
+
+    static void configure(int threadCount)
+    {
+        AtomicInteger threadNumber = new AtomicInteger();
+        s_pool = Executors.newFixedThreadPool(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "oaipmh-conversion-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public ConversionPipeline(int maxConcurrent)
+    {
+        this(maxConcurrent, PayloadCache::convert);
+    }
+
+    ConversionPipeline(int maxConcurrent, BiFunction<Document, String, String> converter)
+    {
+        this.maxConcurrent = maxConcurrent;
+        this.converter = converter;
+    }
+
+    /**
+     * Convert 'document' (see PayloadCache.convert). The result is null if the conversion fails, or is cancelled.
+     */
+    public CompletableFuture<String> submit(Document document, String format)
+    {
+        Conversion conversion = new Conversion(document, format);
+        synchronized (this)
+        {
+            if (cancelled)
+            {
+                conversion.result.complete(null);
+            }
+            else if (running < maxConcurrent)
+            {
+                ++running;
+                s_pool.execute(conversion);
+            }
+            else
+            {
+                waiting.add(conversion);
+            }
+        }
+        return conversion.result;
+    }
+
+    /**
+     * Drop the conversions not yet started, their results are null. Those already running are left to finish.
+     */
+    public void cancel()
+    {
+        List<Conversion> dropped;
+        synchronized (this)
+        {
+            cancelled = true;
+            dropped = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+        for (Conversion conversion : dropped)
+            conversion.result.complete(null);
+    }
+
+    private synchronized void taskDone()
+    {
+        Runnable next = waiting.poll();
+        if (next != null)
+            s_pool.execute(next);
+        else
+            --running;
+    }
+
+    /**
+     * Wait for a conversion. Returns null if it failed, or if the wait was interrupted.
+     */
+    public static String await(CompletableFuture<String> conversion)
+    {
+        try
+        {
+            return conversion.get();
+        }
+        catch (ExecutionException e)
+        {
+            return null;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private class Conversion implements Runnable
+    {
+        private final Document document;
+        private final String format;
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+
+        Conversion(Document document, String format)
+        {
+            this.document = document;
+            this.format = format;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                result.complete(converter.apply(document, format));
+            }
+            catch (Throwable e)
+            {
+                result.complete(null);
+            }
+            finally
+            {
+                taskDone();
+            }
+        }
+    }
+}
@@ -7,6 +7,8 @@ import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
 import java.io.IOException;
 import java.sql.*;
+import java.util.Collections;
+import java.util.StringJoiner;
 
 import io.prometheus.client.Counter;
 
@@ -88,21 +90,116 @@ public class GetRecord
                     return;
                 }
 
-                // Build the xml response feed
-                XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
-                XMLStreamWriter writer = xmlOutputFactory.createXMLStreamWriter(response.getOutputStream());
+                RecordAssembler.Record record = RecordAssembler.readRow(resultSet, true);
+                if (respondNotModified(record, metadataPrefix, withDeletedData, request, response))
+                    return;
+
+                ConversionPipeline pipeline = new ConversionPipeline(OaiPmh.s_conversionsPerRequest);
+                RecordAssembler.assemble(Collections.singletonList(record), metadataPrefix,
+                        metadataPrefix.contains(OaiPmh.FORMAT_EXPANDED_POSTFIX), withDeletedData, pipeline);
+
+                try
+                {
+                    // Build the xml response feed
+                    XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
+                    XMLStreamWriter writer = xmlOutputFactory.createXMLStreamWriter(response.getOutputStream());
 
-                ResponseCommon.writeOaiPmhHeader(writer, request, true);
-                writer.writeStartElement("GetRecord");
+                    ResponseCommon.writeOaiPmhHeader(writer, request, true);
+                    writer.writeStartElement("GetRecord");
 
-                ResponseCommon.emitRecord(resultSet, writer, metadataPrefix, false,
-                        metadataPrefix.contains(OaiPmh.FORMAT_EXPANDED_POSTFIX), withDeletedData);
+                    ResponseCommon.emitRecord(record, writer, metadataPrefix, withDeletedData);
 
-                writer.writeEndElement(); // GetRecord
-                ResponseCommon.writeOaiPmhClose(writer, request);
+                    writer.writeEndElement(); // GetRecord
+                    ResponseCommon.writeOaiPmhClose(writer, request);
+                }
+                catch (Throwable e)
+                {
+                    // The attached holdings may still be queued for conversion
+                    pipeline.cancel();
+                    throw e;
+                }
             } finally {
                 dbconn.commit();
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Sets the ETag and Last-Modified validators of the response, and if the request is conditional on them and the
+     * record is unchanged, responds with a 304 (and returns true).
+     *
+     * The response depends on the record and (for the _expanded formats) on the records it depends on, but for the
+     * _includehold formats also on the holdings of the record, which are not tracked. Those get no validators.
+     *
+     * A minor update changes the data of a record but keeps its modified time, so the ETag is built from the checksum
+     * of the data, and If-Modified-Since is only trusted for responses without data. The dependencies of the
+     * _expanded formats are only tracked by their latest modified time, so a minor update of one of those can still
+     * go unnoticed.
+     */
+    static boolean respondNotModified(RecordAssembler.Record record, String metadataPrefix, boolean withDeletedData,
+                                      HttpServletRequest request, HttpServletResponse response)
+    {
+        if (metadataPrefix.contains(OaiPmh.FORMAT_INCLUDE_HOLD_POSTFIX))
+            return false;
+
+        boolean embellished = metadataPrefix.contains(OaiPmh.FORMAT_EXPANDED_POSTFIX);
+        long lastModified = record.modified.getTime();
+        StringJoiner eTag = new StringJoiner("-", "W/\"", "\"");
+        eTag.add(Long.toString(lastModified, 36));
+        boolean withData = record.document != null && (!record.deleted || withDeletedData);
+        if (withData && record.checksum != null)
+            eTag.add(record.checksum);
+        if (embellished && record.depMaxModified != null)
+        {
+            lastModified = Math.max(lastModified, record.depMaxModified.getTime());
+            eTag.add(Long.toString(record.depMaxModified.getTime(), 36));
+        }
+        eTag.add(metadataPrefix);
+        if (withDeletedData)
+            eTag.add("d");
+
+        response.setHeader("ETag", eTag.toString());
+        response.setDateHeader("Last-Modified", lastModified);
+
+        // If-None-Match takes precedence, If-Modified-Since is only looked at without it
+        boolean notModified;
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null)
+        {
+            notModified = false;
+            for (String candidate : ifNoneMatch.split(","))
+            {
+                candidate = candidate.trim();
+                if (candidate.equals("*") || weakETag(candidate).equals(eTag.toString()))
+                    notModified = true;
+            }
+        }
+        else if (!withData)
+        {
+            long ifModifiedSince;
+            try
+            {
+                ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            }
+            catch (IllegalArgumentException e)
+            {
+                ifModifiedSince = -1;
+            }
+            // HTTP dates only have whole seconds
+            notModified = ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+        }
+        else
+        {
+            notModified = false;
+        }
+
+        if (notModified)
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return notModified;
+    }
+
+    private static String weakETag(String eTag)
+    {
+        return eTag.startsWith("W/") ? eTag : "W/" + eTag;
+    }
+}
@@ -8,14 +8,31 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.time.Instant;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.List;
 import java.util.StringJoiner;
 
 public class Helpers
 {
+    // Everything needed to emit a record
+    private final static String RECORD_COLUMNS = "lddb.id, lddb.data, lddb.collection, lddb.modified, lddb.deleted, lddb.changedBy, lddb.data#>>'{@graph,1,heldBy,@id}' AS sigel, lddb.data#>>'{@graph,1,itemOf,@id}' AS itemOf, lddb.depMaxModified, lddb.checksum";
+
+    // Everything needed to emit only a header (and about), without the data (which only holdings need to be looked into)
+    private final static String HEADER_COLUMNS = "lddb.id, lddb.collection, lddb.modified, lddb.deleted, lddb.changedBy," +
+            " CASE WHEN lddb.collection = 'hold' THEN lddb.data#>>'{@graph,1,heldBy,@id}' END AS sigel," +
+            " CASE WHEN lddb.collection = 'hold' THEN lddb.data#>>'{@graph,1,itemOf,@id}' END AS itemOf";
+
+    // The same, for the deleted records in the tombstone table (the data is gone if the record has been purged)
+    private final static String TOMBSTONE_RECORD_COLUMNS = "tombstones.id, lddb.data, tombstones.collection, tombstones.modified, true AS deleted, tombstones.changedBy, tombstones.sigel, tombstones.itemOf, lddb.depMaxModified, lddb.checksum";
+    private final static String TOMBSTONE_HEADER_COLUMNS = "tombstones.id, tombstones.collection, tombstones.modified, true AS deleted, tombstones.changedBy," +
+            " CASE WHEN tombstones.collection = 'hold' THEN tombstones.sigel END AS sigel," +
+            " CASE WHEN tombstones.collection = 'hold' THEN tombstones.itemOf END AS itemOf";
+
     public static String getUnknownParameters(HttpServletRequest request, String... knownParameters)
     {
         HashSet<String> knownParametersSet = new HashSet<String>();
@@ -61,77 +78,141 @@ public class Helpers
     public static PreparedStatement getMatchingDocumentsStatement(Connection dbconn, ZonedDateTime fromDateTime, ZonedDateTime untilDateTime, SetSpec setSpec, String id, boolean includeDependenciesInTimeInterval)
             throws SQLException
     {
-        if (setSpec != null && setSpec.getRootSet() != null && setSpec.getRootSet().startsWith(SetSpec.SET_BIB) && setSpec.getSubset() != null)
+        return getMatchingDocumentsStatement(dbconn, fromDateTime, untilDateTime, setSpec, id, includeDependenciesInTimeInterval, null, null, 0);
+    }
+
+    /**
+     * Like getMatchingDocumentsStatement, but only selecting what is needed for the record headers (no data).
+     */
+    public static PreparedStatement getMatchingHeadersStatement(Connection dbconn, ZonedDateTime fromDateTime, ZonedDateTime untilDateTime, SetSpec setSpec, boolean includeDependenciesInTimeInterval,
+                                                                Instant afterModified, String afterId, int limit)
+            throws SQLException
+    {
+        return getMatchingStatement(dbconn, false, fromDateTime, untilDateTime, setSpec, null, includeDependenciesInTimeInterval, afterModified, afterId, limit);
+    }
+
+    /**
+     * Selects the records after the (modified, id) position afterModified, afterId (if not null), in (modified, id)
+     * order, and at most limit records (if limit > 0).
+     *
+     * Unless a single record is selected by id, the live records are taken from lddb and the deleted ones from the
+     * tombstone table, merged in (modified, id) order.
+     */
+    public static PreparedStatement getMatchingDocumentsStatement(Connection dbconn, ZonedDateTime fromDateTime, ZonedDateTime untilDateTime, SetSpec setSpec, String id, boolean includeDependenciesInTimeInterval,
+                                                                  Instant afterModified, String afterId, int limit)
+            throws SQLException
+    {
+        return getMatchingStatement(dbconn, true, fromDateTime, untilDateTime, setSpec, id, includeDependenciesInTimeInterval, afterModified, afterId, limit);
+    }
+
+    private static PreparedStatement getMatchingStatement(Connection dbconn, boolean withData, ZonedDateTime fromDateTime, ZonedDateTime untilDateTime, SetSpec setSpec, String id, boolean includeDependenciesInTimeInterval,
+                                                          Instant afterModified, String afterId, int limit)
+            throws SQLException
+    {
+        String columns = withData ? RECORD_COLUMNS : HEADER_COLUMNS;
+        boolean withTombstones = id == null;
+        List<Object> parameters = new ArrayList<>();
+
+        String selectSQL;
+        if (setSpec != null && setSpec.getSubset() != null)
         {
-            // Using a bib:[location] set requires special handling
-            return getBibSigelMatchingDocumentsStatement(dbconn, fromDateTime, untilDateTime, setSpec, includeDependenciesInTimeInterval);
+            // The hold:[sigel] and bib:[sigel] sets are looked up in the set membership table
+            selectSQL = getSetMatchingSQL(columns, fromDateTime, untilDateTime, setSpec, includeDependenciesInTimeInterval, withTombstones, afterModified, afterId, limit, parameters);
         }
         else
         {
-            return getNormalMatchingDocumentsStatement(dbconn, fromDateTime, untilDateTime, setSpec, id, includeDependenciesInTimeInterval);
+            selectSQL = getNormalMatchingSQL(columns, fromDateTime, untilDateTime, setSpec, id, includeDependenciesInTimeInterval, withTombstones, afterModified, afterId, limit, parameters);
         }
+
+        if (withTombstones)
+        {
+            String tombstoneSQL = getTombstoneMatchingSQL(withData ? TOMBSTONE_RECORD_COLUMNS : TOMBSTONE_HEADER_COLUMNS,
+                    withData, fromDateTime, untilDateTime, setSpec, afterModified, afterId, limit, parameters);
+            selectSQL = "SELECT * FROM ((" + selectSQL + ") UNION ALL (" + tombstoneSQL + ")) AS merged ";
+            if (limit > 0)
+            {
+                selectSQL += " ORDER BY modified, id LIMIT ? ";
+                parameters.add(limit);
+            }
+        }
+
+        PreparedStatement preparedStatement = dbconn.prepareStatement(selectSQL);
+        preparedStatement.setFetchSize(512);
+
+        // Assign parameters
+        for (int i = 0; i < parameters.size(); ++i)
+            preparedStatement.setObject(i + 1, parameters.get(i));
+
+        return preparedStatement;
     }
 
-    private static PreparedStatement getBibSigelMatchingDocumentsStatement(Connection dbconn, ZonedDateTime fromDateTime, ZonedDateTime untilDateTime, SetSpec setSpec, boolean includeDependenciesInTimeInterval)
-            throws SQLException
+    private static String getSetMatchingSQL(String columns, ZonedDateTime fromDateTime, ZonedDateTime untilDateTime, SetSpec setSpec, boolean includeDependenciesInTimeInterval, boolean liveOnly,
+                                            Instant afterModified, String afterId, int limit, List<Object> parameters)
     {
-        // Construct the query
-        String selectSQL = "WITH bib_with_heldby AS (" +
-                " SELECT lddb.id, lddb.data, lddb.collection, lddb.modified, lddb.deleted, lddb.changedBy, lddb.data#>>'{@graph,1,heldBy,@id}' AS sigel, lddb.data#>>'{@graph,1,itemOf,@id}' AS itemOf, lddb_attached_holdings.data#>>'{@graph,1,heldBy,@id}' as heldBy" +
-                " FROM lddb ";
+        // Construct the query. The set table has the modified time of each record, so unless dependencies are
+        // included, the whole selection is a range in its (setSpec, modified, id) index.
+        String selectSQL = "SELECT " + columns +
+                " FROM lddb__oaipmh_sets sets JOIN lddb ON lddb.id = sets.id ";
 
-        selectSQL += " LEFT JOIN lddb lddb_attached_holdings ON lddb.data#>>'{@graph,1,@id}' = lddb_attached_holdings.data#>>'{@graph,1,itemOf,@id}' ";
-        selectSQL += " WHERE lddb.collection <> 'definitions' ";
+        selectSQL += " WHERE sets.setSpec = ? AND lddb.collection = ? ";
+        parameters.add(setSpec.toString());
+        parameters.add(setSpec.getRootSet());
+        if (liveOnly)
+            selectSQL += " AND lddb.deleted = false ";
 
         if (fromDateTime != null)
         {
             if (includeDependenciesInTimeInterval)
                 selectSQL += " AND lddb.depMaxModified >= ? ";
             else
-                selectSQL += " AND lddb.modified >= ? ";
+                selectSQL += " AND sets.modified >= ? ";
+            parameters.add(toTimestamp(fromDateTime));
         }
         if (untilDateTime != null)
         {
             if (includeDependenciesInTimeInterval)
                 selectSQL += " AND lddb.depMaxModified <= ? ";
             else
-                selectSQL += " AND lddb.modified <= ? ";
+                selectSQL += " AND sets.modified <= ? ";
+            parameters.add(toTimestamp(untilDateTime));
+        }
+        if (afterModified != null)
+        {
+            selectSQL += " AND (sets.modified, sets.id) > (?, ?) ";
+            parameters.add(Timestamp.from(afterModified));
+            parameters.add(afterId);
+        }
+        if (limit > 0)
+        {
+            selectSQL += " ORDER BY sets.modified, sets.id LIMIT ? ";
+            parameters.add(limit);
         }
-        selectSQL += " AND lddb.collection = ? ";
-        selectSQL += " ) ";
-        selectSQL += " SELECT * FROM bib_with_heldby WHERE heldBy = ?";
-
-        PreparedStatement preparedStatement = dbconn.prepareStatement(selectSQL);
-        preparedStatement.setFetchSize(512);
-
-        // Assign parameters
-        int parameterIndex = 1;
-        if (fromDateTime != null)
-            preparedStatement.setTimestamp(parameterIndex++, new Timestamp(fromDateTime.toInstant().getEpochSecond() * 1000L));
-        if (untilDateTime != null)
-            preparedStatement.setTimestamp(parameterIndex++, new Timestamp(untilDateTime.toInstant().getEpochSecond() * 1000L));
-        preparedStatement.setString(parameterIndex++, setSpec.getRootSet());
-        preparedStatement.setString(parameterIndex++, LegacyIntegrationTools.legacySigelToUri(setSpec.getSubset()));
 
-        return preparedStatement;
+        return selectSQL;
     }
 
-    private static PreparedStatement getNormalMatchingDocumentsStatement(Connection dbconn, ZonedDateTime fromDateTime, ZonedDateTime untilDateTime, SetSpec setSpec, String id, boolean includeDependenciesInTimeInterval)
-            throws SQLException
+    private static String getNormalMatchingSQL(String columns, ZonedDateTime fromDateTime, ZonedDateTime untilDateTime, SetSpec setSpec, String id, boolean includeDependenciesInTimeInterval, boolean liveOnly,
+                                               Instant afterModified, String afterId, int limit, List<Object> parameters)
     {
         // Construct the query
-        String selectSQL = "SELECT lddb.id, lddb.data, lddb.collection, lddb.modified, lddb.deleted, lddb.changedBy, lddb.data#>>'{@graph,1,heldBy,@id}' AS sigel, lddb.data#>>'{@graph,1,itemOf,@id}' AS itemOf" +
+        String selectSQL = "SELECT " + columns +
                 " FROM lddb ";
 
         selectSQL += " WHERE lddb.collection <> 'definitions' ";
+        if (liveOnly)
+            selectSQL += " AND lddb.deleted = false ";
         if (id != null)
+        {
             selectSQL += " AND lddb.id = ? ";
+            parameters.add(id);
+        }
         if (fromDateTime != null)
         {
             if (includeDependenciesInTimeInterval)
                 selectSQL += " AND lddb.depMaxModified >= ? ";
             else
                 selectSQL += " AND lddb.modified >= ? ";
+            parameters.add(toTimestamp(fromDateTime));
         }
         if (untilDateTime != null)
         {
@@ -139,44 +220,79 @@ public class Helpers
                 selectSQL += " AND lddb.depMaxModified <= ? ";
             else
                 selectSQL += " AND lddb.modified <= ? ";
+            parameters.add(toTimestamp(untilDateTime));
         }
-        if (setSpec != null)
+        if (setSpec != null && setSpec.getRootSet() != null)
         {
-            if (setSpec.getRootSet() != null)
-                selectSQL += " AND lddb.collection = ? ";
-
-            if (setSpec.getSubset() != null) {
-                if (setSpec.getRootSet().startsWith(SetSpec.SET_HOLD))
-                    selectSQL += " AND lddb.data->'@graph' @> ?";
-            }
+            selectSQL += " AND lddb.collection = ? ";
+            parameters.add(setSpec.getRootSet());
+        }
+        if (afterModified != null)
+        {
+            selectSQL += " AND (lddb.modified, lddb.id) > (?, ?) ";
+            parameters.add(Timestamp.from(afterModified));
+            parameters.add(afterId);
+        }
+        if (limit > 0)
+        {
+            selectSQL += " ORDER BY lddb.modified, lddb.id LIMIT ? ";
+            parameters.add(limit);
         }
 
-        PreparedStatement preparedStatement = dbconn.prepareStatement(selectSQL);
-        preparedStatement.setFetchSize(512);
+        return selectSQL;
+    }
 
-        // Assign parameters
-        int parameterIndex = 1;
-        if (id != null)
-            preparedStatement.setString(parameterIndex++, id);
+    /**
+     * The deleted records, from the tombstone table. It is ordered by (modified, id), and small enough for any
+     * selection within it to be a narrow scan. Deleted records have no dependencies, so the time interval is always
+     * on their own modified time.
+     */
+    private static String getTombstoneMatchingSQL(String columns, boolean withData, ZonedDateTime fromDateTime, ZonedDateTime untilDateTime, SetSpec setSpec,
+                                                  Instant afterModified, String afterId, int limit, List<Object> parameters)
+    {
+        String selectSQL = "SELECT " + columns +
+                " FROM lddb__oaipmh_tombstones tombstones ";
+        if (withData)
+            selectSQL += " LEFT JOIN lddb ON lddb.id = tombstones.id ";
+
+        selectSQL += " WHERE tombstones.collection <> 'definitions' ";
         if (fromDateTime != null)
-            preparedStatement.setTimestamp(parameterIndex++, new Timestamp(fromDateTime.toInstant().getEpochSecond() * 1000L));
+        {
+            selectSQL += " AND tombstones.modified >= ? ";
+            parameters.add(toTimestamp(fromDateTime));
+        }
         if (untilDateTime != null)
-            preparedStatement.setTimestamp(parameterIndex++, new Timestamp(untilDateTime.toInstant().getEpochSecond() * 1000L));
-        if (setSpec != null)
-        {
-            if (setSpec.getRootSet() != null)
-                preparedStatement.setString(parameterIndex++, setSpec.getRootSet());
-            if (setSpec.getSubset() != null) {
-                if (setSpec.getRootSet().startsWith(SetSpec.SET_HOLD)) {
-                    String strMap = "[{\"heldBy\":{\"@id\": \"" +
-                            LegacyIntegrationTools.legacySigelToUri(setSpec.getSubset()) +
-                            "\"}}]";
-
-                    preparedStatement.setObject(parameterIndex++, strMap, java.sql.Types.OTHER);
-                }
-            }
+        {
+            selectSQL += " AND tombstones.modified <= ? ";
+            parameters.add(toTimestamp(untilDateTime));
+        }
+        if (setSpec != null && setSpec.getRootSet() != null)
+        {
+            selectSQL += " AND tombstones.collection = ? ";
+            parameters.add(setSpec.getRootSet());
+        }
+        if (setSpec != null && setSpec.getSubset() != null)
+        {
+            selectSQL += " AND ? = ANY(tombstones.setSpecs) ";
+            parameters.add(setSpec.toString());
+        }
+        if (afterModified != null)
+        {
+            selectSQL += " AND (tombstones.modified, tombstones.id) > (?, ?) ";
+            parameters.add(Timestamp.from(afterModified));
+            parameters.add(afterId);
+        }
+        if (limit > 0)
+        {
+            selectSQL += " ORDER BY tombstones.modified, tombstones.id LIMIT ? ";
+            parameters.add(limit);
         }
 
-        return preparedStatement;
+        return selectSQL;
+    }
+
+    private static Timestamp toTimestamp(ZonedDateTime dateTime)
+    {
+        return new Timestamp(dateTime.toInstant().getEpochSecond() * 1000L);
     }
 }
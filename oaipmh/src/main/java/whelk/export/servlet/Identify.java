@@ -6,14 +6,7 @@ import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
 import java.io.IOException;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
-
-import io.prometheus.client.Counter;
 
 public class Identify
 {
@@ -50,37 +43,18 @@ public class Identify
         writer.writeEndElement(); // adminEmail
 
         writer.writeStartElement("earliestDatestamp");
-        try (Connection dbconn = OaiPmh.s_whelk.getStorage().getConnection();
-             PreparedStatement preparedStatement = prepareStatement(dbconn);
-             ResultSet resultSet = preparedStatement.executeQuery())
-        {
-            if (resultSet.next()) {
-                ZonedDateTime earliest = ZonedDateTime.ofInstant(resultSet.getTimestamp("earliest").toInstant(), ZoneOffset.UTC);
-                writer.writeCharacters(earliest.toString());
-            } else
-                writer.writeCharacters(ZonedDateTime.now(ZoneOffset.UTC).toString());
-        }
+        writer.writeCharacters(RepositoryInfo.getEarliestDatestamp().toString());
         writer.writeEndElement(); // earliestDatestamp
 
         writer.writeStartElement("deletedRecord");
-        writer.writeCharacters("persistent");
+        writer.writeCharacters(RepositoryInfo.DELETED_RECORD);
         writer.writeEndElement(); // deletedRecord
 
         writer.writeStartElement("granularity");
-        writer.writeCharacters("YYYY-MM-DDThh:mm:ssZ");
+        writer.writeCharacters(RepositoryInfo.GRANULARITY);
         writer.writeEndElement(); // granularity
 
         writer.writeEndElement(); // Identify
         ResponseCommon.writeOaiPmhClose(writer, request);
     }
-
-    private static PreparedStatement prepareStatement(Connection dbconn)
-            throws SQLException
-    {
-        // Construct the query
-        String selectSQL = "SELECT MIN(modified) as earliest FROM lddb";
-        PreparedStatement preparedStatement = dbconn.prepareStatement(selectSQL);
-
-        return preparedStatement;
-    }
 }
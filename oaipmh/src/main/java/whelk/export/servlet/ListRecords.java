@@ -7,7 +7,11 @@ import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
 import java.io.IOException;
 import java.sql.*;
+import java.time.Instant;
 import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
 import java.time.format.DateTimeParseException;
 
 import io.prometheus.client.Counter;
@@ -42,7 +46,7 @@ public class ListRecords
         String from = request.getParameter(FROM_PARAM); // optional
         String until = request.getParameter(UNTIL_PARAM); // optional
         String set = request.getParameter(SET_PARAM); // optional
-        String resumptionToken = request.getParameter(RESUMPTION_PARAM); // exclusive, not supported/used
+        String resumptionToken = request.getParameter(RESUMPTION_PARAM); // exclusive
         String metadataPrefix = request.getParameter(FORMAT_PARAM); // required
 
         // optional and not technically legal OAI-PMH
@@ -52,13 +56,32 @@ public class ListRecords
                 FROM_PARAM, UNTIL_PARAM, SET_PARAM, RESUMPTION_PARAM, FORMAT_PARAM, DELETED_DATA_PARAM))
             return;
 
-        // We do not use resumption tokens.
+        // A resumption token replaces all other arguments, they are taken from the token instead.
+        ResumptionToken token = null;
         if (resumptionToken != null)
         {
-            failedRequests.labels(OaiPmh.OAIPMH_ERROR_BAD_RESUMPTION_TOKEN).inc();
-            ResponseCommon.sendOaiPmhError(OaiPmh.OAIPMH_ERROR_BAD_RESUMPTION_TOKEN,
-                    "No such resumption token was issued", request, response);
-            return;
+            if (from != null || until != null || set != null || metadataPrefix != null)
+            {
+                failedRequests.labels(OaiPmh.OAIPMH_ERROR_BAD_ARGUMENT).inc();
+                ResponseCommon.sendOaiPmhError(OaiPmh.OAIPMH_ERROR_BAD_ARGUMENT,
+                        "resumptionToken is an exclusive argument.", request, response);
+                return;
+            }
+
+            token = ResumptionToken.decode(resumptionToken);
+            if (token == null || token.isExpired())
+            {
+                failedRequests.labels(OaiPmh.OAIPMH_ERROR_BAD_RESUMPTION_TOKEN).inc();
+                ResponseCommon.sendOaiPmhError(OaiPmh.OAIPMH_ERROR_BAD_RESUMPTION_TOKEN,
+                        "No such resumption token was issued, or it has expired", request, response);
+                return;
+            }
+
+            from = token.from;
+            until = token.until;
+            set = token.set;
+            metadataPrefix = token.metadataPrefix;
+            withDeletedData = token.withDeletedData;
         }
 
         if (metadataPrefix == null)
@@ -101,16 +124,41 @@ public class ListRecords
             return;
         }
 
+        if (fromDateTime != null && untilDateTime != null && fromDateTime.isAfter(untilDateTime))
+        {
+            failedRequests.labels(OaiPmh.OAIPMH_ERROR_BAD_ARGUMENT).inc();
+            ResponseCommon.sendOaiPmhError(OaiPmh.OAIPMH_ERROR_BAD_ARGUMENT, "from must not be later than until.", request, response);
+            return;
+        }
+
+        // Nothing can match before the earliest datestamp, no need to ask the database
+        if (untilDateTime != null && untilDateTime.isBefore(RepositoryInfo.getEarliestDatestamp()))
+        {
+            failedRequests.labels(OaiPmh.OAIPMH_ERROR_NO_RECORDS_MATCH).inc();
+            ResponseCommon.sendOaiPmhError(OaiPmh.OAIPMH_ERROR_NO_RECORDS_MATCH, "", request, response);
+            return;
+        }
+
         try (Connection dbconn = OaiPmh.s_whelk.getStorage().getConnection())
         {
             dbconn.setAutoCommit(false);
             boolean includeDependencies = metadataPrefix.contains(OaiPmh.FORMAT_EXPANDED_POSTFIX);
-            try (PreparedStatement preparedStatement = Helpers.getMatchingDocumentsStatement(dbconn, fromDateTime, untilDateTime, setSpec, null, includeDependencies);
+            Instant afterModified = token != null ? token.lastModified : null;
+            String afterId = token != null ? token.lastId : null;
+
+            // Select one record more than fits on a page, to know whether there is another page after this one.
+            // ListIdentifiers only needs the headers, and so never loads (or embellishes) the documents.
+            try (PreparedStatement preparedStatement = onlyIdentifiers
+                    ? Helpers.getMatchingHeadersStatement(dbconn, fromDateTime, untilDateTime, setSpec, includeDependencies,
+                            afterModified, afterId, OaiPmh.s_pageSize + 1)
+                    : Helpers.getMatchingDocumentsStatement(dbconn, fromDateTime, untilDateTime, setSpec, null, includeDependencies,
+                            afterModified, afterId, OaiPmh.s_pageSize + 1);
                  ResultSet resultSet = preparedStatement.executeQuery())
             {
                 try
                 {
-                    respond(request, response, metadataPrefix, onlyIdentifiers, includeDependencies, withDeletedData, resultSet);
+                    respond(request, response, metadataPrefix, onlyIdentifiers, includeDependencies, withDeletedData, resultSet,
+                            from, until, set, token != null);
                 }
                 catch (Throwable e)
                 {
@@ -126,7 +174,8 @@ public class ListRecords
 
     private static void respond(HttpServletRequest request, HttpServletResponse response,
                                 String requestedFormat, boolean onlyIdentifiers, boolean embellish,
-                                boolean withDeletedData, ResultSet resultSet)
+                                boolean withDeletedData, ResultSet resultSet,
+                                String from, String until, String set, boolean resumed)
             throws IOException, XMLStreamException, SQLException
     {
         // Is the resultset empty?
@@ -148,12 +197,83 @@ public class ListRecords
         else
             writer.writeStartElement("ListRecords");
 
-        while (resultSet.next())
+        int count = 0;
+        boolean moreRecords = false;
+        Instant lastModified = null;
+        String lastId = null;
+        ConversionPipeline pipeline = new ConversionPipeline(OaiPmh.s_conversionsPerRequest);
+        List<RecordAssembler.Record> batch = new ArrayList<>();
+        List<RecordAssembler.Record> assembled = new ArrayList<>();
+        try
+        {
+            while (resultSet.next())
+            {
+                if (count == OaiPmh.s_pageSize)
+                {
+                    moreRecords = true;
+                    break;
+                }
+                RecordAssembler.Record record = RecordAssembler.readRow(resultSet, !onlyIdentifiers);
+                lastModified = record.modified.toInstant();
+                lastId = record.id;
+                ++count;
+
+                if (onlyIdentifiers)
+                {
+                    ResponseCommon.emitIdentifier(record, writer);
+                    continue;
+                }
+
+                batch.add(record);
+                if (batch.size() == RecordAssembler.BATCH_SIZE)
+                {
+                    // Start on this batch before writing the one before it, so that its records are being converted
+                    // in the meantime
+                    RecordAssembler.assemble(batch, requestedFormat, embellish, withDeletedData, pipeline);
+                    emitRecords(assembled, writer, requestedFormat, withDeletedData);
+                    assembled = batch;
+                    batch = new ArrayList<>();
+                }
+            }
+            if (!batch.isEmpty())
+                RecordAssembler.assemble(batch, requestedFormat, embellish, withDeletedData, pipeline);
+            emitRecords(assembled, writer, requestedFormat, withDeletedData);
+            emitRecords(batch, writer, requestedFormat, withDeletedData);
+        }
+        catch (Throwable e)
         {
-            ResponseCommon.emitRecord(resultSet, writer, requestedFormat, onlyIdentifiers, embellish, withDeletedData);
+            // No one is going to read the conversions still queued
+            pipeline.cancel();
+            throw e;
+        }
+
+        if (moreRecords)
+        {
+            Instant expiration = Instant.now().truncatedTo(ChronoUnit.SECONDS).plus(OaiPmh.s_resumptionTokenLifetimeHours, ChronoUnit.HOURS);
+            ResumptionToken token = new ResumptionToken(requestedFormat, from, until, set, withDeletedData,
+                    lastModified, lastId, expiration);
+            writer.writeStartElement("resumptionToken");
+            writer.writeAttribute("expirationDate", token.getExpirationDate());
+            writer.writeCharacters(token.encode());
+            writer.writeEndElement(); // resumptionToken
+        }
+        else if (resumed)
+        {
+            // The last part of a list must end with an empty token
+            writer.writeEmptyElement("resumptionToken");
         }
 
         writer.writeEndElement(); // ListIdentifiers/ListRecords
         ResponseCommon.writeOaiPmhClose(writer, request);
     }
+
+    private static void emitRecords(List<RecordAssembler.Record> records, XMLStreamWriter writer, String requestedFormat,
+                                    boolean withDeletedData)
+            throws IOException, XMLStreamException
+    {
+        for (RecordAssembler.Record record : records)
+        {
+            ResponseCommon.emitRecord(record, writer, requestedFormat, withDeletedData);
+        }
+    }
 }
@@ -1,7 +1,5 @@
 package whelk.export.servlet;
 
-import whelk.util.LegacyIntegrationTools;
-
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.stream.XMLOutputFactory;
@@ -9,6 +7,8 @@ import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
 import java.io.IOException;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
 
 import io.prometheus.client.Counter;
 
@@ -16,6 +16,11 @@ public class ListSets
 {
     private final static String RESUMPTION_PARAM = "resumptionToken";
 
+    // The sigel sets change rarely, there is no need to look them up for every request
+    private final static long SIGEL_CACHE_TTL_MS = 10 * 60 * 1000;
+    private static List<String> s_cachedSigels = null;
+    private static long s_cachedSigelsTime = 0;
+
     private static final Counter failedRequests = Counter.build()
             .name("oaipmh_failed_listsets_requests_total").help("Total failed ListSets requests.")
             .labelNames("error").register();
@@ -77,41 +82,53 @@ public class ListSets
         writer.writeEndElement(); // set
 
         // Dynamic sigel-sets
+        for (String sigel : getSigels())
+        {
+            writer.writeStartElement("set");
+            writer.writeStartElement("setSpec");
+            writer.writeCharacters("hold:"+sigel);
+            writer.writeEndElement(); // setSpec
+            writer.writeStartElement("setName");
+            writer.writeCharacters("Holding records for sigel: " + sigel);
+            writer.writeEndElement(); // setName
+            writer.writeEndElement(); // set
+
+            writer.writeStartElement("set");
+            writer.writeStartElement("setSpec");
+            writer.writeCharacters("bib:"+sigel);
+            writer.writeEndElement(); // setSpec
+            writer.writeStartElement("setName");
+            writer.writeCharacters("Bibliographic records for sigel: " + sigel);
+            writer.writeEndElement(); // setName
+            writer.writeEndElement(); // set
+        }
+
+        writer.writeEndElement(); // ListSets
+        ResponseCommon.writeOaiPmhClose(writer, request);
+    }
+
+    private static synchronized List<String> getSigels()
+            throws SQLException
+    {
+        if (s_cachedSigels != null && System.currentTimeMillis() - s_cachedSigelsTime < SIGEL_CACHE_TTL_MS)
+            return s_cachedSigels;
+
+        List<String> sigels = new ArrayList<>();
         try (Connection dbconn = OaiPmh.s_whelk.getStorage().getConnection();
              PreparedStatement preparedStatement = prepareStatement(dbconn);
              ResultSet resultSet = preparedStatement.executeQuery())
         {
             while (resultSet.next())
             {
-                String sigel = resultSet.getString("sigel");
-                if (sigel == null)
-                    continue;
-                sigel = LegacyIntegrationTools.uriToLegacySigel(sigel);
-                if (sigel == null)
-                    continue;
-
-                writer.writeStartElement("set");
-                writer.writeStartElement("setSpec");
-                writer.writeCharacters("hold:"+sigel.replace("\"", ""));
-                writer.writeEndElement(); // setSpec
-                writer.writeStartElement("setName");
-                writer.writeCharacters("Holding records for sigel: " + sigel);
-                writer.writeEndElement(); // setName
-                writer.writeEndElement(); // set
-
-                writer.writeStartElement("set");
-                writer.writeStartElement("setSpec");
-                writer.writeCharacters("bib:"+sigel.replace("\"", ""));
-                writer.writeEndElement(); // setSpec
-                writer.writeStartElement("setName");
-                writer.writeCharacters("Bibliographic records for sigel: " + sigel);
-                writer.writeEndElement(); // setName
-                writer.writeEndElement(); // set
+                String setSpec = resultSet.getString("setSpec");
+                if (setSpec.startsWith(SetSpec.SET_HOLD + ":"))
+                    sigels.add(setSpec.substring(SetSpec.SET_HOLD.length() + 1));
             }
         }
 
-        writer.writeEndElement(); // ListSets
-        ResponseCommon.writeOaiPmhClose(writer, request);
+        s_cachedSigels = sigels;
+        s_cachedSigelsTime = System.currentTimeMillis();
+        return sigels;
     }
 
     private static PreparedStatement prepareStatement(Connection dbconn)
@@ -123,16 +140,15 @@ public class ListSets
         // loose indexscans, which can instead be simulated using the below query, courtesy of:
         // https://wiki.postgresql.org/wiki/Loose_indexscan
 
-        /*String selectSQL = "SELECT DISTINCT data#>>'{@graph,1,heldBy,@id}' AS sigel FROM " + tableName +
-                " WHERE collection = 'hold' ";*/
+        /*String selectSQL = "SELECT DISTINCT setSpec FROM lddb__oaipmh_sets";*/
 
         String selectSQL = "WITH RECURSIVE t AS (\n" +
-                "   SELECT MIN(data#>>'{@graph,1,heldBy,@id}') AS col FROM lddb\n" +
+                "   SELECT MIN(setSpec) AS col FROM lddb__oaipmh_sets\n" +
                 "   UNION ALL\n" +
-                "   SELECT (SELECT MIN(data#>>'{@graph,1,heldBy,@id}') FROM lddb WHERE data#>>'{@graph,1,heldBy,@id}' > t.col)\n" +
+                "   SELECT (SELECT MIN(setSpec) FROM lddb__oaipmh_sets WHERE setSpec > t.col)\n" +
                 "   FROM t WHERE t.col IS NOT NULL\n" +
                 "   )\n" +
-                "SELECT col as sigel FROM t WHERE col IS NOT NULL";
+                "SELECT col as setSpec FROM t WHERE col IS NOT NULL";
 
         PreparedStatement preparedStatement = dbconn.prepareStatement(selectSQL);
         preparedStatement.setFetchSize(512);
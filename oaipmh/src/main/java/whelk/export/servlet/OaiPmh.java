@@ -6,6 +6,7 @@ import whelk.converter.FormatConverter;
 import whelk.converter.JsonLD2DublinCoreConverter;
 import whelk.converter.JsonLD2RdfXml;
 import whelk.converter.marc.JsonLD2MarcXMLConverter;
+import whelk.util.PropertyLoader;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -70,12 +71,28 @@ public class OaiPmh extends HttpServlet
     public final static String FORMAT_EXPANDED_POSTFIX = "_expanded";
     public final static String FORMAT_INCLUDE_HOLD_POSTFIX = "_includehold";
 
+    // Paging of ListRecords/ListIdentifiers responses
+    private final static int DEFAULT_PAGE_SIZE = 2000;
+    private final static long DEFAULT_RESUMPTION_TOKEN_LIFETIME_HOURS = 48;
+    public static int s_pageSize;
+    public static long s_resumptionTokenLifetimeHours;
+
+    // Conversion of records to the XML formats, in a pool of threads shared by all requests
+    private final static int DEFAULT_MAX_CONVERSIONS_PER_REQUEST = 4;
+    public static int s_conversionsPerRequest;
+
     public static Whelk s_whelk;
+    private static boolean s_warmPayloadCache;
+    private PayloadCacheWarmer payloadCacheWarmer = null;
     private final Logger logger = LogManager.getLogger(this.getClass());
 
     static
     {
-        s_whelk = Whelk.createLoadedCoreWhelk();
+        Properties configuration = PropertyLoader.loadProperties("secret");
+        s_whelk = Whelk.createLoadedCoreWhelk(configuration);
+        s_pageSize = Integer.parseInt(configuration.getProperty("oaipmhPageSize", "" + DEFAULT_PAGE_SIZE));
+        s_resumptionTokenLifetimeHours = Long.parseLong(configuration.getProperty("oaipmhResumptionTokenLifetimeHours",
+                "" + DEFAULT_RESUMPTION_TOKEN_LIFETIME_HOURS));
         supportedFormats = new HashMap<String, FormatDescription>();
         supportedFormats.put("oai_dc", new FormatDescription(new JsonLD2DublinCoreConverter(), true, "http://www.openarchives.org/OAI/2.0/oai_dc.xsd", "http://www.openarchives.org/OAI/2.0"));
         supportedFormats.put("marcxml", new FormatDescription(new JsonLD2MarcXMLConverter(s_whelk.createMarcFrameConverter()), true, "http://www.loc.gov/standards/marcxml/schema/MARC21slim.xsd", "http://www.loc.gov/MARC21/slim"));
@@ -89,6 +106,15 @@ public class OaiPmh extends HttpServlet
             supportedFormats.put(format+FORMAT_EXPANDED_POSTFIX, supportedFormats.get(format));
             supportedFormats.put(format+FORMAT_INCLUDE_HOLD_POSTFIX+FORMAT_EXPANDED_POSTFIX, supportedFormats.get(format));
         }
+
+        int conversionThreads = Integer.parseInt(configuration.getProperty("oaipmhConversionThreads",
+                "" + Runtime.getRuntime().availableProcessors()));
+        ConversionPipeline.configure(conversionThreads);
+        s_conversionsPerRequest = Integer.parseInt(configuration.getProperty("oaipmhConversionsPerRequest",
+                "" + Math.min(DEFAULT_MAX_CONVERSIONS_PER_REQUEST, conversionThreads)));
+
+        PayloadCache.configure(configuration.getProperty("oaipmhCachedFormats", ""));
+        s_warmPayloadCache = Boolean.parseBoolean(configuration.getProperty("oaipmhCacheWarmer", "false"));
     }
 
     public void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException
@@ -103,14 +129,23 @@ public class OaiPmh extends HttpServlet
 
     public void init()
     {
+        if (s_warmPayloadCache && !PayloadCache.getCachedFormats().isEmpty())
+        {
+            payloadCacheWarmer = new PayloadCacheWarmer();
+            payloadCacheWarmer.start();
+        }
     }
 
     public void destroy()
     {
+        if (payloadCacheWarmer != null)
+            payloadCacheWarmer.shutdown();
     }
 
-    private void handleRequest(HttpServletRequest req, HttpServletResponse res) throws IOException
+    private void handleRequest(HttpServletRequest req, HttpServletResponse servletResponse) throws IOException
     {
+        HttpServletResponse res = CompressedResponse.wrap(req, servletResponse);
+
         String verb = req.getParameter("verb");
         if (verb == null)
             verb = "";
@@ -152,6 +187,9 @@ public class OaiPmh extends HttpServlet
                     ResponseCommon.sendOaiPmhError(OAIPMH_ERROR_BAD_VERB, "OAI-PMH verb must be one of [GetRecord, Identify, " +
                             "ListIdentifiers, ListMetadataFormats, ListRecords, ListSets].", req, res);
             }
+
+            if (res instanceof CompressedResponse)
+                ((CompressedResponse) res).finish();
         }
         catch (IOException | XMLStreamException e)
         {
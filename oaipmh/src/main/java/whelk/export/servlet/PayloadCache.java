@@ -0,0 +1,135 @@
+package whelk.export.servlet;
+
+import org.apache.cxf.staxutils.StaxUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import whelk.Document;
+import whelk.JsonLd;
+import whelk.component.PostgreSQLComponent;
+import whelk.converter.FormatConverter;
+import whelk.converter.XmlStreamConverter;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.*;
+
+/**
+ * A persistent cache of records converted to OAI-PMH metadata formats (payloads), kept in the lddb__oaipmh_cache
+ * table by record id and cache format.
+ *
+ * The cache format is the metadata format without _includehold, since that does not change the record itself. A
+ * payload is only used for as long as the record has not been modified since it was converted, and for the embellished
+ * (_expanded) formats, for as long as nothing the record depends on has been modified either.
+ *
+ * Payloads are kept as XML fragments, ready to be written to a response as they are. Which cache formats to use is
+ * configured with oaipmhCachedFormats, a comma separated list like "marcxml,marcxml_expanded".
+ */
+public class PayloadCache
+{
+    private static final Logger logger = LogManager.getLogger(PayloadCache.class);
+    private static final XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
+    private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+
+    private static Set<String> s_cachedFormats = Collections.emptySet();
+
+    static void configure(String cachedFormats)
+    {
+        Set<String> formats = new LinkedHashSet<>();
+        for (String format : cachedFormats.split(","))
+        {
+            format = format.trim();
+            if (format.isEmpty())
+                continue;
+            OaiPmh.FormatDescription formatDescription = OaiPmh.supportedFormats.get(format);
+            if (formatDescription == null || formatDescription.converter == null || !formatDescription.isXmlFormat
+                    || format.contains(OaiPmh.FORMAT_INCLUDE_HOLD_POSTFIX))
+            {
+                logger.warn("Not caching {}, only converted XML formats (without {}) can be cached.", format,
+                        OaiPmh.FORMAT_INCLUDE_HOLD_POSTFIX);
+                continue;
+            }
+            formats.add(format);
+        }
+        s_cachedFormats = formats;
+    }
+
+    public static Set<String> getCachedFormats()
+    {
+        return s_cachedFormats;
+    }
+
+    /**
+     * The cache format of a record in 'requestedFormat', embellished or not. Attached records (of the _includehold
+     * formats) are always embellished.
+     */
+    public static String getCacheFormat(String requestedFormat, boolean embellished)
+    {
+        String format = requestedFormat
+                .replace(OaiPmh.FORMAT_INCLUDE_HOLD_POSTFIX, "")
+                .replace(OaiPmh.FORMAT_EXPANDED_POSTFIX, "");
+        return embellished ? format + OaiPmh.FORMAT_EXPANDED_POSTFIX : format;
+    }
+
+    public static boolean isCached(String cacheFormat)
+    {
+        return s_cachedFormats.contains(cacheFormat);
+    }
+
+    /**
+     * Look up the payloads of 'ids'. This must be done before the documents to convert on a miss are loaded, so
+     * that what is saved is never stamped as newer than it is.
+     */
+    public static Map<String, PostgreSQLComponent.OaiPmhPayload> load(Collection<String> ids, String cacheFormat)
+    {
+        boolean embellished = cacheFormat.endsWith(OaiPmh.FORMAT_EXPANDED_POSTFIX);
+        return OaiPmh.s_whelk.getStorage().loadOaiPmhPayloads(ids, cacheFormat, embellished);
+    }
+
+    /**
+     * Save payloads converted anew. This is best effort, a failure (like someone else saving the same payload at the
+     * same time) is only logged.
+     */
+    public static void save(Collection<PostgreSQLComponent.OaiPmhPayload> payloads, String cacheFormat)
+    {
+        try
+        {
+            OaiPmh.s_whelk.getStorage().saveOaiPmhPayloads(payloads, cacheFormat);
+        }
+        catch (Exception e)
+        {
+            logger.warn("Could not cache {} {} payloads: {}", payloads.size(), cacheFormat, e.getMessage());
+        }
+    }
+
+    /**
+     * Convert 'document' to an XML fragment in 'format'. Returns null if the conversion fails.
+     */
+    public static String convert(Document document, String format)
+    {
+        FormatConverter converter = OaiPmh.supportedFormats.get(format).converter;
+        try
+        {
+            StringWriter result = new StringWriter();
+            XMLStreamWriter writer = xmlOutputFactory.createXMLStreamWriter(result);
+            if (converter instanceof XmlStreamConverter)
+            {
+                ((XmlStreamConverter) converter).convertTo(document.data, document.getShortId(), writer);
+            }
+            else
+            {
+                String convertedText = (String) converter.convert(document.data, document.getShortId()).get(JsonLd.getNON_JSON_CONTENT_KEY());
+                StaxUtils.copy(xmlInputFactory.createXMLStreamReader(new StringReader(convertedText)), writer);
+            }
+            writer.close();
+            return result.toString();
+        }
+        catch (Exception | Error e) // Depending on the converter, a variety of problems may arise here
+        {
+            logger.error("Conversion failed for document: " + document.getShortId(), e);
+            return null;
+        }
+    }
+}
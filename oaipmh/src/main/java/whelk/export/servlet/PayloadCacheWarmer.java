@@ -0,0 +1,116 @@
+package whelk.export.servlet;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import whelk.component.PostgreSQLComponent;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fills the PayloadCache in the background, so that harvesters find the payloads there already.
+ *
+ * For each cached format, the warmer goes through all records in (modified, id) order like a harvester would, a batch
+ * at a time, converting the records that have no valid payload. Once through, it keeps following new changes. How far
+ * it has come is saved in the settings table, so that it carries on from there after a restart.
+ *
+ * Records of the _expanded formats that are outdated only because something they depend on was modified are not
+ * found this way, they are converted again when next harvested.
+ */
+public class PayloadCacheWarmer extends Thread
+{
+    private final static String POSITION_KEY_PREFIX = "oaipmh-cache-warmer-";
+    private final static long IDLE_SLEEP_MS = 60 * 1000;
+
+    private static final Logger logger = LogManager.getLogger(PayloadCacheWarmer.class);
+
+    private volatile boolean running = true;
+    private final ConversionPipeline pipeline = new ConversionPipeline(OaiPmh.s_conversionsPerRequest);
+
+    public PayloadCacheWarmer()
+    {
+        super("oaipmh-cache-warmer");
+        setDaemon(true);
+    }
+
+    public void shutdown()
+    {
+        running = false;
+        interrupt();
+    }
+
+    public void run()
+    {
+        logger.info("Warming the payload cache for {}.", PayloadCache.getCachedFormats());
+        while (running)
+        {
+            boolean caughtUp = true;
+            for (String format : PayloadCache.getCachedFormats())
+            {
+                try
+                {
+                    if (warmBatch(format))
+                        caughtUp = false;
+                }
+                catch (Exception e)
+                {
+                    logger.error("Failed to warm the payload cache for " + format + ".", e);
+                }
+            }
+
+            if (caughtUp)
+            {
+                try
+                {
+                    Thread.sleep(IDLE_SLEEP_MS);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Warm the next batch of records for 'format'. Returns true if there may be more to do right away.
+     */
+    private boolean warmBatch(String format)
+            throws Exception
+    {
+        PostgreSQLComponent storage = OaiPmh.s_whelk.getStorage();
+        String positionKey = POSITION_KEY_PREFIX + format;
+        Map position = storage.loadSettings(positionKey);
+        Instant afterModified = position.get("modified") != null ? Instant.parse((String) position.get("modified")) : null;
+        String afterId = (String) position.get("id");
+
+        List<RecordAssembler.Record> records = new ArrayList<>();
+        try (Connection dbconn = storage.getConnection();
+             PreparedStatement preparedStatement = Helpers.getMatchingDocumentsStatement(dbconn, null, null, null, null, false,
+                     afterModified, afterId, RecordAssembler.BATCH_SIZE);
+             ResultSet resultSet = preparedStatement.executeQuery())
+        {
+            while (resultSet.next())
+                records.add(RecordAssembler.readRow(resultSet, true));
+        }
+        if (records.isEmpty())
+            return false;
+
+        // Wait for the batch to be cached, so as not to get ahead of it
+        RecordAssembler.assemble(records, format, format.endsWith(OaiPmh.FORMAT_EXPANDED_POSTFIX), false, pipeline).join();
+
+        RecordAssembler.Record last = records.get(records.size() - 1);
+        Map<String, Object> newPosition = new HashMap<>();
+        newPosition.put("modified", last.modified.toInstant().toString());
+        newPosition.put("id", last.id);
+        storage.saveSettings(positionKey, newPosition);
+
+        return records.size() == RecordAssembler.BATCH_SIZE;
+    }
+}
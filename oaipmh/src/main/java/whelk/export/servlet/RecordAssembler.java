@@ -0,0 +1,345 @@
+package whelk.export.servlet;
+
+import groovy.lang.Tuple2;
+import org.codehaus.jackson.map.ObjectMapper;
+import whelk.Document;
+import whelk.JsonLd;
+import whelk.component.PostgreSQLComponent.OaiPmhPayload;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Assembles records for ListRecords/GetRecord responses a batch at a time.
+ *
+ * Everything a record needs beyond its row (the embellished document for the _expanded formats, and the attached
+ * holdings and authority records for the _includehold formats) is loaded for the whole batch at once, so the number
+ * of database round trips per batch does not depend on how many records there are or how much they link to.
+ *
+ * The records are also converted here if the format is an XML format, or their cached payloads used if the format is
+ * kept in the PayloadCache. The conversions run in a ConversionPipeline, and may still be running when assemble()
+ * returns.
+ */
+public class RecordAssembler
+{
+    /**
+     * How many records to assemble together.
+     */
+    public final static int BATCH_SIZE = 100;
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    public static class Record
+    {
+        public final String id;
+        public final boolean deleted;
+        public final String collection;
+        public final Timestamp modified;
+        public final String sigel;
+        public final String itemOf;
+        public final String changedBy;
+
+        // Not set for header-only rows, or deleted records that have been purged
+        public Document document = null;
+        public Timestamp depMaxModified = null;
+        public String checksum = null;
+        public List<Document> holdings = Collections.emptyList();
+        public List<Document> auths = Collections.emptyList();
+
+        // Only set for the XML formats: the conversion of the document (and of the attached records, by id), cached
+        // or possibly still running. The result is null if the conversion failed.
+        public CompletableFuture<String> payload = null;
+        public Map<String, CompletableFuture<String>> attachedPayloads = Collections.emptyMap();
+
+        private Record(ResultSet resultSet)
+                throws SQLException
+        {
+            id = resultSet.getString("id");
+            deleted = resultSet.getBoolean("deleted");
+            collection = resultSet.getString("collection");
+            modified = resultSet.getTimestamp("modified");
+            sigel = resultSet.getString("sigel");
+            itemOf = resultSet.getString("itemOf");
+            changedBy = resultSet.getString("changedBy");
+        }
+    }
+
+    /**
+     * Reads the current row of a result set from Helpers.getMatchingDocumentsStatement (withData), or from
+     * Helpers.getMatchingHeadersStatement.
+     */
+    public static Record readRow(ResultSet resultSet, boolean withData)
+            throws SQLException, IOException
+    {
+        Record record = new Record(resultSet);
+        String data = withData ? resultSet.getString("data") : null;
+        if (data != null)
+        {
+            record.document = new Document(mapper.readValue(data, HashMap.class));
+            record.depMaxModified = resultSet.getTimestamp("depMaxModified");
+            record.checksum = resultSet.getString("checksum");
+        }
+        return record;
+    }
+
+    /**
+     * Returns a future that completes when all conversions are done (and cached, if the format is cached).
+     */
+    public static CompletableFuture<Void> assemble(List<Record> records, String requestedFormat, boolean embellish,
+                                                   boolean withDeletedData, ConversionPipeline pipeline)
+    {
+        OaiPmh.FormatDescription formatDescription = OaiPmh.supportedFormats.get(requestedFormat);
+        boolean convert = formatDescription.converter != null && formatDescription.isXmlFormat;
+        boolean includeHold = requestedFormat.contains(OaiPmh.FORMAT_INCLUDE_HOLD_POSTFIX);
+        String cacheFormat = PayloadCache.getCacheFormat(requestedFormat, embellish);
+        String attachedCacheFormat = PayloadCache.getCacheFormat(requestedFormat, true);
+
+        List<Record> withMetadata = new ArrayList<>();
+        for (Record record : records)
+        {
+            if ((!record.deleted || withDeletedData) && record.document != null)
+                withMetadata.add(record);
+        }
+
+        Map<String, OaiPmhPayload> payloads = Collections.emptyMap();
+        if (PayloadCache.isCached(cacheFormat))
+        {
+            payloads = PayloadCache.load(getIds(withMetadata), cacheFormat);
+            for (Record record : withMetadata)
+            {
+                OaiPmhPayload payload = payloads.get(record.id);
+                if (payload != null && payload.getData() != null)
+                    record.payload = CompletableFuture.completedFuture(payload.getData());
+            }
+        }
+
+        if (embellish)
+        {
+            // The attached records are found through the embellished document, so it is needed even if cached
+            List<String> ids = new ArrayList<>();
+            for (Record record : records)
+            {
+                if (record.document != null && (record.payload == null || includeHold))
+                    ids.add(record.id);
+            }
+
+            Map<String, Document> embellished = OaiPmh.s_whelk.getStorage().loadEmbellishedByIds(ids, OaiPmh.s_whelk.getJsonld());
+            for (Record record : records)
+            {
+                if (embellished.containsKey(record.id))
+                    record.document = embellished.get(record.id);
+            }
+        }
+
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        List<OaiPmhPayload> attachedToCache = new ArrayList<>();
+        if (includeHold)
+        {
+            List<Record> bibRecords = new ArrayList<>();
+            for (Record record : records)
+            {
+                if ("bib".equals(record.collection) && record.document != null)
+                    bibRecords.add(record);
+            }
+            if (!bibRecords.isEmpty())
+            {
+                Attached attached = new Attached(requestedFormat, convert, attachedCacheFormat, pipeline);
+                attachHoldings(bibRecords, attached);
+                attachAuths(bibRecords, attached);
+                for (Record record : bibRecords)
+                    record.attachedPayloads = attached.payloads;
+                pending.addAll(attached.pending);
+                attachedToCache = attached.toCache;
+            }
+        }
+
+        List<OaiPmhPayload> toCache = new ArrayList<>();
+        if (convert)
+        {
+            for (Record record : withMetadata)
+            {
+                if (record.payload != null)
+                    continue;
+                record.payload = pipeline.submit(record.document, requestedFormat);
+
+                OaiPmhPayload payload = payloads.get(record.id);
+                if (payload != null)
+                {
+                    // Stamped with the row that was converted, in case the record was modified after that
+                    payload.setModified(record.modified);
+                    payload.setChecksum(record.checksum);
+                    pending.add(record.payload.thenAccept(payload::setData));
+                    toCache.add(payload);
+                }
+            }
+        }
+
+        List<OaiPmhPayload> finalAttachedToCache = attachedToCache;
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).thenRun(() -> {
+            PayloadCache.save(withData(toCache), cacheFormat);
+            PayloadCache.save(withData(finalAttachedToCache), attachedCacheFormat);
+        });
+    }
+
+    /**
+     * The conversions of the attached records of a batch.
+     */
+    private static class Attached
+    {
+        final String requestedFormat;
+        final boolean convert;
+        final String cacheFormat;
+        final ConversionPipeline pipeline;
+
+        final Map<String, CompletableFuture<String>> payloads = new HashMap<>();
+        final List<CompletableFuture<Void>> pending = new ArrayList<>();
+        final List<OaiPmhPayload> toCache = new ArrayList<>();
+
+        Attached(String requestedFormat, boolean convert, String cacheFormat, ConversionPipeline pipeline)
+        {
+            this.requestedFormat = requestedFormat;
+            this.convert = convert;
+            this.cacheFormat = cacheFormat;
+            this.pipeline = pipeline;
+        }
+
+        /**
+         * Look up the cached payloads of 'ids'. Must be done before they are loaded, see PayloadCache.load.
+         */
+        Map<String, OaiPmhPayload> load(Collection<String> ids)
+        {
+            if (!PayloadCache.isCached(cacheFormat))
+                return Collections.emptyMap();
+            return PayloadCache.load(ids, cacheFormat);
+        }
+
+        /**
+         * Use the cached payloads of 'documents', and convert the rest.
+         */
+        void convert(Map<String, Document> documents, Map<String, OaiPmhPayload> cached)
+        {
+            if (!convert)
+                return;
+
+            for (Document document : documents.values())
+            {
+                String id = document.getShortId();
+                if (payloads.containsKey(id))
+                    continue;
+
+                OaiPmhPayload payload = cached.get(id);
+                if (payload != null && payload.getData() != null)
+                {
+                    payloads.put(id, CompletableFuture.completedFuture(payload.getData()));
+                    continue;
+                }
+
+                CompletableFuture<String> conversion = pipeline.submit(document, requestedFormat);
+                payloads.put(id, conversion);
+                if (payload != null)
+                {
+                    pending.add(conversion.thenAccept(payload::setData));
+                    toCache.add(payload);
+                }
+            }
+        }
+    }
+
+    private static void attachHoldings(List<Record> bibRecords, Attached attached)
+    {
+        Set<String> thingIdentifiers = new HashSet<>();
+        for (Record record : bibRecords)
+            thingIdentifiers.addAll(record.document.getThingIdentifiers());
+
+        Map<String, List<String>> holdingIdsByThing = OaiPmh.s_whelk.getStorage().getAttachedHoldingIds(thingIdentifiers);
+        Set<String> holdingIds = new HashSet<>();
+        for (List<String> ids : holdingIdsByThing.values())
+            holdingIds.addAll(ids);
+
+        Map<String, OaiPmhPayload> cached = attached.load(holdingIds);
+        Map<String, Document> holdings = OaiPmh.s_whelk.getStorage().loadEmbellishedByIds(holdingIds, OaiPmh.s_whelk.getJsonld());
+        attached.convert(holdings, cached);
+        for (Record record : bibRecords)
+        {
+            record.holdings = new ArrayList<>();
+            Set<String> attachedIds = new LinkedHashSet<>();
+            for (String thingIdentifier : record.document.getThingIdentifiers())
+            {
+                List<String> ids = holdingIdsByThing.get(thingIdentifier);
+                if (ids != null)
+                    attachedIds.addAll(ids);
+            }
+            for (String holdingId : attachedIds)
+            {
+                if (holdings.containsKey(holdingId))
+                    record.holdings.add(holdings.get(holdingId));
+            }
+        }
+    }
+
+    private static void attachAuths(List<Record> bibRecords, Attached attached)
+    {
+        Map<Record, Set<String>> refsByRecord = new HashMap<>();
+        Set<String> allRefs = new HashSet<>();
+        for (Record record : bibRecords)
+        {
+            Set<String> allRecordRefs = JsonLd.getAllReferences(record.document.data);
+            Set<String> refs = new LinkedHashSet<>();
+            for (String ref : allRecordRefs)
+            {
+                if (ref.startsWith("https://id.kb.se/") || ref.startsWith(Document.getBASE_URI().toString()))
+                    refs.add(ref);
+            }
+            refsByRecord.put(record, refs);
+            allRefs.addAll(refs);
+        }
+
+        Map<String, Tuple2<String, String>> idsAndCollections = OaiPmh.s_whelk.getStorage().getIdAndCollectionByIris(allRefs);
+        Set<String> authIds = new HashSet<>();
+        for (Tuple2<String, String> idAndCollection : idsAndCollections.values())
+        {
+            if ("auth".equals(idAndCollection.getSecond()))
+                authIds.add(idAndCollection.getFirst());
+        }
+
+        Map<String, OaiPmhPayload> cached = attached.load(authIds);
+        Map<String, Document> auths = OaiPmh.s_whelk.getStorage().loadEmbellishedByIds(authIds, OaiPmh.s_whelk.getJsonld());
+        attached.convert(auths, cached);
+        for (Record record : bibRecords)
+        {
+            record.auths = new ArrayList<>();
+            for (String ref : refsByRecord.get(record))
+            {
+                Tuple2<String, String> idAndCollection = idsAndCollections.get(ref);
+                if (idAndCollection == null || !"auth".equals(idAndCollection.getSecond()))
+                    continue;
+                Document auth = auths.get(idAndCollection.getFirst());
+                if (auth != null)
+                    record.auths.add(auth);
+            }
+        }
+    }
+
+    private static List<OaiPmhPayload> withData(List<OaiPmhPayload> payloads)
+    {
+        List<OaiPmhPayload> result = new ArrayList<>();
+        for (OaiPmhPayload payload : payloads)
+        {
+            if (payload.getData() != null)
+                result.add(payload);
+        }
+        return result;
+    }
+
+    private static List<String> getIds(List<Record> records)
+    {
+        List<String> ids = new ArrayList<>();
+        for (Record record : records)
+            ids.add(record.id);
+        return ids;
+    }
+}
@@ -0,0 +1,57 @@
+package whelk.export.servlet;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+/**
+ * What Identify tells about the repository, kept in memory since harvesters ask for it at the start of every harvest.
+ *
+ * The earliest datestamp is looked up again when it was last looked up more than REFRESH_INTERVAL_MS ago. It only
+ * changes when the earliest modified records are modified again, so it is rarely more than an hour too early (which
+ * is harmless, it is a lower bound).
+ */
+public class RepositoryInfo
+{
+    public final static String GRANULARITY = "YYYY-MM-DDThh:mm:ssZ";
+    public final static String DELETED_RECORD = "persistent";
+
+    private final static long REFRESH_INTERVAL_MS = 60 * 60 * 1000;
+
+    private static ZonedDateTime s_earliestDatestamp = null;
+    private static long s_earliestDatestampTime = 0;
+
+    public static synchronized ZonedDateTime getEarliestDatestamp()
+            throws SQLException
+    {
+        long now = System.currentTimeMillis();
+        if (s_earliestDatestamp == null || now - s_earliestDatestampTime > REFRESH_INTERVAL_MS)
+        {
+            s_earliestDatestamp = loadEarliestDatestamp();
+            s_earliestDatestampTime = now;
+        }
+        return s_earliestDatestamp;
+    }
+
+    private static ZonedDateTime loadEarliestDatestamp()
+            throws SQLException
+    {
+        // Deleted records may have been purged from lddb, leaving tombstones older than any remaining record
+        // (LEAST ignores a NULL, from an empty table)
+        String sql = "SELECT LEAST((SELECT MIN(modified) FROM lddb), " +
+                "(SELECT MIN(modified) FROM lddb__oaipmh_tombstones)) AS earliest";
+        try (Connection dbconn = OaiPmh.s_whelk.getStorage().getConnection();
+             PreparedStatement preparedStatement = dbconn.prepareStatement(sql);
+             ResultSet resultSet = preparedStatement.executeQuery())
+        {
+            Timestamp earliest = resultSet.next() ? resultSet.getTimestamp("earliest") : null;
+            if (earliest == null)
+                return ZonedDateTime.now(ZoneOffset.UTC);
+            return ZonedDateTime.ofInstant(earliest.toInstant(), ZoneOffset.UTC);
+        }
+    }
+}
@@ -1,10 +1,10 @@
 package whelk.export.servlet;
 
-import org.codehaus.jackson.map.ObjectMapper;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import whelk.Document;
 import whelk.JsonLd;
+import whelk.converter.XmlStreamConverter;
 import whelk.util.LegacyIntegrationTools;
 
 import javax.servlet.http.HttpServletRequest;
@@ -12,20 +12,16 @@ import javax.servlet.http.HttpServletResponse;
 import javax.xml.stream.*;
 import java.io.IOException;
 import java.io.StringReader;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import org.apache.cxf.staxutils.StaxUtils;
+import org.codehaus.stax2.XMLStreamWriter2;
 
 public class ResponseCommon
 {
     private static final Logger logger = LogManager.getLogger(ResponseCommon.class);
-    private static final ObjectMapper mapper = new ObjectMapper();
     private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
 
     /**
@@ -113,6 +109,25 @@ public class ResponseCommon
     {
         OaiPmh.FormatDescription formatDescription = OaiPmh.supportedFormats.get(formatPrefix);
 
+        // Converters that can write to the response directly do so, instead of handing over a string to be parsed.
+        if (formatDescription.converter instanceof XmlStreamConverter)
+        {
+            try
+            {
+                ((XmlStreamConverter) formatDescription.converter).convertTo(jsonLDdoc.data, jsonLDdoc.getShortId(), writer);
+            }
+            catch (XMLStreamException e)
+            {
+                throw e;
+            }
+            catch (Exception | Error e) // Depending on the converter, a variety of problems may arise here
+            {
+                writer.writeCharacters("Error: Document conversion failed.");
+                logger.error("Conversion failed for document: " + jsonLDdoc.getShortId(), e);
+            }
+            return;
+        }
+
         // Convert if the format has a converter (otherwise assume jsonld)
         String convertedText = null;
         if (formatDescription.converter != null)
@@ -138,42 +153,91 @@ public class ResponseCommon
             writer.writeCData(convertedText);
     }
 
-    public static void emitRecord(ResultSet resultSet, XMLStreamWriter writer, String requestedFormat,
-                                  boolean onlyIdentifiers, boolean embellish, boolean withDeletedData)
-            throws SQLException, XMLStreamException, IOException
+    /**
+     * Write a payload (an XML fragment) from RecordAssembler, as it is if the writer allows it. Waits for it to be
+     * converted first, if needed.
+     */
+    private static void writePayload(XMLStreamWriter writer, CompletableFuture<String> conversion)
+            throws XMLStreamException
+    {
+        String payload = ConversionPipeline.await(conversion);
+        if (payload == null)
+            writer.writeCharacters("Error: Document conversion failed.");
+        else if (writer instanceof XMLStreamWriter2)
+            ((XMLStreamWriter2) writer).writeRaw(payload);
+        else
+            StaxUtils.copy(xmlInputFactory.createXMLStreamReader(new StringReader(payload)), writer);
+    }
+
+    /**
+     * Emit a record, assembled with RecordAssembler.assemble().
+     */
+    public static void emitRecord(RecordAssembler.Record record, XMLStreamWriter writer, String requestedFormat,
+                                  boolean withDeletedData)
+            throws XMLStreamException, IOException
     {
-        boolean deleted = resultSet.getBoolean("deleted");
-        String sigel = resultSet.getString("sigel");
-        if (sigel != null)
-            sigel = LegacyIntegrationTools.uriToLegacySigel( resultSet.getString("sigel").replace("\"", "") );
+        Document document = record.document;
+
+        writer.writeStartElement("record");
 
-        String data = resultSet.getString("data");
-        HashMap datamap = mapper.readValue(data, HashMap.class);
-        Document document = new Document(datamap);
+        String identifier = document != null
+                ? document.getURI().toString()
+                : Document.getBASE_URI().resolve(record.id).toString();
+        writeHeader(record, writer, identifier);
 
-        if (embellish)
+        // A deleted record that has been purged has no data left to send
+        if ((!record.deleted || withDeletedData) && document != null)
         {
-            document = OaiPmh.s_whelk.getStorage().loadEmbellished(document.getShortId(), OaiPmh.s_whelk.getJsonld());
+            writer.writeStartElement("metadata");
+            if (record.payload != null)
+                writePayload(writer, record.payload);
+            else
+                ResponseCommon.writeConvertedDocument(writer, requestedFormat, document);
+            writer.writeEndElement(); // metadata
         }
 
-        if (!onlyIdentifiers)
-            writer.writeStartElement("record");
+        if (requestedFormat.contains(OaiPmh.FORMAT_INCLUDE_HOLD_POSTFIX) && record.collection.equals("bib") && document != null)
+        {
+            emitAttachedRecords(record, writer, requestedFormat);
+        }
+
+        writeAbout(record, writer);
+
+        writer.writeEndElement(); // record
+    }
+
+    /**
+     * Emit a ListIdentifiers entry for a row selected with Helpers.getMatchingHeadersStatement (which has no data).
+     */
+    public static void emitIdentifier(RecordAssembler.Record record, XMLStreamWriter writer)
+            throws XMLStreamException
+    {
+        writeHeader(record, writer, Document.getBASE_URI().resolve(record.id).toString());
+        writeAbout(record, writer);
+    }
+
+    private static void writeHeader(RecordAssembler.Record record, XMLStreamWriter writer, String identifier)
+            throws XMLStreamException
+    {
+        String sigel = record.sigel;
+        if (sigel != null)
+            sigel = LegacyIntegrationTools.uriToLegacySigel( sigel.replace("\"", "") );
 
         writer.writeStartElement("header");
 
-        if (deleted)
+        if (record.deleted)
             writer.writeAttribute("status", "deleted");
 
         writer.writeStartElement("identifier");
-        writer.writeCharacters(document.getURI().toString());
+        writer.writeCharacters(identifier);
         writer.writeEndElement(); // identifier
 
         writer.writeStartElement("datestamp");
-        ZonedDateTime modified = ZonedDateTime.ofInstant(resultSet.getTimestamp("modified").toInstant(), ZoneOffset.UTC);
+        ZonedDateTime modified = ZonedDateTime.ofInstant(record.modified.toInstant(), ZoneOffset.UTC);
         writer.writeCharacters(modified.toString());
         writer.writeEndElement(); // datestamp
 
-        String dataset = resultSet.getString("collection");
+        String dataset = record.collection;
         if (dataset != null)
         {
             writer.writeStartElement("setSpec");
@@ -189,58 +253,41 @@ public class ResponseCommon
         }
 
         writer.writeEndElement(); // header
+    }
 
-        if (!onlyIdentifiers && (!deleted || withDeletedData))
-        {
-            writer.writeStartElement("metadata");
-            ResponseCommon.writeConvertedDocument(writer, requestedFormat, document);
-            writer.writeEndElement(); // metadata
-        }
+    /**
+     * Warning: There is a bug here in that <about> should not be visible for ListIdentifiers at all,
+     * and certainly not as a sibling of header (which makes it relate to nothing at all),
+     * but the export-program along with its modified websök-loading routine now expects this.
+     * And so, this must remain broken for the moment being.
+     */
+    private static void writeAbout(RecordAssembler.Record record, XMLStreamWriter writer)
+            throws XMLStreamException
+    {
+        writer.writeStartElement("about");
 
-        if (!onlyIdentifiers && requestedFormat.contains(OaiPmh.FORMAT_INCLUDE_HOLD_POSTFIX) && dataset.equals("bib"))
-        {
-            emitAttachedRecords(document, writer, requestedFormat);
+        if (record.collection.equals("hold") && record.itemOf != null) {
+            writer.writeStartElement("itemOf");
+            writer.writeAttribute("id", record.itemOf);
+            writer.writeEndElement(); // itemOf
         }
 
-        /**
-         * Warning: There is a bug here in that <about> should not be visible for ListIdentifiers at all,
-         * and certainly not as a sibling of header (which makes it relate to nothing at all),
-         * but the export-program along with its modified websök-loading routine now expects this.
-         * And so, this must remain broken for the moment being.
-         */
-
-        //if (!onlyIdentifiers) {
-            writer.writeStartElement("about");
-
-            String itemOf = resultSet.getString("itemOf");
-            if (dataset.equals("hold") && itemOf != null) {
-                writer.writeStartElement("itemOf");
-                writer.writeAttribute("id", itemOf);
-                writer.writeEndElement(); // itemOf
-            }
-
-            String changedBy = resultSet.getString("changedBy");
-            if (changedBy == null)
-                changedBy = "unknown";
-
-            writer.writeStartElement("agent");
-            writer.writeAttribute("name", changedBy);
-            writer.writeEndElement(); // agent
-
-            writer.writeEndElement(); // about
+        String changedBy = record.changedBy;
+        if (changedBy == null)
+            changedBy = "unknown";
 
+        writer.writeStartElement("agent");
+        writer.writeAttribute("name", changedBy);
+        writer.writeEndElement(); // agent
 
-        if (!onlyIdentifiers)
-            writer.writeEndElement(); // record
-        //}
+        writer.writeEndElement(); // about
     }
 
-    private static void emitAttachedRecords(Document rootDocument, XMLStreamWriter writer, String requestedFormat)
-            throws SQLException, XMLStreamException, IOException
+    private static void emitAttachedRecords(RecordAssembler.Record record, XMLStreamWriter writer, String requestedFormat)
+            throws XMLStreamException, IOException
     {
-        List<Document> holdings = OaiPmh.s_whelk.getStorage().getAttachedHoldings(rootDocument.getThingIdentifiers(), OaiPmh.s_whelk.getJsonld());
         writer.writeStartElement("about");
-        for (Document holding : holdings)
+        for (Document holding : record.holdings)
         {
             String sigel = holding.getSigel();
             if (sigel == null)
@@ -252,29 +299,29 @@ public class ResponseCommon
             writer.writeStartElement("holding");
             writer.writeAttribute("sigel", sigel);
             writer.writeAttribute("id", holding.getShortId());
-            ResponseCommon.writeConvertedDocument(writer, requestedFormat, holding);
+            writeAttachedDocument(record, writer, requestedFormat, holding);
             writer.writeEndElement(); // holding
         }
 
-        Set<String> refs = JsonLd.getAllReferences(rootDocument.data);
-        for (String ref : refs)
+        for (Document auth : record.auths)
         {
-            if (ref.startsWith("https://id.kb.se/") || ref.startsWith(Document.getBASE_URI().toString()))
-            {
-                String systemID = OaiPmh.s_whelk.getStorage().getSystemIdByIri(ref);
-                if (systemID == null)
-                    continue;
-                if (!OaiPmh.s_whelk.getStorage().getCollectionBySystemID(systemID).equals("auth"))
-                    continue;
-                Document auth = OaiPmh.s_whelk.getStorage().loadEmbellished(systemID, OaiPmh.s_whelk.getJsonld());
-
-                writer.writeStartElement("auth");
-                writer.writeAttribute("id", auth.getShortId());
-                ResponseCommon.writeConvertedDocument(writer, requestedFormat, auth);
-                writer.writeEndElement(); // auth
-            }
+            writer.writeStartElement("auth");
+            writer.writeAttribute("id", auth.getShortId());
+            writeAttachedDocument(record, writer, requestedFormat, auth);
+            writer.writeEndElement(); // auth
         }
 
         writer.writeEndElement(); // about
     }
+
+    private static void writeAttachedDocument(RecordAssembler.Record record, XMLStreamWriter writer, String requestedFormat,
+                                              Document attached)
+            throws XMLStreamException, IOException
+    {
+        CompletableFuture<String> payload = record.attachedPayloads.get(attached.getShortId());
+        if (payload != null)
+            writePayload(writer, payload);
+        else
+            ResponseCommon.writeConvertedDocument(writer, requestedFormat, attached);
+    }
 }
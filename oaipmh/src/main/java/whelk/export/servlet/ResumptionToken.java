@@ -0,0 +1,105 @@
+package whelk.export.servlet;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A resumption token, as handed out with each incomplete ListRecords/ListIdentifiers response.
+ *
+ * The token holds the arguments of the original request and the position to continue from: the datestamp and id
+ * of the last record sent (records are sent in datestamp, id order). Nothing is kept on the server, so a harvest can
+ * be resumed at any time (before the token expires) and on any instance.
+ */
+public class ResumptionToken
+{
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    public final String metadataPrefix;
+    public final String from;
+    public final String until;
+    public final String set;
+    public final boolean withDeletedData;
+    public final Instant lastModified;
+    public final String lastId;
+    public final Instant expiration;
+
+    public ResumptionToken(String metadataPrefix, String from, String until, String set, boolean withDeletedData,
+                           Instant lastModified, String lastId, Instant expiration)
+    {
+        this.metadataPrefix = metadataPrefix;
+        this.from = from;
+        this.until = until;
+        this.set = set;
+        this.withDeletedData = withDeletedData;
+        this.lastModified = lastModified;
+        this.lastId = lastId;
+        this.expiration = expiration;
+    }
+
+    public boolean isExpired()
+    {
+        return Instant.now().isAfter(expiration);
+    }
+
+    /**
+     * The expiration as an OAI-PMH UTCdatetime, always with seconds (unlike ZonedDateTime.toString).
+     */
+    public String getExpirationDate()
+    {
+        return DateTimeFormatter.ISO_INSTANT.format(expiration.truncatedTo(ChronoUnit.SECONDS));
+    }
+
+    public String encode()
+    {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("p", metadataPrefix);
+        fields.put("f", from);
+        fields.put("u", until);
+        fields.put("s", set);
+        fields.put("d", withDeletedData);
+        fields.put("m", lastModified.toString());
+        fields.put("i", lastId);
+        fields.put("e", expiration.toString());
+        try
+        {
+            byte[] json = mapper.writeValueAsBytes(fields);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(json);
+        } catch (Exception e)
+        {
+            throw new RuntimeException("Could not encode resumption token.", e);
+        }
+    }
+
+    /**
+     * Returns null if the token is not one handed out by encode().
+     */
+    public static ResumptionToken decode(String token)
+    {
+        try
+        {
+            String json = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            Map fields = mapper.readValue(json, Map.class);
+            if (fields.get("p") == null || fields.get("m") == null || fields.get("i") == null || fields.get("e") == null)
+                return null;
+            return new ResumptionToken(
+                    (String) fields.get("p"),
+                    (String) fields.get("f"),
+                    (String) fields.get("u"),
+                    (String) fields.get("s"),
+                    Boolean.TRUE.equals(fields.get("d")),
+                    Instant.parse((String) fields.get("m")),
+                    (String) fields.get("i"),
+                    Instant.parse((String) fields.get("e")));
+        } catch (Exception e)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package whelk.export.servlet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.zip.GZIPInputStream;
+
+public class CompressedResponseTest
+{
+    @Test
+    public void testAcceptedEncoding() throws Exception
+    {
+        Assert.assertNull(CompressedResponse.getAcceptedEncoding(null));
+        Assert.assertNull(CompressedResponse.getAcceptedEncoding(""));
+        Assert.assertNull(CompressedResponse.getAcceptedEncoding("identity, br"));
+        Assert.assertEquals("gzip", CompressedResponse.getAcceptedEncoding("gzip"));
+        Assert.assertEquals("gzip", CompressedResponse.getAcceptedEncoding("x-gzip"));
+        Assert.assertEquals("gzip", CompressedResponse.getAcceptedEncoding(" GZip ;q=0.5"));
+        Assert.assertEquals("deflate", CompressedResponse.getAcceptedEncoding("deflate"));
+    }
+
+    @Test
+    public void testGzipPreferred() throws Exception
+    {
+        Assert.assertEquals("gzip", CompressedResponse.getAcceptedEncoding("deflate, gzip"));
+        Assert.assertEquals("gzip", CompressedResponse.getAcceptedEncoding("deflate;q=1.0, gzip;q=0.1"));
+    }
+
+    @Test
+    public void testRejected() throws Exception
+    {
+        Assert.assertNull(CompressedResponse.getAcceptedEncoding("gzip;q=0"));
+        Assert.assertNull(CompressedResponse.getAcceptedEncoding("gzip; q=0.000, deflate;q=0"));
+        Assert.assertEquals("deflate", CompressedResponse.getAcceptedEncoding("gzip;q=0, deflate"));
+        Assert.assertEquals("deflate", CompressedResponse.getAcceptedEncoding("x-gzip;q=0, deflate;q=0.2"));
+        // An unreadable q-value is taken as a rejection
+        Assert.assertNull(CompressedResponse.getAcceptedEncoding("gzip;q=high"));
+    }
+
+    @Test
+    public void testWildcardNotCompressed() throws Exception
+    {
+        // Only the codings named are used, a response without one is still acceptable
+        Assert.assertNull(CompressedResponse.getAcceptedEncoding("*"));
+    }
+
+    @Test
+    public void testCompressedBody() throws Exception
+    {
+        Map<String, String> headers = new HashMap<>();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        HttpServletResponse response = CompressedResponse.wrap(request("gzip"), response(headers, body));
+        response.getWriter().write("<OAI-PMH/>");
+        ((CompressedResponse) response).finish();
+
+        Assert.assertEquals("gzip", headers.get("Content-Encoding"));
+        Assert.assertEquals("Accept-Encoding", headers.get("Vary"));
+        Scanner scanner = new Scanner(new GZIPInputStream(new ByteArrayInputStream(body.toByteArray())), "UTF-8");
+        Assert.assertEquals("<OAI-PMH/>", scanner.useDelimiter("\\A").next());
+    }
+
+    @Test
+    public void testNotWrappedWithoutAcceptedEncoding() throws Exception
+    {
+        Map<String, String> headers = new HashMap<>();
+        HttpServletResponse original = response(headers, new ByteArrayOutputStream());
+
+        Assert.assertSame(original, CompressedResponse.wrap(request("identity"), original));
+        Assert.assertEquals("Accept-Encoding", headers.get("Vary"));
+    }
+
+    private static HttpServletRequest request(String acceptEncoding)
+    {
+        return (HttpServletRequest) Proxy.newProxyInstance(CompressedResponseTest.class.getClassLoader(),
+                new Class[]{HttpServletRequest.class}, (proxy, method, args) ->
+                {
+                    if (method.getName().equals("getHeader") && args[0].equals("Accept-Encoding"))
+                        return acceptEncoding;
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    private static HttpServletResponse response(Map<String, String> headers, ByteArrayOutputStream body)
+    {
+        ServletOutputStream outputStream = new ServletOutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+                body.write(b);
+            }
+
+            @Override
+            public boolean isReady()
+            {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener)
+            {
+            }
+        };
+        return (HttpServletResponse) Proxy.newProxyInstance(CompressedResponseTest.class.getClassLoader(),
+                new Class[]{HttpServletResponse.class}, (proxy, method, args) ->
+                {
+                    switch (method.getName())
+                    {
+                        case "addHeader":
+                        case "setHeader":
+                            headers.put((String) args[0], (String) args[1]);
+                            return null;
+                        case "getOutputStream":
+                            return outputStream;
+                        case "getCharacterEncoding":
+                            return StandardCharsets.UTF_8.name();
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,142 @@
+package whelk.export.servlet;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import whelk.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+public class ConversionPipelineTest
+{
+    private static final int THREAD_COUNT = 8;
+
+    @BeforeClass
+    public static void setUp()
+    {
+        ConversionPipeline.configure(THREAD_COUNT);
+    }
+
+    @Test
+    public void testOrderKept() throws Exception
+    {
+        // The first conversions take the longest, so that they finish last
+        ConversionPipeline pipeline = new ConversionPipeline(4, (document, format) -> {
+            sleep(50 - 2 * Integer.parseInt(format));
+            return "<record" + format + "/>";
+        });
+
+        List<CompletableFuture<String>> conversions = new ArrayList<>();
+        for (int i = 0; i < 20; ++i)
+            conversions.add(pipeline.submit(null, Integer.toString(i)));
+
+        for (int i = 0; i < 20; ++i)
+            Assert.assertEquals("<record" + i + "/>", ConversionPipeline.await(conversions.get(i)));
+    }
+
+    @Test
+    public void testMaxConcurrentPerPipeline() throws Exception
+    {
+        AtomicInteger maxRunningA = new AtomicInteger();
+        AtomicInteger maxRunningB = new AtomicInteger();
+        ConversionPipeline a = new ConversionPipeline(2, countingConverter(maxRunningA));
+        ConversionPipeline b = new ConversionPipeline(3, countingConverter(maxRunningB));
+
+        List<CompletableFuture<String>> conversions = new ArrayList<>();
+        for (int i = 0; i < 20; ++i)
+        {
+            conversions.add(a.submit(null, "a"));
+            conversions.add(b.submit(null, "b"));
+        }
+        CompletableFuture.allOf(conversions.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+
+        Assert.assertEquals(2, maxRunningA.get());
+        Assert.assertEquals(3, maxRunningB.get());
+    }
+
+    @Test
+    public void testFailedConversion() throws Exception
+    {
+        ConversionPipeline pipeline = new ConversionPipeline(1, (document, format) -> {
+            throw new IllegalStateException("Broken record");
+        });
+
+        Assert.assertNull(ConversionPipeline.await(pipeline.submit(null, "marcxml")));
+        // The failure must not have used up the one conversion allowed at a time
+        Assert.assertNull(ConversionPipeline.await(pipeline.submit(null, "marcxml")));
+    }
+
+    @Test
+    public void testCancel() throws Exception
+    {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger converted = new AtomicInteger();
+        ConversionPipeline pipeline = new ConversionPipeline(1, (document, format) -> {
+            started.countDown();
+            await(release);
+            converted.incrementAndGet();
+            return "<" + format + "/>";
+        });
+
+        List<CompletableFuture<String>> conversions = new ArrayList<>();
+        for (int i = 0; i < 5; ++i)
+            conversions.add(pipeline.submit(null, "record" + i));
+        await(started);
+        pipeline.cancel();
+
+        // The queued conversions are dropped at once, the running one is left to finish
+        for (int i = 1; i < 5; ++i)
+        {
+            Assert.assertTrue(conversions.get(i).isDone());
+            Assert.assertNull(ConversionPipeline.await(conversions.get(i)));
+        }
+        Assert.assertFalse(conversions.get(0).isDone());
+        release.countDown();
+        Assert.assertEquals("<record0/>", ConversionPipeline.await(conversions.get(0)));
+
+        Assert.assertNull(ConversionPipeline.await(pipeline.submit(null, "record5")));
+        Assert.assertEquals(1, converted.get());
+    }
+
+    private static BiFunction<Document, String, String> countingConverter(AtomicInteger maxRunning)
+    {
+        AtomicInteger running = new AtomicInteger();
+        return (document, format) -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            sleep(10);
+            running.decrementAndGet();
+            return "<" + format + "/>";
+        };
+    }
+
+    private static void sleep(long millis)
+    {
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void await(CountDownLatch latch)
+    {
+        try
+        {
+            Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        }
+        catch (InterruptedException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package whelk.export.servlet;
+
+import org.junit.Assert;
+import org.junit.Test;
+import whelk.Document;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+
+public class GetRecordTest
+{
+    private static final Instant MODIFIED = Instant.parse("2017-06-01T12:34:56.789Z");
+    private static final Instant DEP_MAX_MODIFIED = Instant.parse("2017-06-02T08:00:00.123Z");
+    private static final String ETAG = "W/\"" + Long.toString(MODIFIED.toEpochMilli(), 36) + "-marcxml\"";
+
+    private final Map<String, String> requestHeaders = new HashMap<>();
+    private final Map<String, Object> responseHeaders = new HashMap<>();
+    private int status = HttpServletResponse.SC_OK;
+
+    @Test
+    public void testValidators() throws Exception
+    {
+        Assert.assertFalse(respondNotModified("marcxml", false));
+
+        Assert.assertEquals(ETAG, responseHeaders.get("ETag"));
+        Assert.assertEquals(MODIFIED.toEpochMilli(), responseHeaders.get("Last-Modified"));
+        Assert.assertEquals(HttpServletResponse.SC_OK, status);
+    }
+
+    @Test
+    public void testValidatorsDifferByFormatAndDeletedData() throws Exception
+    {
+        respondNotModified("jsonld", true);
+
+        Assert.assertEquals("W/\"" + Long.toString(MODIFIED.toEpochMilli(), 36) + "-jsonld-d\"", responseHeaders.get("ETag"));
+    }
+
+    @Test
+    public void testExpandedDependsOnDependencies() throws Exception
+    {
+        requestHeaders.put("If-Modified-Since", httpDate(MODIFIED));
+
+        Assert.assertFalse(respondNotModified("marcxml_expanded", false));
+
+        Assert.assertEquals("W/\"" + Long.toString(MODIFIED.toEpochMilli(), 36) + "-" +
+                Long.toString(DEP_MAX_MODIFIED.toEpochMilli(), 36) + "-marcxml_expanded\"", responseHeaders.get("ETag"));
+        Assert.assertEquals(DEP_MAX_MODIFIED.toEpochMilli(), responseHeaders.get("Last-Modified"));
+    }
+
+    @Test
+    public void testIncludeHoldHasNoValidators() throws Exception
+    {
+        requestHeaders.put("If-None-Match", "*");
+
+        Assert.assertFalse(respondNotModified("marcxml_includehold", false));
+
+        Assert.assertTrue(responseHeaders.isEmpty());
+        Assert.assertEquals(HttpServletResponse.SC_OK, status);
+    }
+
+    @Test
+    public void testWeakETagMatches() throws Exception
+    {
+        requestHeaders.put("If-None-Match", ETAG);
+
+        Assert.assertTrue(respondNotModified("marcxml", false));
+        Assert.assertEquals(HttpServletResponse.SC_NOT_MODIFIED, status);
+    }
+
+    @Test
+    public void testStrongETagMatchesWeakly() throws Exception
+    {
+        // If-None-Match uses the weak comparison, a client may have dropped the W/
+        requestHeaders.put("If-None-Match", "\"other\", " + ETAG.substring(2));
+
+        Assert.assertTrue(respondNotModified("marcxml", false));
+    }
+
+    @Test
+    public void testAnyETagMatches() throws Exception
+    {
+        requestHeaders.put("If-None-Match", "*");
+
+        Assert.assertTrue(respondNotModified("marcxml", false));
+    }
+
+    @Test
+    public void testOtherETagOverridesIfModifiedSince() throws Exception
+    {
+        requestHeaders.put("If-None-Match", "W/\"other\"");
+        requestHeaders.put("If-Modified-Since", httpDate(MODIFIED.plusSeconds(60)));
+
+        Assert.assertFalse(respondNotModified("marcxml", false));
+        Assert.assertEquals(HttpServletResponse.SC_OK, status);
+    }
+
+    @Test
+    public void testIfModifiedSinceSameSecond() throws Exception
+    {
+        // The HTTP date of the record has no milliseconds, but the record is no newer than it
+        requestHeaders.put("If-Modified-Since", httpDate(MODIFIED));
+
+        Assert.assertTrue(respondNotModified("marcxml", false));
+        Assert.assertEquals(HttpServletResponse.SC_NOT_MODIFIED, status);
+    }
+
+    @Test
+    public void testIfModifiedSinceEarlierSecond() throws Exception
+    {
+        requestHeaders.put("If-Modified-Since", httpDate(MODIFIED.minusSeconds(1)));
+
+        Assert.assertFalse(respondNotModified("marcxml", false));
+    }
+
+    @Test
+    public void testIfModifiedSinceGarbage() throws Exception
+    {
+        requestHeaders.put("If-Modified-Since", "yesterday");
+
+        Assert.assertFalse(respondNotModified("marcxml", false));
+    }
+
+    @Test
+    public void testETagChangesWithData() throws Exception
+    {
+        requestHeaders.put("If-None-Match", ETAG);
+
+        // A minor update keeps the modified time, but not the checksum
+        Assert.assertFalse(respondNotModified("marcxml", false, "checksum2"));
+
+        Assert.assertEquals("W/\"" + Long.toString(MODIFIED.toEpochMilli(), 36) + "-checksum2-marcxml\"",
+                responseHeaders.get("ETag"));
+        Assert.assertEquals(HttpServletResponse.SC_OK, status);
+
+        requestHeaders.put("If-None-Match", (String) responseHeaders.get("ETag"));
+
+        Assert.assertTrue(respondNotModified("marcxml", false, "checksum2"));
+    }
+
+    @Test
+    public void testIfModifiedSinceNotTrustedWithData() throws Exception
+    {
+        requestHeaders.put("If-Modified-Since", httpDate(MODIFIED.plusSeconds(60)));
+
+        Assert.assertFalse(respondNotModified("marcxml", false, "checksum2"));
+        Assert.assertEquals(HttpServletResponse.SC_OK, status);
+    }
+
+    private boolean respondNotModified(String metadataPrefix, boolean withDeletedData) throws Exception
+    {
+        return respondNotModified(metadataPrefix, withDeletedData, null);
+    }
+
+    private boolean respondNotModified(String metadataPrefix, boolean withDeletedData, String checksum) throws Exception
+    {
+        RecordAssembler.Record record = RecordAssembler.readRow(row(), false);
+        record.depMaxModified = Timestamp.from(DEP_MAX_MODIFIED);
+        if (checksum != null)
+        {
+            record.document = new Document(new HashMap<>());
+            record.checksum = checksum;
+        }
+        return GetRecord.respondNotModified(record, metadataPrefix, withDeletedData, request(), response());
+    }
+
+    private static String httpDate(Instant instant)
+    {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.ofInstant(instant, ZoneOffset.UTC));
+    }
+
+    private static ResultSet row()
+    {
+        return (ResultSet) Proxy.newProxyInstance(GetRecordTest.class.getClassLoader(), new Class[]{ResultSet.class},
+                (proxy, method, args) ->
+                {
+                    switch (method.getName())
+                    {
+                        case "getString":
+                            return args[0].equals("id") ? "abc123" : null;
+                        case "getTimestamp":
+                            return Timestamp.from(MODIFIED);
+                        case "getBoolean":
+                            return false;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private HttpServletRequest request()
+    {
+        return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{HttpServletRequest.class},
+                (proxy, method, args) ->
+                {
+                    switch (method.getName())
+                    {
+                        case "getHeader":
+                            return requestHeaders.get(args[0]);
+                        case "getDateHeader":
+                            // As a servlet container does it: -1 if missing, IllegalArgumentException if not a date
+                            String value = requestHeaders.get(args[0]);
+                            if (value == null)
+                                return -1L;
+                            try
+                            {
+                                return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                            }
+                            catch (DateTimeParseException e)
+                            {
+                                throw new IllegalArgumentException(value);
+                            }
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private HttpServletResponse response()
+    {
+        return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{HttpServletResponse.class},
+                (proxy, method, args) ->
+                {
+                    switch (method.getName())
+                    {
+                        case "setHeader":
+                        case "setDateHeader":
+                            responseHeaders.put((String) args[0], args[1]);
+                            return null;
+                        case "setStatus":
+                            status = (Integer) args[0];
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,169 @@
+package whelk.export.servlet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class HelpersTest
+{
+    private static final int PAGE_SIZE = 3;
+
+    /**
+     * The SQL and parameters of the last statement prepared through the connection from connection().
+     */
+    private String preparedSQL;
+    private List<Object> preparedParameters;
+
+    @Test
+    public void testFirstPage() throws Exception
+    {
+        Helpers.getMatchingHeadersStatement(connection(), null, null, null, false, null, null, PAGE_SIZE + 1);
+
+        Assert.assertFalse(preparedSQL.contains(") > (?, ?)"));
+        Assert.assertEquals(Arrays.asList(PAGE_SIZE + 1, PAGE_SIZE + 1, PAGE_SIZE + 1), preparedParameters);
+    }
+
+    @Test
+    public void testContinuationOfRecordsAndTombstones() throws Exception
+    {
+        Instant afterModified = Instant.parse("2017-06-01T12:34:56.123456Z");
+
+        Helpers.getMatchingHeadersStatement(connection(), null, null, null, false, afterModified, "abc123", PAGE_SIZE + 1);
+
+        Assert.assertTrue(preparedSQL.contains(" AND (lddb.modified, lddb.id) > (?, ?) "));
+        Assert.assertTrue(preparedSQL.contains(" AND (tombstones.modified, tombstones.id) > (?, ?) "));
+        Assert.assertTrue(preparedSQL.contains(" UNION ALL "));
+        Assert.assertTrue(preparedSQL.endsWith(" ORDER BY modified, id LIMIT ? "));
+        Timestamp after = Timestamp.from(afterModified);
+        Assert.assertEquals(Arrays.asList(after, "abc123", PAGE_SIZE + 1, after, "abc123", PAGE_SIZE + 1, PAGE_SIZE + 1),
+                preparedParameters);
+    }
+
+    @Test
+    public void testContinuationInSet() throws Exception
+    {
+        Instant afterModified = Instant.parse("2017-06-01T12:34:56.123456Z");
+
+        Helpers.getMatchingDocumentsStatement(connection(), null, null, new SetSpec("hold:S"), null, false, afterModified, "abc123", PAGE_SIZE + 1);
+
+        Assert.assertTrue(preparedSQL.contains(" AND (sets.modified, sets.id) > (?, ?) "));
+        Assert.assertTrue(preparedSQL.contains(" AND (tombstones.modified, tombstones.id) > (?, ?) "));
+    }
+
+    /**
+     * Page through records that mostly share one modified time, the way ListRecords does, handing the position over
+     * in an encoded token. Every record must be sent exactly once.
+     */
+    @Test
+    public void testPagingOverEqualModified() throws Exception
+    {
+        Timestamp same = Timestamp.from(Instant.parse("2017-06-01T12:34:56.123456Z"));
+        Timestamp later = Timestamp.from(Instant.parse("2017-06-01T12:34:56.123457Z"));
+        List<Row> records = Arrays.asList(new Row(same, "a"), new Row(same, "c"), new Row(same, "d"),
+                new Row(same, "f"), new Row(later, "j"), new Row(same, "h"), new Row(same, "i"));
+        List<Row> tombstones = Arrays.asList(new Row(same, "b"), new Row(same, "e"), new Row(same, "g"),
+                new Row(later, "k"));
+
+        List<Row> sent = new ArrayList<>();
+        ResumptionToken token = null;
+        do
+        {
+            Instant afterModified = token != null ? token.lastModified : null;
+            String afterId = token != null ? token.lastId : null;
+            Helpers.getMatchingHeadersStatement(connection(), null, null, null, false, afterModified, afterId, PAGE_SIZE + 1);
+            List<Row> page = execute(records, tombstones);
+
+            token = null;
+            sent.addAll(page.subList(0, Math.min(PAGE_SIZE, page.size())));
+            if (page.size() > PAGE_SIZE)
+            {
+                Row last = page.get(PAGE_SIZE - 1);
+                token = ResumptionToken.decode(new ResumptionToken("marcxml", null, null, null, false,
+                        last.modified.toInstant(), last.id, Instant.now().plus(1, ChronoUnit.HOURS)).encode());
+            }
+        } while (token != null);
+
+        List<Row> expected = new ArrayList<>(records);
+        expected.addAll(tombstones);
+        expected.sort(Row.ORDER);
+        Assert.assertEquals(expected.toString(), sent.toString());
+    }
+
+    /**
+     * Run the last prepared statement as PostgreSQL would: each side of the UNION ALL is filtered on
+     * (modified, id) > (?, ?), ordered and limited, and so is the merged result.
+     */
+    private List<Row> execute(List<Row> records, List<Row> tombstones)
+    {
+        boolean continued = preparedParameters.size() == 7;
+        Timestamp afterModified = continued ? (Timestamp) preparedParameters.get(0) : null;
+        String afterId = continued ? (String) preparedParameters.get(1) : null;
+        int limit = (Integer) preparedParameters.get(preparedParameters.size() - 1);
+
+        List<Row> merged = new ArrayList<>();
+        merged.addAll(select(records, afterModified, afterId, limit));
+        merged.addAll(select(tombstones, afterModified, afterId, limit));
+        return select(merged, null, null, limit);
+    }
+
+    private static List<Row> select(List<Row> rows, Timestamp afterModified, String afterId, int limit)
+    {
+        Row after = afterModified != null ? new Row(afterModified, afterId) : null;
+        return rows.stream()
+                .filter(row -> after == null || Row.ORDER.compare(row, after) > 0)
+                .sorted(Row.ORDER)
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    private Connection connection()
+    {
+        preparedSQL = null;
+        preparedParameters = new ArrayList<>();
+        PreparedStatement statement = (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{PreparedStatement.class}, (proxy, method, args) ->
+                {
+                    if (method.getName().equals("setObject"))
+                        preparedParameters.add((Integer) args[0] - 1, args[1]);
+                    return null;
+                });
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{Connection.class}, (proxy, method, args) ->
+                {
+                    if (method.getName().equals("prepareStatement"))
+                        preparedSQL = (String) args[0];
+                    return statement;
+                });
+    }
+
+    private static class Row
+    {
+        static final Comparator<Row> ORDER = Comparator.comparing((Row row) -> row.modified).thenComparing(row -> row.id);
+
+        final Timestamp modified;
+        final String id;
+
+        Row(Timestamp modified, String id)
+        {
+            this.modified = modified;
+            this.id = id;
+        }
+
+        @Override
+        public String toString()
+        {
+            return modified.toInstant() + " " + id;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package whelk.export.servlet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Base64;
+
+public class ResumptionTokenTest
+{
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        // Postgres timestamps have microseconds, which must survive for the next page to start at the right row
+        Instant lastModified = Instant.parse("2017-06-01T12:34:56.123456Z");
+        Instant expiration = Instant.now().truncatedTo(ChronoUnit.SECONDS).plus(1, ChronoUnit.HOURS);
+        ResumptionToken token = new ResumptionToken("marcxml", "2017-01-01", "2017-12-31T00:00:00Z", "hold:S", true,
+                lastModified, "abc123", expiration);
+
+        ResumptionToken decoded = ResumptionToken.decode(token.encode());
+
+        Assert.assertNotNull(decoded);
+        Assert.assertEquals("marcxml", decoded.metadataPrefix);
+        Assert.assertEquals("2017-01-01", decoded.from);
+        Assert.assertEquals("2017-12-31T00:00:00Z", decoded.until);
+        Assert.assertEquals("hold:S", decoded.set);
+        Assert.assertTrue(decoded.withDeletedData);
+        Assert.assertEquals(lastModified, decoded.lastModified);
+        Assert.assertEquals("abc123", decoded.lastId);
+        Assert.assertEquals(expiration, decoded.expiration);
+        Assert.assertFalse(decoded.isExpired());
+    }
+
+    @Test
+    public void testRoundTripWithoutOptionalArguments() throws Exception
+    {
+        ResumptionToken token = new ResumptionToken("jsonld", null, null, null, false,
+                Instant.parse("2017-06-01T12:34:56Z"), "abc123", Instant.now().plus(1, ChronoUnit.HOURS));
+
+        ResumptionToken decoded = ResumptionToken.decode(token.encode());
+
+        Assert.assertNotNull(decoded);
+        Assert.assertNull(decoded.from);
+        Assert.assertNull(decoded.until);
+        Assert.assertNull(decoded.set);
+        Assert.assertFalse(decoded.withDeletedData);
+    }
+
+    @Test
+    public void testUrlSafe() throws Exception
+    {
+        ResumptionToken token = new ResumptionToken("marcxml", null, null, "bib:???>>>", false,
+                Instant.parse("2017-06-01T12:34:56Z"), "abc123", Instant.now().plus(1, ChronoUnit.HOURS));
+
+        Assert.assertTrue(token.encode().matches("[A-Za-z0-9_-]+"));
+    }
+
+    @Test
+    public void testExpirationDate() throws Exception
+    {
+        ResumptionToken token = new ResumptionToken("marcxml", null, null, null, false,
+                Instant.parse("2017-06-01T12:34:56Z"), "abc123", Instant.parse("2026-10-21T17:00:00.250Z"));
+
+        // An OAI-PMH UTCdatetime has seconds, even when they are zero
+        Assert.assertEquals("2026-10-21T17:00:00Z", token.getExpirationDate());
+    }
+
+    @Test
+    public void testExpired() throws Exception
+    {
+        ResumptionToken token = new ResumptionToken("marcxml", null, null, null, false,
+                Instant.parse("2017-06-01T12:34:56Z"), "abc123", Instant.now().minus(1, ChronoUnit.SECONDS));
+
+        ResumptionToken decoded = ResumptionToken.decode(token.encode());
+
+        Assert.assertNotNull(decoded);
+        Assert.assertTrue(decoded.isExpired());
+    }
+
+    @Test
+    public void testGarbage() throws Exception
+    {
+        Assert.assertNull(ResumptionToken.decode(""));
+        Assert.assertNull(ResumptionToken.decode("not a token!"));
+        Assert.assertNull(ResumptionToken.decode(encode("not json")));
+        Assert.assertNull(ResumptionToken.decode(encode("[1, 2, 3]")));
+        // Missing the position to continue from
+        Assert.assertNull(ResumptionToken.decode(encode("{\"p\":\"marcxml\",\"e\":\"2017-06-01T12:34:56Z\"}")));
+        Assert.assertNull(ResumptionToken.decode(encode(
+                "{\"p\":\"marcxml\",\"m\":\"yesterday\",\"i\":\"abc123\",\"e\":\"2017-06-01T12:34:56Z\"}")));
+    }
+
+    private static String encode(String json)
+    {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -1,6 +1,7 @@
 package whelk.rest.api
 
 import groovy.util.logging.Log4j2 as Log
+import org.apache.commons.collections4.map.LRUMap
 
 import whelk.Document
 import whelk.JsonLd
@@ -18,6 +19,12 @@ class SearchUtils {
     final static int DEFAULT_LIMIT = 200
     final static int MAX_LIMIT = 4000
     final static int DEFAULT_OFFSET = 0
+    final static int CHIP_CACHE_SIZE = 10000
+
+    // Facet value chips of documents, keyed by IRI, system id and modified
+    // (so that changed documents are looked up again).
+    private static final Map<String, Map> chipCache =
+            Collections.synchronizedMap(new LRUMap<String, Map>(CHIP_CACHE_SIZE))
 
     enum SearchType {
         FIND_BY_RELATION,
@@ -50,6 +57,7 @@ class SearchUtils {
         String query = getReservedQueryParameter('q', queryParameters)
         String sortBy = getReservedQueryParameter('_sort', queryParameters)
         String siteBaseUri = getReservedQueryParameter('_site_base_uri', queryParameters)
+        String after = getReservedQueryParameter('_after', queryParameters)
 
         Tuple2 limitAndOffset = getLimitAndOffset(queryParameters)
         int limit = limitAndOffset.first
@@ -76,7 +84,7 @@ class SearchUtils {
                 results = queryElasticSearch(queryParameters,
                                              pageParams,
                                              dataset, siteBaseUri,
-                                             limit, offset, jsonld)
+                                             limit, offset, after, jsonld)
             } else {
                 throw new WhelkRuntimeException("ElasticSearch not configured.")
             }
@@ -166,11 +174,19 @@ class SearchUtils {
     private Map queryElasticSearch(Map queryParameters,
                                    Map pageParams,
                                    String dataset, String siteBaseUri,
-                                   int limit, int offset, JsonLd jsonld) {
+                                   int limit, int offset, String after,
+                                   JsonLd jsonld) {
         String query = pageParams['q']
         String sortBy = pageParams['_sort']
         log.debug("Querying ElasticSearch")
 
+        List searchAfter = null
+        if (after) {
+            Tuple2 offsetAndSortValues = parseAfterToken(after)
+            offset = offsetAndSortValues.first
+            searchAfter = offsetAndSortValues.second
+        }
+
         // Filter out all @types that have (more specific) subclasses that are also in the list
         // So for example [Instance, Electronic] should be reduced to just [Electronic].
         // Afterwards, include all subclasses of the remaining @types
@@ -196,7 +212,9 @@ class SearchUtils {
                 subClasses.add(type)
             }
 
-            queryParameters.put('@type', (String[]) subClasses.toArray())
+            // Deduplicated and sorted, so that the same types give the same
+            // (cacheable) filter
+            queryParameters.put('@type', (String[]) new TreeSet<String>(subClasses).toArray())
         }
 
         Map stats = null
@@ -207,6 +225,7 @@ class SearchUtils {
 
         def dslQuery = ElasticSearch.createJsonDsl(queryParameters,
                                                    limit, offset, sortBy)
+        ElasticSearch.pageAfter(dslQuery, searchAfter)
 
         // If there was an @type parameter, all subclasses of that type were added as well,
         // let's clean that up and "hide" it from the caller.
@@ -219,7 +238,8 @@ class SearchUtils {
         pageParams << mappingsAndPageParams.second
 
         if (siteBaseUri) {
-            dslQuery['query']['bool'] << makeSiteFilter(siteBaseUri)
+            Map bool = dslQuery['query']['bool']
+            bool['filter'] = (bool['filter'] ?: []) + [['bool': makeSiteFilter(siteBaseUri)]]
         }
 
         // TODO: statsTree may depend on site ({id,libris}.kb.se)
@@ -259,9 +279,16 @@ class SearchUtils {
                                                           params, offset)]
         }
 
+        String nextAfter = null
+        if (esResult['lastSortValues']) {
+            nextAfter = makeAfterToken(offset + items.size(),
+                                       esResult['lastSortValues'])
+        }
+
         Map result = assembleSearchResults(SearchType.ELASTIC,
                                            items, mappings, pageParams,
-                                           limit, offset, total)
+                                           limit, offset, total,
+                                           after, nextAfter)
 
         if (stats) {
             result['stats'] = stats
@@ -302,9 +329,11 @@ class SearchUtils {
 
     private Map assembleSearchResults(SearchType st, List items,
                                       List mappings, Map pageParams,
-                                      int limit, int offset, int total) {
+                                      int limit, int offset, int total,
+                                      String after=null,
+                                      String nextAfter=null) {
         Map result = [(JsonLd.TYPE_KEY): 'PartialCollectionView']
-        result[(JsonLd.ID_KEY)] = makeFindUrl(st, pageParams, offset)
+        result[(JsonLd.ID_KEY)] = makeFindUrl(st, pageParams, offset, after)
         result['itemOffset'] = offset
         result['itemsPerPage'] = limit
         result['totalItems'] = total
@@ -312,7 +341,7 @@ class SearchUtils {
         result['search'] = ['mapping': mappings]
 
         Map paginationLinks = makePaginationLinks(st, pageParams, limit,
-                                                  offset, total)
+                                                  offset, total, nextAfter)
         result << paginationLinks
 
         result['items'] = items
@@ -376,6 +405,14 @@ class SearchUtils {
     }
 
     private Map addSlices(Map stats, Map aggregations, String baseUrl) {
+        Set<String> itemIds = new HashSet<String>()
+        aggregations.each { key, aggregation ->
+            aggregation['buckets'].each { bucket ->
+                itemIds.add(bucket['key'])
+            }
+        }
+        Map<String, Map> chips = lookupChips(itemIds)
+
         Map sliceMap = aggregations.inject([:]) { acc, key, aggregation ->
             List observations = []
             Map sliceNode = ['dimension': key.replace(".${JsonLd.ID_KEY}", '')]
@@ -385,7 +422,7 @@ class SearchUtils {
 
                 Map observation = ['totalItems': bucket.getAt('doc_count'),
                                    'view': [(JsonLd.ID_KEY): searchPageUrl],
-                                   'object': ld.toChip(lookup(itemId))]
+                                   'object': chips[itemId]]
 
                 /*Map bucketAggs = bucket.getAggregations().asMap
 
@@ -409,19 +446,65 @@ class SearchUtils {
     }
 
     /*
-     * Read vocab item from db.
+     * Get chips for vocab items, like getVocabEntry but for all items at
+     * once (with at most two storage queries).
      *
-     * Default to dummy value if not found.
+     * Default to dummy value for items not found.
      *
      */
-    private Map lookup(String itemId) {
-        Map entry = getVocabEntry(itemId)
+    private Map<String, Map> lookupChips(Collection<String> itemIds) {
+        Map<String, Map> result = [:]
+        Map<String, List<String>> itemIdsByIri = [:]
+        for (String itemId : itemIds) {
+            def termKey = ld.toTermKey(itemId)
+            if (termKey in ld.vocabIndex) {
+                result[itemId] = ld.toChip(ld.vocabIndex[termKey])
+                continue
+            }
+            try {
+                if (vocabUri) {
+                    String fullId = vocabUri.resolve(itemId).toString()
+                    itemIdsByIri.get(fullId, []) << itemId
+                }
+            }
+            catch (IllegalArgumentException e) {
+                // Couldn't resolve, which means itemId isn't a valid IRI.
+            }
+        }
 
-        if (entry) {
-            return entry
-        } else {
-            return [(JsonLd.ID_KEY): itemId, 'label': itemId]
+        Map<String, String> cacheKeys = [:]
+        Map<String, List<String>> missedIrisById = [:]
+        whelk.storage.getIdAndModifiedByIris(itemIdsByIri.keySet()).each { iri, idAndModified ->
+            String cacheKey = "${iri} ${idAndModified.first} ${idAndModified.second.getTime()}".toString()
+            Map chip = chipCache.get(cacheKey)
+            if (chip != null) {
+                itemIdsByIri[iri].each { result[it] = chip }
+            } else {
+                cacheKeys[iri] = cacheKey
+                missedIrisById.get(idAndModified.first, []) << iri
+            }
+        }
+
+        Map<String, Map> missedData = missedIrisById ?
+                whelk.storage.loadDataByIds(missedIrisById.keySet()) : [:]
+        missedData.each { id, data ->
+            missedIrisById[id].each { iri ->
+                Map entry = getEntry(data, iri)
+                if (entry) {
+                    Map chip = ld.toChip(entry)
+                    chipCache.put(cacheKeys[iri], chip)
+                    itemIdsByIri[iri].each { result[it] = chip }
+                }
+            }
+        }
+
+        for (String itemId : itemIds) {
+            if (!(itemId in result)) {
+                result[itemId] = ld.toChip([(JsonLd.ID_KEY): itemId,
+                                            'label': itemId])
+            }
         }
+        return result
     }
 
     /*
@@ -464,8 +547,11 @@ class SearchUtils {
     /**
      * Create a URL for '/find' with the specified query parameters.
      *
+     * An '_after' token replaces the offset, since it holds one.
+     *
      */
-    String makeFindUrl(SearchType st, Map queryParameters, int offset=0) {
+    String makeFindUrl(SearchType st, Map queryParameters, int offset=0,
+                       String after=null) {
         Tuple2 initial = getInitialParamsAndKeys(st, queryParameters)
         List params = initial.first
         List keys = initial.second
@@ -483,7 +569,9 @@ class SearchUtils {
                 params << "${k}=${v}"
             }
         }
-        if (offset > 0) {
+        if (after) {
+            params << "_after=${after}"
+        } else if (offset > 0) {
             params << "_offset=${offset}"
         }
         return "/find?${params.join('&')}"
@@ -548,8 +636,16 @@ class SearchUtils {
         return new Tuple2(initialParams, keys)
     }
 
+    /**
+     * Create first, last, previous and next links for a page of results.
+     *
+     * If 'nextAfter' is given, the next link continues after the last
+     * item of this page (see makeAfterToken) instead of using an offset.
+     *
+     */
     Map makePaginationLinks(SearchType st, Map pageParams,
-                            int limit, int offset, int total) {
+                            int limit, int offset, int total,
+                            String nextAfter=null) {
         if (limit == 0) {
             // we don't have anything to paginate over
             return [:]
@@ -573,12 +669,46 @@ class SearchUtils {
 
         if (offsets.next) {
             result['next'] = [(JsonLd.ID_KEY): makeFindUrl(st, pageParams,
-                                                           offsets.next)]
+                                                           offsets.next,
+                                                           nextAfter)]
         }
 
         return result
     }
 
+    /**
+     * Create an opaque token for continuing a search after the hit with
+     * the given ES sort values, at 'offset' in the result set.
+     *
+     */
+    String makeAfterToken(int offset, List sortValues) {
+        byte[] json = JsonLd.mapper.writeValueAsBytes([offset, sortValues])
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json)
+    }
+
+    /**
+     * Parse a token made by makeAfterToken.
+     *
+     * Returns the offset and the sort values.
+     *
+     */
+    Tuple2 parseAfterToken(String token) {
+        try {
+            byte[] json = Base64.getUrlDecoder().decode(token)
+            List offsetAndSortValues = JsonLd.mapper.readValue(json, List)
+            int offset = offsetAndSortValues[0] as int
+            List sortValues = offsetAndSortValues[1] as List
+            if (offset < 0 || !sortValues) {
+                throw new IllegalArgumentException()
+            }
+            return new Tuple2(offset, sortValues)
+        } catch (Exception e) {
+            throw new InvalidQueryException(
+                "Invalid \"_after\" query parameter: ${token}"
+            )
+        }
+    }
+
     /**
      * Get limit and offset from query parameters.
      *
@@ -702,7 +832,7 @@ class SearchUtils {
      * Return a list of reserved helper params
      */
     private List getReservedAuxParameters() {
-        return ['_limit', '_offset', '_sort']
+        return ['_limit', '_offset', '_sort', '_after']
     }
 
     /*
@@ -5,6 +5,8 @@ import spock.lang.Shared
 import spock.lang.Specification
 
 import whelk.JsonLd
+import whelk.Whelk
+import whelk.component.PostgreSQLComponent
 import whelk.rest.api.SearchUtils
 import whelk.rest.api.SearchUtils.SearchType
 import whelk.exception.InvalidQueryException
@@ -104,6 +106,29 @@ class SearchUtilsSpec extends Specification {
 
     }
 
+    def "Should look up facet chips in batch, with cache"() {
+        given:
+        PostgreSQLComponent storage = GroovyMock(PostgreSQLComponent.class)
+        Whelk whelk = new Whelk()
+        whelk.storage = storage
+        SearchUtils utils = new SearchUtils(new JsonLd(['@context': ['@vocab': 'https://example.org/vocab/']], ['lensGroups': ['chips': [:]]], [:]))
+        utils.whelk = whelk
+        Date modified = new Date()
+        String iri = "https://example.org/facet-${modified.getTime()}"
+        Map data = ['@graph': [['@id': 'https://example.org/x'], ['@id': iri, 'label': 'Facet']]]
+
+        when:
+        Map first = utils.lookupChips([iri, 'https://example.org/missing'])
+        Map second = utils.lookupChips([iri])
+
+        then:
+        2 * storage.getIdAndModifiedByIris(_) >> { [(iri): new Tuple2('x', modified)] }
+        1 * storage.loadDataByIds({ it as List == ['x'] }) >> ['x': data]
+        first[iri]['label'] == 'Facet'
+        first['https://example.org/missing']['label'] == 'https://example.org/missing'
+        second[iri] == first[iri]
+    }
+
     def "Should make find URL"() {
         expect:
         assert search.makeFindUrl(type, params) == result
@@ -133,6 +158,35 @@ class SearchUtilsSpec extends Specification {
         [:]    | 10     | SearchType.ELASTIC | '/find?q=*&_offset=10'
     }
 
+    def "Should make find URL with after token instead of offset"() {
+        expect:
+        assert search.makeFindUrl(SearchType.ELASTIC, [:], 10, 'abc') == '/find?q=*&_after=abc'
+    }
+
+    def "Should parse after token"() {
+        when:
+        String token = search.makeAfterToken(40, [1.5, 'http://example.org/x#it'])
+        then:
+        assert search.parseAfterToken(token) == new Tuple2(40, [1.5, 'http://example.org/x#it'])
+    }
+
+    def "Should throw on invalid after token"() {
+        when:
+        search.parseAfterToken(token)
+        then:
+        thrown InvalidQueryException
+        where:
+        token << ['not base64!', 'e30', search.makeAfterToken(-1, ['a']), search.makeAfterToken(1, [])]
+    }
+
+    def "Should make next link with after token"() {
+        when:
+        Map links = search.makePaginationLinks(SearchType.ELASTIC, ['q': 'x'], 10, 0, 100, 'abc')
+        then:
+        assert links['next'] == ['@id': '/find?q=x&_after=abc']
+        assert links['last'] == ['@id': '/find?q=x&_offset=100']
+    }
+
     def "Should get limit and offset"() {
         expect:
         assert search.getLimitAndOffset(params) == result
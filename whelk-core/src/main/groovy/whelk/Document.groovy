@@ -1,11 +1,12 @@
 package whelk
 
+import groovy.transform.CompileStatic
 import groovy.util.logging.Log4j2 as Log
 import org.codehaus.jackson.map.ObjectMapper
+import whelk.util.CopyOnWriteData
 import whelk.util.LegacyIntegrationTools
 import whelk.util.PropertyLoader
 
-import java.lang.reflect.Type
 import java.time.ZoneId
 import java.time.ZonedDateTime
 import java.time.format.DateTimeFormatter
@@ -60,9 +61,39 @@ class Document {
     static final List generationDatePath = ["@graph", 0, "generationDate"]
     static final List descriptionCreatorPath = ["@graph", 0, "descriptionCreator", "@id"]
 
+    // Compiled versions of the paths above, used by the accessors in this class
+    private static final DocumentPath compiledThingIdPath = DocumentPath.compile(thingIdPath)
+    private static final DocumentPath compiledThingIdPath2 = DocumentPath.compile(thingIdPath2)
+    private static final DocumentPath compiledThingTypePath = DocumentPath.compile(thingTypePath)
+    private static final DocumentPath compiledThingSameAsPath = DocumentPath.compile(thingSameAsPath)
+    private static final DocumentPath compiledThingTypedIDsPath = DocumentPath.compile(thingTypedIDsPath)
+    private static final DocumentPath compiledThingIndirectTypedIDsPath = DocumentPath.compile(thingIndirectTypedIDsPath)
+    private static final DocumentPath compiledThingCarrierTypesPath = DocumentPath.compile(thingCarrierTypesPath)
+    private static final DocumentPath compiledRecordIdPath = DocumentPath.compile(recordIdPath)
+    private static final DocumentPath compiledWorkIdPath = DocumentPath.compile(workIdPath)
+    private static final DocumentPath compiledThingMetaPath = DocumentPath.compile(thingMetaPath)
+    private static final DocumentPath compiledRecordSameAsPath = DocumentPath.compile(recordSameAsPath)
+    private static final DocumentPath compiledRecordTypedIDsPath = DocumentPath.compile(recordTypedIDsPath)
+    private static final DocumentPath compiledControlNumberPath = DocumentPath.compile(controlNumberPath)
+    private static final DocumentPath compiledHoldingForPath = DocumentPath.compile(holdingForPath)
+    private static final DocumentPath compiledHeldByPath = DocumentPath.compile(heldByPath)
+    private static final DocumentPath compiledCreatedPath = DocumentPath.compile(createdPath)
+    private static final DocumentPath compiledModifiedPath = DocumentPath.compile(modifiedPath)
+    private static final DocumentPath compiledEncLevelPath = DocumentPath.compile(encLevelPath)
+    private static final DocumentPath compiledStatusPath = DocumentPath.compile(statusPath)
+    private static final DocumentPath compiledSigelPath = DocumentPath.compile(sigelPath)
+    private static final DocumentPath compiledGenerationProcessPath = DocumentPath.compile(generationProcessPath)
+    private static final DocumentPath compiledGenerationDatePath = DocumentPath.compile(generationDatePath)
+    private static final DocumentPath compiledDescriptionCreatorPath = DocumentPath.compile(descriptionCreatorPath)
+
     public Map data = [:]
     public int version = 0
 
+    // Cached result of getChecksum(), valid for as long as 'data' is the same map and has not been changed through
+    // any of the mutators in this class.
+    private String checksum = null
+    private Map checksumData = null
+
     Document(Map data) {
         this.data = data
         updateRecordStatus()
@@ -73,6 +104,18 @@ class Document {
         return new Document(clonedDate)
     }
 
+    /**
+     * Like clone(), but the copy reads through to the data of this document, and only the parts of it that are
+     * changed are copied (see CopyOnWriteData). Use this when deriving a document with a few changes from a large one.
+     *
+     * This document is left as it is, so its data must not be changed for as long as the copy is in use.
+     */
+    Document copyOnWriteClone() {
+        Document copy = new Document(CopyOnWriteData.fork(data))
+        copy.version = version
+        return copy
+    }
+
     URI getURI() {
         return BASE_URI.resolve(getShortId())
     }
@@ -81,37 +124,37 @@ class Document {
         return mapper.writeValueAsString(data)
     }
 
-    void setControlNumber(controlNumber) { set(controlNumberPath, controlNumber) }
+    void setControlNumber(controlNumber) { set(compiledControlNumberPath, controlNumber) }
 
-    String getControlNumber() { get(controlNumberPath) }
+    String getControlNumber() { get(compiledControlNumberPath) }
 
-    void setGenerationProcess(process) { set(generationProcessPath, process) }
+    void setGenerationProcess(process) { set(compiledGenerationProcessPath, process) }
 
-    String getGenerationProcess() { get(generationProcessPath) }
+    String getGenerationProcess() { get(compiledGenerationProcessPath) }
 
-    void setHoldingFor(holdingFor) { set(holdingForPath, holdingFor) }
+    void setHoldingFor(holdingFor) { set(compiledHoldingForPath, holdingFor) }
 
-    String getHoldingFor() { get(holdingForPath) }
+    String getHoldingFor() { get(compiledHoldingForPath) }
 
-    String getHeldBy() { get(heldByPath) }
+    String getHeldBy() { get(compiledHeldByPath) }
 
-    void setEncodingLevel(encLevel) { set(encLevelPath, encLevel) }
+    void setEncodingLevel(encLevel) { set(compiledEncLevelPath, encLevel) }
 
-    String getEncodingLevel() { get(encLevelPath) }
+    String getEncodingLevel() { get(compiledEncLevelPath) }
 
-    void setDescriptionCreator(creator) { set(descriptionCreatorPath, creator) }
+    void setDescriptionCreator(creator) { set(compiledDescriptionCreatorPath, creator) }
 
-    String getDescriptionCreator() { get(descriptionCreatorPath) }
+    String getDescriptionCreator() { get(compiledDescriptionCreatorPath) }
 
-    void setThingType(thingType) { set(thingTypePath, thingType) }
+    void setThingType(thingType) { set(compiledThingTypePath, thingType) }
 
-    String getThingType() { get(thingTypePath) }
+    String getThingType() { get(compiledThingTypePath) }
 
-    String getRecordStatus() { return get(statusPath) }
+    String getRecordStatus() { return get(compiledStatusPath) }
 
-    void setRecordStatus(status) { set(statusPath, status) }
+    void setRecordStatus(status) { set(compiledStatusPath, status) }
 
-    void setThingMeta(meta) { set(thingMetaPath, meta) }
+    void setThingMeta(meta) { set(compiledThingMetaPath, meta) }
 
     /**
      * Will have base URI prepended if not already there
@@ -120,7 +163,7 @@ class Document {
         if (!id.startsWith(Document.BASE_URI.toString()))
             id = Document.BASE_URI.resolve(id)
 
-        set(recordIdPath, id)
+        set(compiledRecordIdPath, id)
     }
 
     /**
@@ -138,7 +181,7 @@ class Document {
      * Gets the document id (long form with base uri)
      */
     String getCompleteId() {
-        return get(recordIdPath)
+        return get(compiledRecordIdPath)
     }
 
     /**
@@ -159,12 +202,12 @@ class Document {
      */
     String getId() { return getCompleteId() }
 
-    List<String> getIsbnValues() { return getTypedIDValues("ISBN", thingTypedIDsPath, "value") }
-    List<String> getIssnValues() { return getTypedIDValues("ISSN", thingTypedIDsPath, "value") }
-    List<String> getIsbnHiddenValues() { return getTypedIDValues("ISBN", thingIndirectTypedIDsPath, "value") }
-    List<String> getIssnHiddenValues() { return getTypedIDValues("ISSN", thingTypedIDsPath, "marc:canceledIssn") }
+    List<String> getIsbnValues() { return getTypedIDValues("ISBN", compiledThingTypedIDsPath, "value") }
+    List<String> getIssnValues() { return getTypedIDValues("ISSN", compiledThingTypedIDsPath, "value") }
+    List<String> getIsbnHiddenValues() { return getTypedIDValues("ISBN", compiledThingIndirectTypedIDsPath, "value") }
+    List<String> getIssnHiddenValues() { return getTypedIDValues("ISSN", compiledThingTypedIDsPath, "marc:canceledIssn") }
 
-    private List<String> getTypedIDValues(String typeKey, List<String> idListPath, String valueKey) {
+    private List<String> getTypedIDValues(String typeKey, DocumentPath idListPath, String valueKey) {
         List<String> values = new ArrayList<>()
         List typedIDs = get(idListPath)
         for (Object element : typedIDs) {
@@ -192,61 +235,61 @@ class Document {
     }
 
     List<Map> getCarrierTypes() {
-        return get(thingCarrierTypesPath)
+        return get(compiledThingCarrierTypesPath)
     }
 
     void setCreated(Date created) {
         ZonedDateTime zdt = ZonedDateTime.ofInstant(created.toInstant(), ZoneId.systemDefault())
         String formatedCreated = DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(zdt)
-        set(createdPath, formatedCreated)
+        set(compiledCreatedPath, formatedCreated)
         updateRecordStatus()
     }
 
     String getCreated() {
-        get(createdPath)
+        get(compiledCreatedPath)
     }
 
     void setModified(Date modified) {
         ZonedDateTime zdt = ZonedDateTime.ofInstant(modified.toInstant(), ZoneId.systemDefault())
         String formatedModified = DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(zdt)
-        set(modifiedPath, formatedModified)
+        set(compiledModifiedPath, formatedModified)
         updateRecordStatus()
     }
 
-    String getModified() { get(modifiedPath) }
+    String getModified() { get(compiledModifiedPath) }
 
     void setGenerationDate(Date generationDate) {
         ZonedDateTime zdt = ZonedDateTime.ofInstant(generationDate.toInstant(), ZoneId.systemDefault())
         String formatedGenerationDate = DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(zdt)
-        set(generationDatePath, formatedGenerationDate)
+        set(compiledGenerationDatePath, formatedGenerationDate)
         updateRecordStatus()
     }
 
-    String getGenerationDate() { get(generationDatePath) }
+    String getGenerationDate() { get(compiledGenerationDatePath) }
 
     void setDeleted(boolean newValue) {
         if (newValue)
-            set(statusPath, "marc:Deleted")
+            set(compiledStatusPath, "marc:Deleted")
         else {
-            set(statusPath, "marc:New")
+            set(compiledStatusPath, "marc:New")
             updateRecordStatus()
         }
     }
 
     boolean getDeleted() {
-        String deletedString = get(statusPath)
+        String deletedString = get(compiledStatusPath)
         if (deletedString == null || !deletedString.equals("marc:Deleted"))
             return false
         return true
     }
 
     private void updateRecordStatus() {
-        String currentStatus = get(statusPath)
+        String currentStatus = get(compiledStatusPath)
         if (currentStatus != null && currentStatus.equals("marc:New")) {
             String modified = getModified()
             String created = getCreated()
             if (modified != null && created != null && !modified.equals(created))
-                set(statusPath, "marc:CorrectedOrRevised")
+                set(compiledStatusPath, "marc:CorrectedOrRevised")
         }
     }
 
@@ -255,7 +298,7 @@ class Document {
     }
 
     String getSigel() {
-        String uri = get(sigelPath)
+        String uri = get(compiledSigelPath)
         if (uri != null)
             return LegacyIntegrationTools.uriToLegacySigel( uri )
         return null
@@ -266,7 +309,7 @@ class Document {
      */
     List<Tuple> getTypedThingIdentifiers() {
         List<Tuple> results = []
-        List typedIDs = get(thingTypedIDsPath)
+        List typedIDs = get(compiledThingTypedIDsPath)
 
         for (Map typedID : typedIDs) {
             String type = typedID["@type"]
@@ -288,7 +331,7 @@ class Document {
      */
     List<Tuple> getTypedRecordIdentifiers() {
         List<Tuple> results = []
-        List typedIDs = get(recordTypedIDsPath)
+        List typedIDs = get(compiledRecordTypedIDsPath)
 
         for (Map typedID : typedIDs) {
             String type = typedID["@type"]
@@ -311,11 +354,11 @@ class Document {
     List<String> getThingIdentifiers() {
         List<String> ret = []
 
-        String thingId = get(thingIdPath)
+        String thingId = get(compiledThingIdPath)
         if (thingId)
             ret.add(thingId)
 
-        List sameAsObjects = get(thingSameAsPath)
+        List sameAsObjects = get(compiledThingSameAsPath)
         for (Map object : sameAsObjects) {
             ret.add(object.get("@id"))
         }
@@ -324,21 +367,21 @@ class Document {
     }
 
     void addThingIdentifier(String identifier) {
-        if (get(thingIdPath) == null) {
-            set(thingIdPath2, identifier)
-            set(thingIdPath, identifier)
+        if (get(compiledThingIdPath) == null) {
+            set(compiledThingIdPath2, identifier)
+            set(compiledThingIdPath, identifier)
             return
         }
 
-        if (get(thingIdPath) == identifier && get(thingIdPath2) == identifier) {
+        if (get(compiledThingIdPath) == identifier && get(compiledThingIdPath2) == identifier) {
             return
         }
 
-        if (preparePath(thingSameAsPath)) {
-            List sameAsList = get(thingSameAsPath)
+        if (preparePath(compiledThingSameAsPath)) {
+            List sameAsList = get(compiledThingSameAsPath)
             if (sameAsList == null || !(sameAsList instanceof List)) {
-                set(thingSameAsPath, [])
-                sameAsList = get(thingSameAsPath)
+                set(compiledThingSameAsPath, [])
+                sameAsList = get(compiledThingSameAsPath)
             }
             def idObject = ["@id": identifier]
             if (!sameAsList.contains(idObject))
@@ -352,11 +395,11 @@ class Document {
     List<String> getRecordIdentifiers() {
         List<String> ret = []
 
-        String mainId = get(recordIdPath)
+        String mainId = get(compiledRecordIdPath)
         if (mainId != null)
         ret.add(mainId)
 
-        List sameAsObjects = get(recordSameAsPath)
+        List sameAsObjects = get(compiledRecordSameAsPath)
         for (Map object : sameAsObjects) {
             if (object.get("@id") != null)
                 ret.add(object.get("@id"))
@@ -369,20 +412,20 @@ class Document {
         if (identifier == null)
             throw new NullPointerException("Attempted to add null-identifier.")
 
-        if (get(recordIdPath) == null) {
-            set(recordIdPath, identifier)
+        if (get(compiledRecordIdPath) == null) {
+            set(compiledRecordIdPath, identifier)
             return
         }
 
-        if (get(recordIdPath) == identifier) {
+        if (get(compiledRecordIdPath) == identifier) {
             return
         }
 
-        if (preparePath(recordSameAsPath)) {
-            Object sameAsList = get(recordSameAsPath)
+        if (preparePath(compiledRecordSameAsPath)) {
+            Object sameAsList = get(compiledRecordSameAsPath)
             if (sameAsList == null || !(sameAsList instanceof List)) {
-                set(recordSameAsPath, [])
-                sameAsList = get(recordSameAsPath)
+                set(compiledRecordSameAsPath, [])
+                sameAsList = get(compiledRecordSameAsPath)
             }
             def idObject = ["@id": identifier]
             if (sameAsList.every { it -> it != idObject })
@@ -394,11 +437,11 @@ class Document {
         if (identifier == null)
             throw new NullPointerException("Attempted to add typed null-identifier.")
 
-        if (preparePath(recordTypedIDsPath)) {
-            Object typedIDList = get(recordTypedIDsPath)
+        if (preparePath(compiledRecordTypedIDsPath)) {
+            Object typedIDList = get(compiledRecordTypedIDsPath)
             if (typedIDList == null || !(typedIDList instanceof List)) {
-                set(recordTypedIDsPath, [])
-                typedIDList = get(recordTypedIDsPath)
+                set(compiledRecordTypedIDsPath, [])
+                typedIDList = get(compiledRecordTypedIDsPath)
             }
 
             def idObject = ["value": identifier, "@type": type]
@@ -411,11 +454,11 @@ class Document {
         if (identifier == null)
             throw new NullPointerException("Attempted to add typed null-identifier.")
 
-        if (preparePath(thingTypedIDsPath)) {
-            Object typedIDList = get(thingTypedIDsPath)
+        if (preparePath(compiledThingTypedIDsPath)) {
+            Object typedIDList = get(compiledThingTypedIDsPath)
             if (typedIDList == null || !(typedIDList instanceof List)) {
-                set(thingTypedIDsPath, [])
-                typedIDList = get(thingTypedIDsPath)
+                set(compiledThingTypedIDsPath, [])
+                typedIDList = get(compiledThingTypedIDsPath)
             }
 
             def idObject = ["value": identifier, "@type": type]
@@ -425,7 +468,7 @@ class Document {
     }
 
     public String getWorkType() {
-        Object workId = get(workIdPath)
+        Object workId = get(compiledWorkIdPath)
         if (workId == null)
             return null
 
@@ -539,85 +582,32 @@ class Document {
      * Adds empty structure to the document so that 'path' can be traversed.
      */
     private boolean preparePath(List path) {
-        return _preparePath(path, data)
+        return preparePath(DocumentPath.compile(path))
     }
 
-    public static boolean _preparePath(List path, Object root) {
-        // Start at root data node
-        Object node = root
-
-        for (int i = 0; i < path.size()-1; ++i) {
-            Object step = path.get(i)
-
-            // use the next step to determine the type of the next object
-            Type nextReplacementType = (path.get(i + 1) instanceof Integer) ? ArrayList : HashMap
-
-            // Get the next object along the path (candidate)
-            Object candidate = null
-            if (node instanceof Map)
-                candidate = node.get(step)
-            else if (node instanceof List) {
-                if (node.size() > step)
-                    candidate = node.get(step)
-            }
-
-            // If that step can't be taken in the current structure, expand the structure
-            if (candidate == null) {
-                if (node instanceof Map)
-                    node.put(step, nextReplacementType.newInstance())
-                else if (node instanceof List) {
-                    while (node.size() < step + 1)
-                        node.add(nextReplacementType.newInstance())
-                }
-            }
-            // Check path integrity, in all but the last step (which will presumably be replaced)
-            else if ((i < path.size() - 1) &&
-                    !matchingContainer(candidate.getClass(), nextReplacementType)) {
-                log.warn("Structure conflict, path: " + path + ", at token: " +
-                         (i + 1) + ", expected data to be: " +
-                         nextReplacementType + ", data class was: " +
-                         candidate.getClass())
-                log.debug("preparePath integrity check failed, data was: ${root}")
-                return false
-            }
+    private boolean preparePath(DocumentPath path) {
+        resetChecksum()
+        return path.prepare(data)
+    }
 
-            node = node.get(step)
-        }
-        return true
+    public static boolean _preparePath(List path, Object root) {
+        return DocumentPath.compile(path).prepare(root)
     }
 
     /**
      * Set 'value' at 'path'. 'container' should be ArrayList or HashMap depending on if value should reside in a list or an object
      */
     private boolean set(List path, Object value) {
-        return _set(path, value, data)
+        return set(DocumentPath.compile(path), value)
     }
 
-    public static boolean _set(List path, Object value, Object root) {
-        if (!_preparePath(path, root))
-            return false
-
-        // Start at root data node
-        Object node = root
-
-        for (int i = 0; i < path.size() - 1; ++i) // follow all but last step
-        {
-            Object step = path.get(i)
-            node = node.get(step)
-        }
+    private boolean set(DocumentPath path, Object value) {
+        resetChecksum()
+        return path.set(data, value)
+    }
 
-        if ( node instanceof Map )
-            node.put(path.get(path.size() - 1), value)
-        else if ( node instanceof List ) {
-            List nodeAsList = (List) node
-            while (nodeAsList.size() < path.get(path.size() - 1))
-                nodeAsList.add(null)
-            nodeAsList.add(path.get(path.size() - 1), value)
-            //node.add(path.get(path.size() - 1), value)
-        }
-        else
-            throw new RuntimeException("Was asked to insert at " + path.get(path.size() - 1) + " in " + node + " and could not match up the container types.")
-        return true
+    public static boolean _set(List path, Object value, Object root) {
+        return DocumentPath.compile(path).set(root, value)
     }
 
     public static boolean _removeLeafObject(List path, Object root) {
@@ -634,38 +624,16 @@ class Document {
         return true
     }
 
-    private static boolean matchingContainer(Class c1, Class c2) {
-        if ((Map.class.isAssignableFrom(c1)) && (Map.class.isAssignableFrom(c2)))
-            return true
-        if ((List.class.isAssignableFrom(c1)) && (List.class.isAssignableFrom(c2)))
-            return true
-        return false
+    private Object get(List path) {
+        return get(DocumentPath.compile(path))
     }
 
-    private Object get(List path) {
-        return _get(path, data)
+    private Object get(DocumentPath path) {
+        return path.get(data)
     }
 
     public static Object _get(List path, Object root) {
-        // Start at root data node
-        Object node = root
-
-        for (Object step : path) {
-            if ((node instanceof Map) && !(step instanceof String)) {
-                log.warn("Needed string as map key, but was given: " + step + ". (path was: " + path + ")")
-                return null
-            } else if ((node instanceof List) && !(step instanceof Integer)) {
-                log.warn("Needed integer as list index, but was given: " + step + ". (path was: " + path + ")")
-                return null
-            }
-            node = node[step]
-
-            if (node == null) {
-                return null
-            }
-        }
-
-        return node
+        return DocumentPath.compile(path).get(root)
     }
 
     static Object deepCopy(Object orig) {
@@ -695,6 +663,7 @@ class Document {
      */
     void embellish(Map additionalObjects, JsonLd jsonld, boolean filterOutNonChipTerms = true) {
         this.data = jsonld.embellish(this.data, additionalObjects, filterOutNonChipTerms)
+        resetChecksum()
     }
 
 
@@ -709,9 +678,10 @@ class Document {
 
         // If there is no "proper id" use whatever is at the record ID path.
         if (oldId == null)
-            oldId = get(recordIdPath)
+            oldId = get(compiledRecordIdPath)
 
         deepReplaceIdInternal(oldId, newId, data)
+        resetChecksum()
     }
 
     private void deepReplaceIdInternal(String oldId, String newId, node) {
@@ -736,8 +706,9 @@ class Document {
      * derivative (thing/work/etc) IDs.
      */
     public void deepPromoteId(String aliasToPromote) {
-        String oldId = get(recordIdPath)
+        String oldId = get(compiledRecordIdPath)
         deepPromoteIdInternal(oldId, aliasToPromote, data)
+        resetChecksum()
     }
 
     private void deepPromoteIdInternal(String oldId, String newId, node) {
@@ -781,35 +752,57 @@ class Document {
         }
     }
 
+    /**
+     * Gets a checksum of the data in this document, ignoring created and modified timestamps.
+     *
+     * The checksum is calculated in a single pass over the data and cached. Code that changes 'data' in place
+     * (rather than through the methods of this class) must call resetChecksum() before asking for it again.
+     */
     String getChecksum() {
-        long checksum = calculateCheckSum(data, 1)
-        return Long.toString(checksum)
+        if (checksum == null || !data.is(checksumData)) {
+            checksum = Long.toString(calculateCheckSum(data, 1))
+            checksumData = data
+        }
+        return checksum
     }
 
-    private long calculateCheckSum(node, int depth) {
+    void resetChecksum() {
+        checksum = null
+        checksumData = null
+    }
+
+    /**
+     * Object member order does not affect the result, list order does. The arithmetic (including int overflow)
+     * must stay as it is, since checksums are persisted and compared with those of earlier versions.
+     */
+    @CompileStatic
+    private static long calculateCheckSum(Object node, int depth) {
         long term = 0
 
         if (node == null)
             return term
         else if (node instanceof String)
-            return node.hashCode() * depth
+            return ((String) node).hashCode() * depth
         else if (node instanceof Boolean)
-            return node.booleanValue() ? depth : term
+            return ((Boolean) node).booleanValue() ? depth : term
         else if (node instanceof Integer)
-            return node.intValue() * depth
+            return ((Integer) node).intValue() * depth
         else if (node instanceof Map) {
-            for (String key : node.keySet()) {
+            for (Map.Entry entry : ((Map) node).entrySet()) {
+                String key = (String) entry.getKey()
                 if ( !key.equals(JsonLd.MODIFIED_KEY) && !key.equals(JsonLd.CREATED_KEY)) {
                     term += key.hashCode() * depth
-                    term += calculateCheckSum(node[key], depth + 1)
+                    term += calculateCheckSum(entry.getValue(), depth + 1)
                 }
             }
         }
-        else { // node is a list
+        else if (node instanceof List) {
             int i = 1
-            for (entry in node)
+            for (Object entry : (List) node)
                 term += calculateCheckSum(entry, depth + (i++))
         }
+        else
+            return node.hashCode() * depth
 
         return term
     }
@@ -0,0 +1,178 @@
+package whelk
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log4j2 as Log
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * A path into document data (for example ["@graph", 1, "heldBy", "@id"]), compiled once into a reusable accessor.
+ *
+ * String steps are map keys and Integer steps are list indexes. Use compile() to get an instance, compiled paths
+ * are cached by path.
+ */
+@Log
+@CompileStatic
+class DocumentPath {
+
+    // Paths may be built at runtime (for example by transform scripts), so don't let the cache grow indefinitely.
+    private static final int MAX_CACHED_PATHS = 10000
+    private static final Map<List, DocumentPath> cache = new ConcurrentHashMap<List, DocumentPath>()
+
+    final List path
+
+    private final Object[] steps
+    private final boolean[] keySteps
+    private final boolean[] indexSteps
+
+    private DocumentPath(List path) {
+        this.path = Collections.unmodifiableList(new ArrayList(path))
+        int size = path.size()
+        steps = new Object[size]
+        keySteps = new boolean[size]
+        indexSteps = new boolean[size]
+        for (int i = 0; i < size; ++i) {
+            steps[i] = path.get(i)
+            keySteps[i] = steps[i] instanceof String
+            indexSteps[i] = steps[i] instanceof Integer
+        }
+    }
+
+    static DocumentPath compile(List path) {
+        DocumentPath compiled = cache.get(path)
+        if (compiled == null) {
+            compiled = new DocumentPath(path)
+            if (cache.size() < MAX_CACHED_PATHS)
+                cache.put(compiled.path, compiled)
+        }
+        return compiled
+    }
+
+    /**
+     * Returns the value at this path in 'root', or null if any step along the path is missing.
+     */
+    Object get(Object root) {
+        Object node = root
+
+        for (int i = 0; i < steps.length; ++i) {
+            if (node instanceof Map) {
+                if (!keySteps[i]) {
+                    log.warn("Needed string as map key, but was given: " + steps[i] + ". (path was: " + path + ")")
+                    return null
+                }
+                node = ((Map) node).get(steps[i])
+            } else if (node instanceof List) {
+                if (!indexSteps[i]) {
+                    log.warn("Needed integer as list index, but was given: " + steps[i] + ". (path was: " + path + ")")
+                    return null
+                }
+                node = getElement((List) node, (Integer) steps[i])
+            } else {
+                return null
+            }
+
+            if (node == null) {
+                return null
+            }
+        }
+
+        return node
+    }
+
+    /**
+     * Set 'value' at this path in 'root', adding any missing intermediate maps and lists.
+     * Returns false if the existing structure of 'root' does not fit the path.
+     */
+    boolean set(Object root, Object value) {
+        if (!prepare(root))
+            return false
+
+        Object node = root
+        int last = steps.length - 1
+        for (int i = 0; i < last; ++i) {
+            node = step(node, i)
+        }
+
+        if (node instanceof Map) {
+            ((Map) node).put(steps[last], value)
+        } else if (node instanceof List) {
+            List list = (List) node
+            int index = (Integer) steps[last]
+            while (list.size() < index)
+                list.add(null)
+            list.add(index, value)
+        } else {
+            throw new RuntimeException("Was asked to insert at " + steps[last] + " in " + node + " and could not match up the container types.")
+        }
+        return true
+    }
+
+    /**
+     * Adds empty structure to 'root' so that all but the last step of this path can be traversed.
+     */
+    boolean prepare(Object root) {
+        Object node = root
+
+        for (int i = 0; i < steps.length - 1; ++i) {
+            // use the next step to determine the type of the next object
+            boolean nextIsList = indexSteps[i + 1]
+
+            // Get the next object along the path (candidate)
+            Object candidate = step(node, i)
+
+            // If that step can't be taken in the current structure, expand the structure
+            if (candidate == null) {
+                candidate = nextIsList ? new ArrayList() : new HashMap()
+                if (node instanceof Map && keySteps[i]) {
+                    ((Map) node).put(steps[i], candidate)
+                } else if (node instanceof List && indexSteps[i]) {
+                    List list = (List) node
+                    int index = (Integer) steps[i]
+                    while (list.size() < index)
+                        list.add(nextIsList ? new ArrayList() : new HashMap())
+                    if (list.size() == index)
+                        list.add(candidate)
+                    else
+                        list.set(index, candidate)
+                } else {
+                    log.warn("Structure conflict, path: " + path + ", at token: " + i +
+                             ", cannot step into: " + node?.getClass())
+                    return false
+                }
+            }
+            // Check path integrity, in all but the last step (which will presumably be replaced)
+            else if (nextIsList ? !(candidate instanceof List) : !(candidate instanceof Map)) {
+                log.warn("Structure conflict, path: " + path + ", at token: " +
+                         (i + 1) + ", expected data to be: " +
+                         (nextIsList ? ArrayList : HashMap) + ", data class was: " +
+                         candidate.getClass())
+                log.debug("preparePath integrity check failed, data was: ${root}")
+                return false
+            }
+
+            node = candidate
+        }
+        return true
+    }
+
+    private Object step(Object node, int i) {
+        if (node instanceof Map)
+            return ((Map) node).get(steps[i])
+        if (node instanceof List && indexSteps[i])
+            return getElement((List) node, (Integer) steps[i])
+        return null
+    }
+
+    private static Object getElement(List list, int index) {
+        if (index < 0)
+            index += list.size()
+        if (index < 0 || index >= list.size())
+            return null
+        return list.get(index)
+    }
+
+    @Override
+    String toString() {
+        return path.toString()
+    }
+}
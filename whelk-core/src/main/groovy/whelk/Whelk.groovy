@@ -306,11 +306,36 @@ class Whelk {
         }
     }
 
-    void remove(String id, String changedIn, String changedBy) {
+    void remove(String id, String changedIn, String changedBy, String collection = null) {
+        removeDocument(id, changedIn, changedBy, collection, false)
+    }
+
+    /**
+     * Like remove(), but for mass deletes: the removal from the index is queued, to be sent in bulk. The caller must
+     * call flushRemovals() when done.
+     */
+    void queueRemove(String id, String changedIn, String changedBy, String collection = null) {
+        removeDocument(id, changedIn, changedBy, collection, true)
+    }
+
+    /**
+     * Send the removals queued by queueRemove() to the index.
+     */
+    void flushRemovals() {
+        elastic?.flushRemovals()
+    }
+
+    private void removeDocument(String id, String changedIn, String changedBy, String collection, boolean queued) {
         log.debug "Deleting ${id} from Whelk"
+        if (!collection)
+            collection = storage.getCollectionBySystemID(id)
         storage.remove(id, changedIn, changedBy)
         if (elastic) {
-            elastic.remove(id)
+            if (queued)
+                elastic.queueRemove(id, collection)
+            else
+                elastic.remove(id, collection)
+            elastic.removeIndexFingerprint(id, this)
             log.debug "Object ${id} was removed from Whelk"
         }
         else {
@@ -0,0 +1,149 @@
+package whelk.component
+
+import groovy.transform.CompileStatic
+import org.codehaus.jackson.JsonParser
+import org.codehaus.jackson.JsonToken
+import org.codehaus.jackson.map.ObjectMapper
+
+/**
+ * The outcome of an ElasticSearch bulk request, read from the response without building it as a whole in memory.
+ *
+ * Only the items that did not succeed are kept, with their position in the request, id, status and error. Since
+ * ElasticSearch writes the 'errors' flag before the items, the items are not even looked at when it is false (unless
+ * parsed with parseAll()).
+ *
+ * A request rejected as a whole (like a 400 or 413) gets an error response instead, without 'errors' and 'items'. No
+ * position counts as a success in such a response, see isBulkResponse().
+ */
+@CompileStatic
+class ElasticBulkResponse {
+
+    private static final ObjectMapper mapper = new ObjectMapper()
+
+    static class Failure {
+        final int position
+        final String id
+        final int status
+        final Object error
+
+        Failure(int position, String id, int status, Object error) {
+            this.position = position
+            this.id = id
+            this.status = status
+            this.error = error
+        }
+
+        @Override
+        String toString() {
+            return "${id} (${status}): ${error}"
+        }
+    }
+
+    long took
+    boolean errors
+    private boolean carriedOut = false
+    final List<Failure> failures = []
+
+    private final Set<Integer> failedPositions = new HashSet<Integer>()
+
+    private ElasticBulkResponse() {}
+
+    /**
+     * Parse a bulk response, skipping the items if there were no errors.
+     */
+    static ElasticBulkResponse parse(String json) {
+        return doParse(json, false)
+    }
+
+    /**
+     * Parse a bulk response, including the items of one without errors. Needed for items that don't count as errors
+     * but are still not successful, like deletes of missing documents (status 404).
+     */
+    static ElasticBulkResponse parseAll(String json) {
+        return doParse(json, true)
+    }
+
+    /**
+     * Whether the bulk request was carried out, as opposed to rejected as a whole.
+     */
+    boolean isBulkResponse() {
+        return carriedOut
+    }
+
+    boolean isSuccess(int position) {
+        return carriedOut && !failedPositions.contains(position)
+    }
+
+    int countFailures(int status) {
+        int count = 0
+        for (Failure failure : failures) {
+            if (failure.status == status)
+                ++count
+        }
+        return count
+    }
+
+    private static ElasticBulkResponse doParse(String json, boolean readAllItems) {
+        ElasticBulkResponse response = new ElasticBulkResponse()
+        JsonParser parser = mapper.getJsonFactory().createJsonParser(json)
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+                throw new IOException("Bulk response is not an object: ${json.take(100)}")
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName()
+                parser.nextToken()
+                if (field == "took") {
+                    response.took = parser.getLongValue()
+                } else if (field == "errors") {
+                    response.carriedOut = true
+                    response.errors = parser.getBooleanValue()
+                    if (!response.errors && !readAllItems)
+                        break
+                } else if (field == "items") {
+                    response.readItems(parser)
+                } else {
+                    parser.skipChildren()
+                }
+            }
+        } finally {
+            parser.close()
+        }
+        return response
+    }
+
+    private void readItems(JsonParser parser) {
+        int position = 0
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            // Each item is an object with the action as the only key: {"index": {"_id": ..., "status": ...}}
+            parser.nextToken()
+            parser.nextToken()
+            readItem(parser, position++)
+            parser.nextToken()
+        }
+    }
+
+    private void readItem(JsonParser parser, int position) {
+        String id = null
+        int status = 0
+        Object error = null
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName()
+            parser.nextToken()
+            if (field == "_id") {
+                id = parser.getText()
+            } else if (field == "status") {
+                status = parser.getIntValue()
+            } else if (field == "error") {
+                error = mapper.readValue(parser, Object)
+            } else {
+                parser.skipChildren()
+            }
+        }
+
+        if (status < 200 || status >= 300) {
+            failures.add(new Failure(position, id, status, error))
+            failedPositions.add(position)
+        }
+    }
+}
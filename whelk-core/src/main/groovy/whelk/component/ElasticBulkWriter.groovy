@@ -0,0 +1,190 @@
+package whelk.component
+
+import groovy.transform.CompileStatic
+import org.apache.commons.codec.binary.Hex
+import org.codehaus.jackson.JsonEncoding
+import org.codehaus.jackson.JsonGenerator
+import org.codehaus.jackson.Version
+import org.codehaus.jackson.map.ObjectMapper
+import org.codehaus.jackson.map.module.SimpleModule
+import org.codehaus.jackson.map.ser.std.ToStringSerializer
+import org.codehaus.jackson.util.MinimalPrettyPrinter
+import whelk.Document
+import whelk.Whelk
+import whelk.util.LongTermHttpConnection
+
+import java.nio.charset.Charset
+import java.security.MessageDigest
+
+/**
+ * Writes the body of an ElasticSearch bulk index request (newline delimited JSON, an action row followed by the
+ * shaped document for each document) straight to the request stream.
+ *
+ * Each document is shaped for the index only when it is about to be written, so the whole request is never held in
+ * memory at once.
+ *
+ * Given the fingerprints of what is already in the index, documents whose shape has the same fingerprint are left
+ * out of the request.
+ */
+@CompileStatic
+class ElasticBulkWriter implements LongTermHttpConnection.BodyWriter {
+
+    static final ObjectMapper mapper = createMapper()
+
+    private static final Charset UTF8 = Charset.forName("UTF-8")
+    private static final byte[] NEWLINE = "\n".getBytes(UTF8)
+
+    private final ElasticSearch elastic
+    final List<Document> docs
+    final String collection
+    private final Whelk whelk
+    private final Map<String, String> indexedFingerprints
+
+    private final ShapeBuffer shapeBuffer = new ShapeBuffer()
+    private final JsonGenerator generator
+
+    private boolean searched = false
+    private int firstChanged = -1
+    private byte[] firstChangedShape
+    private String firstChangedFingerprint
+
+    private byte[] preparedBody
+
+    private final List<String> writtenIds = []
+    private final List<String> writtenFingerprints = []
+
+    /**
+     * indexedFingerprints maps system IDs to the fingerprints of what is already indexed. Pass null to write all docs.
+     */
+    ElasticBulkWriter(ElasticSearch elastic, List<Document> docs, String collection, Whelk whelk,
+                      Map<String, String> indexedFingerprints = null) {
+        this.elastic = elastic
+        this.docs = docs
+        this.collection = collection
+        this.whelk = whelk
+        this.indexedFingerprints = indexedFingerprints
+
+        generator = mapper.getJsonFactory().createJsonGenerator(shapeBuffer, JsonEncoding.UTF8)
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+        // No separator between values, each one is written to the emptied buffer
+        generator.setPrettyPrinter(new MinimalPrettyPrinter(""))
+    }
+
+    /**
+     * Returns false if all docs are unchanged, and there is nothing to send.
+     * Shapes docs until the first changed one is found.
+     */
+    boolean hasChanges() {
+        if (!searched) {
+            searched = true
+            for (int i = 0; i < docs.size(); ++i) {
+                String fingerprint = shape(docs.get(i))
+                if (isChanged(docs.get(i), fingerprint)) {
+                    firstChanged = i
+                    firstChangedShape = shapeBuffer.toByteArray()
+                    firstChangedFingerprint = fingerprint
+                    break
+                }
+            }
+        }
+        return firstChanged != -1
+    }
+
+    /**
+     * Shape all docs now, and keep the result for writing it later. Used to do the shaping on another thread than
+     * the one sending the request, at the cost of holding the request in memory.
+     */
+    void prepare() {
+        ByteArrayOutputStream body = new ByteArrayOutputStream()
+        writeBody(body)
+        preparedBody = body.toByteArray()
+    }
+
+    @Override
+    void writeBody(OutputStream outputStream) throws IOException {
+        if (preparedBody != null) {
+            outputStream.write(preparedBody)
+            return
+        }
+
+        writtenIds.clear()
+        writtenFingerprints.clear()
+        if (!hasChanges())
+            return
+
+        writeDocument(outputStream, docs.get(firstChanged), firstChangedShape, firstChangedFingerprint)
+        for (int i = firstChanged + 1; i < docs.size(); ++i) {
+            Document doc = docs.get(i)
+            String fingerprint = shape(doc)
+            if (isChanged(doc, fingerprint))
+                writeDocument(outputStream, doc, shapeBuffer.toByteArray(), fingerprint)
+        }
+    }
+
+    /**
+     * System IDs of the docs written (in order) by the last writeBody().
+     */
+    List<String> getWrittenIds() {
+        return writtenIds
+    }
+
+    /**
+     * Fingerprints of the docs written (in order) by the last writeBody().
+     */
+    List<String> getWrittenFingerprints() {
+        return writtenFingerprints
+    }
+
+    private void writeDocument(OutputStream outputStream, Document doc, byte[] shape, String fingerprint) {
+        outputStream.write(mapper.writeValueAsBytes(elastic.createAction(doc, collection)))
+        outputStream.write(NEWLINE)
+        outputStream.write(shape)
+        outputStream.write(NEWLINE)
+        writtenIds.add(doc.getShortId())
+        writtenFingerprints.add(fingerprint)
+    }
+
+    private String shape(Document doc) {
+        shapeBuffer.reset()
+        mapper.writeValue(generator, elastic.getShapeForIndex(doc, whelk, collection))
+        generator.flush()
+        return shapeBuffer.fingerprint(elastic.getIndexName(), collection)
+    }
+
+    private boolean isChanged(Document doc, String fingerprint) {
+        return indexedFingerprints == null || indexedFingerprints.get(doc.getShortId()) != fingerprint
+    }
+
+    /**
+     * A fingerprint of the serialized shape of a document, as indexed in a specific index and collection.
+     */
+    static String fingerprint(String indexName, String collection, byte[] json) {
+        return fingerprint(indexName, collection, json, json.length)
+    }
+
+    static String fingerprint(String indexName, String collection, byte[] json, int length) {
+        MessageDigest digest = MessageDigest.getInstance("MD5")
+        digest.update("${indexName}/${collection}\n".toString().getBytes(UTF8))
+        digest.update(json, 0, length)
+        return Hex.encodeHexString(digest.digest())
+    }
+
+    private static class ShapeBuffer extends ByteArrayOutputStream {
+        ShapeBuffer() {
+            super(16 * 1024)
+        }
+
+        String fingerprint(String indexName, String collection) {
+            return ElasticBulkWriter.fingerprint(indexName, collection, buf, count)
+        }
+    }
+
+    private static ObjectMapper createMapper() {
+        // Shaped data can contain GStrings, which should be written as plain strings (as JsonOutput does)
+        SimpleModule module = new SimpleModule("ElasticBulkWriter", new Version(1, 0, 0, null))
+        module.addSerializer(GString, ToStringSerializer.instance)
+        ObjectMapper mapper = new ObjectMapper()
+        mapper.registerModule(module)
+        return mapper
+    }
+}
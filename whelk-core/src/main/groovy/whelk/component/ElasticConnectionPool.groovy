@@ -0,0 +1,134 @@
+package whelk.component
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log4j2 as Log
+import io.prometheus.client.Gauge
+import io.prometheus.client.Summary
+import whelk.exception.WhelkIndexException
+import whelk.util.LongTermHttpConnection
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Connections to the nodes of an ElasticSearch cluster.
+ *
+ * A caller leases a connection, blocking until one is available (or the lease times out), and must release it when
+ * done. There are at most connectionsPerNode connections to each node, and leases are spread evenly over the nodes.
+ */
+@Log
+@CompileStatic
+class ElasticConnectionPool {
+
+    static final Summary leaseWait = Summary.build()
+            .name("elastic_connection_lease_wait_seconds")
+            .help("Time spent waiting for a connection to ElasticSearch.")
+            .register()
+
+    static final Gauge leasedConnections = Gauge.build()
+            .name("elastic_connections_leased")
+            .help("Connections to ElasticSearch currently in use.")
+            .register()
+
+    static class Lease {
+        final LongTermHttpConnection connection
+        private final Node node
+        private boolean broken = false
+
+        private Lease(LongTermHttpConnection connection, Node node) {
+            this.connection = connection
+            this.node = node
+        }
+
+        /**
+         * Don't reuse the connection after it is released, for example because a request failed half way through.
+         */
+        void discard() {
+            broken = true
+        }
+    }
+
+    private static class Node {
+        final String host
+        final Semaphore permits
+        final Queue<LongTermHttpConnection> idle = new ConcurrentLinkedQueue<LongTermHttpConnection>()
+
+        Node(String host, int connections) {
+            this.host = host
+            this.permits = new Semaphore(connections)
+        }
+    }
+
+    private final List<Node> nodes = []
+    private final Semaphore available
+    private final long leaseTimeoutMs
+    private final AtomicInteger nextNode = new AtomicInteger()
+    private final boolean compression
+    private volatile boolean closed = false
+
+    /**
+     * With compression, connections gzip request bodies and ask for gzipped responses.
+     */
+    ElasticConnectionPool(List<String> hosts, int connectionsPerNode, long leaseTimeoutMs, boolean compression = false) {
+        for (String host : hosts) {
+            nodes.add(new Node(host, connectionsPerNode))
+        }
+        this.available = new Semaphore(hosts.size() * connectionsPerNode, true)
+        this.leaseTimeoutMs = leaseTimeoutMs
+        this.compression = compression
+    }
+
+    Lease lease() {
+        Summary.Timer timer = leaseWait.startTimer()
+        try {
+            if (!available.tryAcquire(leaseTimeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new WhelkIndexException("Timed out after ${leaseTimeoutMs} ms waiting for a connection to ElasticSearch.")
+            }
+        } finally {
+            timer.observeDuration()
+        }
+
+        // Holding one of the overall permits guarantees that some node has a permit left (node permits are released
+        // before the overall ones), so this will not have to go round more than once.
+        int start = Math.abs(nextNode.getAndIncrement() % nodes.size())
+        while (true) {
+            for (int i = 0; i < nodes.size(); ++i) {
+                Node node = nodes.get((start + i) % nodes.size())
+                if (node.permits.tryAcquire()) {
+                    LongTermHttpConnection connection = node.idle.poll()
+                    if (connection == null)
+                        connection = new LongTermHttpConnection(node.host, compression)
+                    leasedConnections.inc()
+                    return new Lease(connection, node)
+                }
+            }
+            Thread.yield()
+        }
+    }
+
+    void release(Lease lease) {
+        if (lease.broken || closed) {
+            try { lease.connection.close() } catch (Throwable e) { /* ignore */ }
+        } else {
+            lease.node.idle.offer(lease.connection)
+        }
+        leasedConnections.dec()
+        lease.node.permits.release()
+        available.release()
+    }
+
+    /**
+     * Close the idle connections. Connections leased at the time are closed as they are released.
+     */
+    void close() {
+        closed = true
+        for (Node node : nodes) {
+            LongTermHttpConnection connection
+            while ((connection = node.idle.poll()) != null) {
+                try { connection.close() } catch (Throwable e) { /* ignore */ }
+            }
+        }
+    }
+}
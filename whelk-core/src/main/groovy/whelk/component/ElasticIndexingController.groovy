@@ -0,0 +1,117 @@
+package whelk.component
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log4j2 as Log
+import io.prometheus.client.Counter
+import io.prometheus.client.Gauge
+
+/**
+ * Tunes the size of bulk index requests and how many of them may be in flight at once, from how ElasticSearch
+ * responds to them.
+ *
+ * Both grow while requests are handled faster than TARGET_LATENCY_MS without rejections. Slow requests shrink the
+ * batch size, and throttling (http 429 or rejected items) halves both.
+ */
+@Log
+@CompileStatic
+class ElasticIndexingController {
+
+    static final long TARGET_LATENCY_MS = 3000
+    static final int MIN_BATCH_SIZE = 50
+    static final int MAX_BATCH_SIZE = 5000
+    static final int INITIAL_BATCH_SIZE = 1000
+
+    // Grow the number of requests in flight by one after this many requests in a row within the target latency
+    static final int SUCCESSES_PER_CONCURRENCY_STEP = 10
+
+    static final Gauge batchSizeGauge = Gauge.build()
+            .name("elastic_bulk_batch_size")
+            .help("Number of documents per bulk index request.")
+            .register()
+
+    static final Gauge maxInFlightGauge = Gauge.build()
+            .name("elastic_bulk_max_in_flight")
+            .help("Number of bulk index requests allowed in flight at once.")
+            .register()
+
+    static final Counter throttledCounter = Counter.build()
+            .name("elastic_bulk_throttled_total")
+            .help("Bulk index requests throttled or with rejected items.")
+            .register()
+
+    private final int maxConcurrency
+    private int batchSize = INITIAL_BATCH_SIZE
+    private int maxInFlight
+    private int inFlight = 0
+    private int successes = 0
+
+    ElasticIndexingController(int maxConcurrency) {
+        this.maxConcurrency = Math.max(1, maxConcurrency)
+        this.maxInFlight = Math.max(1, (int) (this.maxConcurrency / 2))
+        updateMetrics()
+    }
+
+    synchronized int getBatchSize() {
+        return batchSize
+    }
+
+    synchronized int getMaxInFlight() {
+        return maxInFlight
+    }
+
+    /**
+     * Blocks until another bulk request may be sent. Must be followed by a call to release().
+     */
+    synchronized void acquire() throws InterruptedException {
+        while (inFlight >= maxInFlight)
+            wait()
+        ++inFlight
+    }
+
+    synchronized void release() {
+        --inFlight
+        notifyAll()
+    }
+
+    /**
+     * Report how a bulk request went. latencyMs is the time ElasticSearch took to handle it ('took'), and
+     * rejectedItems the number of documents in it that ElasticSearch rejected because it was overloaded.
+     */
+    synchronized void onResponse(long latencyMs, int rejectedItems) {
+        if (rejectedItems > 0) {
+            backOff()
+        } else if (latencyMs <= TARGET_LATENCY_MS) {
+            batchSize = Math.min(MAX_BATCH_SIZE, batchSize + Math.max(1, (int) (batchSize / 10)))
+            if (++successes >= SUCCESSES_PER_CONCURRENCY_STEP) {
+                successes = 0
+                maxInFlight = Math.min(maxConcurrency, maxInFlight + 1)
+                notifyAll()
+            }
+        } else {
+            successes = 0
+            batchSize = Math.max(MIN_BATCH_SIZE, (int) (batchSize * 3 / 4))
+        }
+        updateMetrics()
+    }
+
+    /**
+     * Report that a request was throttled (http 429), or rejected as a whole because the cluster is overloaded (503).
+     */
+    synchronized void onThrottled() {
+        backOff()
+        updateMetrics()
+    }
+
+    private void backOff() {
+        throttledCounter.inc()
+        successes = 0
+        batchSize = Math.max(MIN_BATCH_SIZE, (int) (batchSize / 2))
+        maxInFlight = Math.max(1, (int) (maxInFlight / 2))
+        log.info("ElasticSearch is throttling, bulk batch size is now $batchSize with at most $maxInFlight requests in flight.")
+    }
+
+    private void updateMetrics() {
+        batchSizeGauge.set(batchSize)
+        maxInFlightGauge.set(maxInFlight)
+    }
+}
@@ -2,7 +2,7 @@ package whelk.component
 
 import groovy.json.JsonOutput
 import groovy.util.logging.Log4j2 as Log
-
+import io.prometheus.client.Summary
 import org.apache.commons.codec.binary.Base64
 import org.apache.http.entity.ContentType
 import org.codehaus.jackson.map.ObjectMapper
@@ -13,28 +13,41 @@ import whelk.JsonLd
 import whelk.exception.*
 import whelk.Whelk
 
-import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.ConcurrentLinkedQueue
 
 @Log
 class ElasticSearch {
 
-    private class ConnectionPoolEntry {
-        public ConnectionPoolEntry(LongTermHttpConnection connection) {
-            this.connection = connection
-            this.inUse = new AtomicBoolean(false)
-        }
-        AtomicBoolean inUse
-        LongTermHttpConnection connection
-    }
-
     static final int DEFAULT_PAGE_SIZE = 50
     static final String BULK_CONTENT_TYPE = "application/x-ndjson"
-    static final int CONNECTION_POOL_SIZE = 9
+    static final int CONNECTIONS_PER_NODE = 9
+    static final long CONNECTION_LEASE_TIMEOUT_MS = 10 * 60 * 1000
+
+    // Unique per document, keyword mapped (see libris_config.json)
+    static final String SEARCH_AFTER_TIEBREAKER = JsonLd.ID_KEY
+
+    // Bulk items failing with these statuses are sent again, in a new request with only those
+    static final List<Integer> RETRYABLE_BULK_STATUSES = [429, 503]
+    static final int BULK_RETRIES = 5
+    static final long BULK_RETRY_BACKOFF_MS = 1000
+
+    static final int REMOVE_BATCH_SIZE = 500
+
+    // Settings for an index being loaded from scratch, where nothing is searched until it is done
+    static final Map BULK_LOAD_INDEX_SETTINGS = ["number_of_replicas": 0, "refresh_interval": "-1"]
+
+    static final Summary requestLatency = Summary.build()
+            .name("elastic_request_latency_seconds")
+            .help("ElasticSearch request latency in seconds.")
+            .labelNames("method").register()
 
-    Vector<ConnectionPoolEntry> httpConnectionPool = []
+    ElasticConnectionPool connectionPool
+    ElasticIndexingController indexingController
+    private final Queue<Tuple2<String, String>> pendingRemovals = new ConcurrentLinkedQueue<Tuple2<String, String>>()
     String defaultIndex = null
     private List<String> elasticHosts
     private String elasticCluster
+    private boolean compression = true
 
     private static final ObjectMapper mapper = new ObjectMapper()
 
@@ -42,6 +55,8 @@ class ElasticSearch {
         this.elasticHosts = getElasticHosts(props.getProperty("elasticHost"))
         this.elasticCluster = props.getProperty("elasticCluster")
         this.defaultIndex = props.getProperty("elasticIndex")
+        // Needs http.compression enabled in ElasticSearch (the default) for compressed responses
+        this.compression = props.getProperty("elasticCompression", "true") != "false"
         setup()
     }
 
@@ -63,39 +78,45 @@ class ElasticSearch {
     }
 
     private void setup() {
-        for (int i = 0; i < CONNECTION_POOL_SIZE; ++i) {
-            String host = elasticHosts[ i % elasticHosts.size() ]
-            httpConnectionPool.add(new ConnectionPoolEntry(new LongTermHttpConnection(host)))
-        }
-        log.info "ElasticSearch component initialized with ${elasticHosts.count{it}} nodes and $CONNECTION_POOL_SIZE workers."
+        connectionPool = new ElasticConnectionPool(elasticHosts, CONNECTIONS_PER_NODE, CONNECTION_LEASE_TIMEOUT_MS,
+                compression)
+        indexingController = new ElasticIndexingController(elasticHosts.size() * CONNECTIONS_PER_NODE)
+        log.info "ElasticSearch component initialized with ${elasticHosts.count{it}} nodes and $CONNECTIONS_PER_NODE connections per node."
      }
 
     String getIndexName() { defaultIndex }
 
-    Tuple2<Integer, String> performRequest(String method, String path, String body, String contentType0 = null){
+    /**
+     * Send any queued removals, and close the idle connections.
+     */
+    void close() {
+        flushRemovals()
+        connectionPool.close()
+    }
 
-        // Get an available connection from the pool
-        ConnectionPoolEntry httpConnectionEntry
-        int i = 0
-        while(true) {
-            i++
-            if (i == CONNECTION_POOL_SIZE) {
-                i = 0
-                Thread.yield()
-            }
+    Tuple2<Integer, String> performRequest(String method, String path, String body, String contentType0 = null) {
+        return doPerformRequest(method, path, body, null, contentType0)
+    }
 
-            synchronized (this) {
-                if (!httpConnectionPool[i].inUse.get()) {
-                    httpConnectionEntry = httpConnectionPool[i]
-                    httpConnectionEntry.inUse.set(true)
-                    break
-                }
-            }
-        }
+    /**
+     * Like performRequest above, but with the body written by bodyWriter while the request is sent.
+     */
+    Tuple2<Integer, String> performRequest(String method, String path, LongTermHttpConnection.BodyWriter bodyWriter,
+                                           String contentType0) {
+        return doPerformRequest(method, path, null, bodyWriter, contentType0)
+    }
+
+    private Tuple2<Integer, String> doPerformRequest(String method, String path, String body,
+                                                     LongTermHttpConnection.BodyWriter bodyWriter, String contentType0) {
 
         Tuple2<Integer, String> response = null
+        Summary.Timer requestTimer = requestLatency.labels(method).startTimer()
+        ElasticConnectionPool.Lease lease = null
 
         try {
+            // Blocks until a connection is available
+            lease = connectionPool.lease()
+
             String contentType
             if (contentType0 == null) {
                 contentType = ContentType.APPLICATION_JSON.toString()
@@ -103,15 +124,23 @@ class ElasticSearch {
                 contentType = contentType0
             }
 
-            LongTermHttpConnection httpConnection = httpConnectionEntry.connection
+            LongTermHttpConnection httpConnection = lease.connection
+            // Only bulk requests are sized by the indexing controller, throttled searches don't concern it
+            boolean bulk = contentType == BULK_CONTENT_TYPE
             int backOffTime = 0
-            while (response == null || httpConnection.getResponseCode() == 429) {
+            // The connection's response code is reset by clearBuffers(), the captured one is checked
+            while (response == null || response.first == 429) {
                 if (backOffTime != 0) {
-                    log.info("Bulk indexing request to ElasticSearch was throttled (http 429) waiting $backOffTime seconds before retry.")
+                    if (bulk)
+                        indexingController.onThrottled()
+                    log.info("$method $path request to ElasticSearch was throttled (http 429) waiting $backOffTime seconds before retry.")
                     Thread.sleep(backOffTime * 1000)
                 }
 
-                httpConnection.sendRequest(path, method, contentType, body, null, null)
+                if (bodyWriter != null)
+                    httpConnection.sendRequest(path, method, contentType, bodyWriter, null, null)
+                else
+                    httpConnection.sendRequest(path, method, contentType, body, null, null)
                 response = new Tuple2(httpConnection.responseCode, httpConnection.responseData)
                 httpConnection.clearBuffers()
 
@@ -121,36 +150,123 @@ class ElasticSearch {
                     backOffTime *= 2
             }
         } catch(Throwable e) {
+            lease?.discard()
             log.error(e)
         } finally
         {
-            httpConnectionEntry.inUse.set(false)
+            if (lease != null)
+                connectionPool.release(lease)
+            requestTimer.observeDuration()
         }
 
         return response
     }
 
-    void bulkIndex(List<Document> docs, String collection, Whelk whelk) {
+    /**
+     * Index docs in one or more bulk requests, sized (and with concurrency limited) by the indexingController.
+     *
+     * Unless skipUnchanged is false, docs are only sent if their shape has changed since they were last indexed.
+     */
+    void bulkIndex(List<Document> docs, String collection, Whelk whelk, boolean skipUnchanged = true) {
         assert collection
-        if (docs) {
-            String bulkString = docs.collect{ doc ->
-                String shapedData = JsonOutput.toJson(
-                    getShapeForIndex(doc, whelk, collection))
-                String action = createActionRow(doc,collection)
-                "${action}\n${shapedData}\n"
-            }.join('')
+        int start = 0
+        while (start < docs.size()) {
+            int end = Math.min(docs.size(), start + indexingController.getBatchSize())
+            bulkIndexBatch(docs.subList(start, end), collection, whelk, skipUnchanged)
+            start = end
+        }
+    }
 
-            String response = performRequest('POST', '/_bulk', bulkString, BULK_CONTENT_TYPE).second
-            Map responseMap = mapper.readValue(response, Map)
-            log.info("Bulk indexed ${docs.count{it}} docs in ${responseMap.took} ms")
+    private void bulkIndexBatch(List<Document> docs, String collection, Whelk whelk, boolean skipUnchanged) {
+        Map<String, String> indexedFingerprints = null
+        if (skipUnchanged) {
+            indexedFingerprints = loadIndexFingerprints(docs.collect { it.getShortId() }, whelk)
+        }
+        bulkIndex(new ElasticBulkWriter(this, docs, collection, whelk, indexedFingerprints), whelk)
+    }
+
+    /**
+     * Send the bulk request written by bulkWriter, and record what was indexed.
+     *
+     * Returns the docs that were still rejected after BULK_RETRIES retries (docs failing for other reasons than an
+     * overloaded cluster are only logged, retrying them would not help).
+     */
+    List<Document> bulkIndex(ElasticBulkWriter bulkWriter, Whelk whelk) {
+        ElasticBulkWriter writer = bulkWriter
+        for (int attempt = 1; ; ++attempt) {
+            List<Document> retry = sendBulkIndex(writer, whelk)
+            if (!retry) {
+                return []
+            }
+            if (attempt > BULK_RETRIES) {
+                log.error("Gave up bulk indexing ${retry.size()} docs after ${attempt} attempts: ${retry*.getShortId()}")
+                return retry
+            }
+            log.info("Retrying ${retry.size()} rejected docs of bulk request")
+            Thread.sleep(BULK_RETRY_BACKOFF_MS * attempt)
+            writer = new ElasticBulkWriter(this, retry, writer.collection, whelk)
+        }
+    }
+
+    /**
+     * Returns the docs that were rejected (and can be retried later): all of them if the cluster could not be reached or
+     * was overloaded. Throws if the request was rejected for any other reason.
+     */
+    private List<Document> sendBulkIndex(ElasticBulkWriter bulkWriter, Whelk whelk) {
+        if (!bulkWriter.hasChanges()) {
+            log.info("Skipped bulk indexing ${bulkWriter.docs.size()} docs, none of them changed")
+            return []
+        }
+
+        indexingController.acquire()
+        try {
+            Tuple2<Integer, String> response = performRequest('POST', '/_bulk', bulkWriter, BULK_CONTENT_TYPE)
+            // Nothing was indexed if the request was rejected as a whole, so no fingerprints may be saved
+            if (response == null || response.first in RETRYABLE_BULK_STATUSES) {
+                if (response != null)
+                    indexingController.onThrottled()
+                log.warn("Bulk indexing request to ElasticSearch failed (${response ? "http ${response.first}" : "no response"}), will retry.")
+                return bulkWriter.docs
+            }
+            ElasticBulkResponse bulkResponse = parseBulkResponse(response)
+            if (bulkResponse == null)
+                throw new WhelkIndexException("Bulk indexing request to ElasticSearch was rejected (http ${response.first}): ${response.second?.take(500)}")
+            // The time ElasticSearch took, since the request as a whole also includes shaping the documents (and loading
+            // what they link to) while the body is written
+            indexingController.onResponse(bulkResponse.took, bulkResponse.countFailures(429))
+
+            Map<String, String> indexed = [:]
+            bulkWriter.writtenIds.eachWithIndex { String id, int i ->
+                if (bulkResponse.isSuccess(i))
+                    indexed.put(id, bulkWriter.writtenFingerprints[i])
+            }
+            saveIndexFingerprints(indexed, whelk)
+
+            Map<String, Document> docsById = bulkWriter.docs.collectEntries { [(it.getShortId()): it] }
+            List<Document> retry = []
+            bulkResponse.failures.each { ElasticBulkResponse.Failure failure ->
+                if (failure.status in RETRYABLE_BULK_STATUSES)
+                    retry.add(docsById[bulkWriter.writtenIds[failure.position]])
+                else
+                    log.error("Failed to index ${bulkWriter.writtenIds[failure.position]}: ${failure}")
+            }
+
+            int unchanged = bulkWriter.docs.size() - bulkWriter.writtenIds.size()
+            log.info("Bulk indexed ${indexed.size()} docs (${unchanged} unchanged, ${bulkResponse.failures.size()} failed) in ${bulkResponse.took} ms")
+            return retry
+        } finally {
+            indexingController.release()
         }
     }
 
     String createActionRow(Document doc, String collection) {
-        def action = ["index" : [ "_index" : indexName,
-                                  "_type" : collection,
-                                  "_id" : toElasticId(doc.getShortId()) ]]
-        return mapper.writeValueAsString(action)
+        return mapper.writeValueAsString(createAction(doc, collection))
+    }
+
+    Map createAction(Document doc, String collection) {
+        return ["index" : [ "_index" : indexName,
+                            "_type" : collection,
+                            "_id" : toElasticId(doc.getShortId()) ]]
     }
 
     void index(Document doc, String collection, Whelk whelk) {
@@ -158,20 +274,169 @@ class ElasticSearch {
         // _internally_ but be otherwise invisible to clients (If postgres writing was ok, the save is considered ok).
         try {
             Map shapedData = getShapeForIndex(doc, whelk, collection)
-            //def body = new NStringEntity(JsonOutput.toJson(shapedData), ContentType.APPLICATION_JSON)
+            byte[] json = ElasticBulkWriter.mapper.writeValueAsBytes(shapedData)
+            String fingerprint = ElasticBulkWriter.fingerprint(indexName, collection, json)
+            String id = doc.getShortId()
+            if (loadIndexFingerprints([id], whelk).get(id) == fingerprint) {
+                log.debug("Skipped indexing ${id}, its shape is unchanged")
+                return
+            }
+
             def response = performRequest('PUT',
                     "/${indexName}/${collection}" +
-                            "/${toElasticId(doc.getShortId())}?pipeline=libris",
-                    JsonOutput.toJson(shapedData)).second
-            //def eString = EntityUtils.toString(response.getEntity())
-            Map responseMap = mapper.readValue(response, Map)
-            log.debug("Indexed the document ${doc.getShortId()} as ${indexName}/${collection}/${responseMap['_id']} as version ${responseMap['_version']}")
+                            "/${toElasticId(id)}?pipeline=libris",
+                    new String(json, "UTF-8"))
+            Map responseMap = mapper.readValue(response.second, Map)
+            if (response.first in [200, 201])
+                saveIndexFingerprints([(id): fingerprint], whelk)
+            log.debug("Indexed the document ${id} as ${indexName}/${collection}/${responseMap['_id']} as version ${responseMap['_version']}")
         } catch (Exception e) {
             log.error("Failed to index ${doc.getShortId()} in elastic.", e)
         }
     }
 
-    void remove(String identifier) {
+    /**
+     * Forget what was last indexed for a document, so that it will be sent in full the next time it is indexed.
+     */
+    void removeIndexFingerprint(String id, Whelk whelk) {
+        try {
+            whelk.storage?.removeIndexFingerprint(id)
+        } catch (Exception e) {
+            log.warn("Could not remove index fingerprint for ${id}: ${e}")
+        }
+    }
+
+    // Fingerprints only save work, so indexing goes on (sending everything) if they can't be loaded or saved.
+    private Map<String, String> loadIndexFingerprints(List<String> ids, Whelk whelk) {
+        try {
+            return whelk.storage?.loadIndexFingerprints(ids) ?: [:]
+        } catch (Exception e) {
+            log.warn("Could not load index fingerprints: ${e}")
+            return [:]
+        }
+    }
+
+    private void saveIndexFingerprints(Map<String, String> fingerprints, Whelk whelk) {
+        try {
+            whelk.storage?.saveIndexFingerprints(fingerprints)
+        } catch (Exception e) {
+            log.warn("Could not save index fingerprints: ${e}")
+        }
+    }
+
+    /**
+     * Remove a document from the index, done when this returns. With the collection (type) known, XL identifiers are
+     * deleted by id, other identifiers by query.
+     */
+    void remove(String identifier, String collection = null) {
+        if (collection && !identifier.contains("/")) {
+            log.debug("Deleting ${collection}/${toElasticId(identifier)}.")
+            bulkRemove([new Tuple2<String, String>(identifier, collection)])
+        } else {
+            removeByQuery(identifier)
+        }
+    }
+
+    /**
+     * Like remove(), but for mass deletes: XL identifiers are queued, and sent in bulk requests of REMOVE_BATCH_SIZE
+     * as the queue fills up. The caller must send what is left in the queue with flushRemovals() when done.
+     */
+    void queueRemove(String identifier, String collection) {
+        if (collection && !identifier.contains("/")) {
+            log.debug("Queueing delete of ${collection}/${toElasticId(identifier)}.")
+            pendingRemovals.add(new Tuple2<String, String>(identifier, collection))
+            if (pendingRemovals.size() >= REMOVE_BATCH_SIZE)
+                flushRemovals()
+        } else {
+            removeByQuery(identifier)
+        }
+    }
+
+    /**
+     * Send all queued removals.
+     */
+    synchronized void flushRemovals() {
+        while (!pendingRemovals.isEmpty()) {
+            List<Tuple2<String, String>> batch = []
+            Tuple2<String, String> removal
+            while (batch.size() < REMOVE_BATCH_SIZE && (removal = pendingRemovals.poll()) != null)
+                batch.add(removal)
+            bulkRemove(batch)
+        }
+    }
+
+    /**
+     * Delete by id, retrying (with backoff) what failed because ElasticSearch was overloaded or could not be reached.
+     */
+    private void bulkRemove(List<Tuple2<String, String>> removals) {
+        List<Tuple2<String, String>> remaining = removals
+        for (int attempt = 1; ; ++attempt) {
+            remaining = sendBulkRemove(remaining)
+            if (!remaining) {
+                break
+            }
+            if (attempt > BULK_RETRIES) {
+                log.error("Gave up deleting ${remaining.size()} docs from elastic after ${attempt} attempts: ${remaining*.first}")
+                break
+            }
+            log.info("Retrying ${remaining.size()} failed deletes")
+            Thread.sleep(BULK_RETRY_BACKOFF_MS * attempt)
+        }
+    }
+
+    /**
+     * Returns the removals that failed but can be retried.
+     */
+    private List<Tuple2<String, String>> sendBulkRemove(List<Tuple2<String, String>> removals) {
+        String body = removals.collect { removal ->
+            mapper.writeValueAsString(["delete": ["_index": indexName,
+                                                  "_type": removal.second,
+                                                  "_id": toElasticId(removal.first)]]) + "\n"
+        }.join('')
+
+        Tuple2<Integer, String> response = performRequest('POST', '/_bulk', body, BULK_CONTENT_TYPE)
+        if (response == null || response.first in RETRYABLE_BULK_STATUSES) {
+            return removals
+        }
+        ElasticBulkResponse bulkResponse = parseBulkResponse(response, true)
+        if (bulkResponse == null) {
+            log.error("Failed to delete ${removals.collect { it.first }} from elastic: ${response.first} ${response.second?.take(500)}")
+            return []
+        }
+
+        List<Tuple2<String, String>> retry = []
+        bulkResponse.failures.each { ElasticBulkResponse.Failure failure ->
+            Tuple2<String, String> removal = removals[failure.position]
+            if (failure.status == 404) {
+                // Already gone, or never indexed
+                return
+            } else if (failure.status in RETRYABLE_BULK_STATUSES) {
+                retry.add(removal)
+            } else {
+                log.error("Failed to delete ${removal.first} from elastic: ${failure}")
+            }
+        }
+        log.debug("Bulk deleted ${removals.size()} documents in ${bulkResponse.took} ms")
+        return retry
+    }
+
+    /**
+     * Returns null unless the bulk request was carried out (with a 2xx status and items for the documents in it).
+     */
+    private static ElasticBulkResponse parseBulkResponse(Tuple2<Integer, String> response, boolean readAllItems = false) {
+        if (response.first < 200 || response.first >= 300)
+            return null
+        try {
+            ElasticBulkResponse bulkResponse = readAllItems ?
+                    ElasticBulkResponse.parseAll(response.second) : ElasticBulkResponse.parse(response.second)
+            return bulkResponse.isBulkResponse() ? bulkResponse : null
+        } catch (IOException e) {
+            log.warn("Could not parse bulk response: ${e}")
+            return null
+        }
+    }
+
+    private void removeByQuery(String identifier) {
         log.debug("Deleting object with identifier ${toElasticId(identifier)}.")
         def dsl = ["query":["term":["_id":toElasticId(identifier)]]]
         //def query = new NStringEntity(JsonOutput.toJson(dsl), ContentType.APPLICATION_JSON)
@@ -184,18 +449,81 @@ class ElasticSearch {
                   "objects deleted")
     }
 
+    /**
+     * Create a new index named after the current index (which is expected to be an alias) and the current time,
+     * configured by indexConfig (as generated by ElasticConfigGenerator). The index is set up for bulk loading,
+     * without replicas and refreshing. Call finishIndexBuild() when done loading.
+     *
+     * Returns the name of the new index.
+     */
+    String createIndexForBuild(Map indexConfig) {
+        String newIndex = indexName + "_" + new Date().format("yyyyMMddHHmmss")
+        Map config = Document.deepCopy(indexConfig)
+        Map indexSettings = (Map) ((Map) config.get("settings", [:])).get("index", [:])
+        indexSettings.putAll(BULK_LOAD_INDEX_SETTINGS)
+
+        Tuple2<Integer, String> response = performRequest('PUT', "/${newIndex}", mapper.writeValueAsString(config))
+        if (response?.first != 200)
+            throw new WhelkIndexException("Could not create index ${newIndex}: ${response?.second}")
+        log.info("Created index ${newIndex} for bulk loading")
+        return newIndex
+    }
+
+    /**
+     * Restore the replica and refresh settings of indexConfig (or the ElasticSearch defaults) for an index made by
+     * createIndexForBuild().
+     */
+    void finishIndexBuild(String index, Map indexConfig) {
+        Map configured = (Map) ((Map) indexConfig.get("settings") ?: [:]).get("index") ?: [:]
+        Map settings = ["index": ["number_of_replicas": configured.get("number_of_replicas", 1),
+                                  "refresh_interval": configured.get("refresh_interval", "1s")]]
+        Tuple2<Integer, String> response = performRequest('PUT', "/${index}/_settings", mapper.writeValueAsString(settings))
+        if (response?.first != 200)
+            throw new WhelkIndexException("Could not update settings of index ${index}: ${response?.second}")
+        performRequest('POST', "/${index}/_refresh", "")
+        log.info("Index ${index} is done building, settings restored to ${settings}")
+    }
+
+    /**
+     * Point alias at index (only), in one atomic operation. Returns the indices the alias pointed at before.
+     */
+    List<String> swapAlias(String alias, String index) {
+        List<String> previous = getAliasedIndices(alias)
+        List actions = previous.collect { ["remove": ["index": it, "alias": alias]] }
+        actions.add(["add": ["index": index, "alias": alias]])
+
+        Tuple2<Integer, String> response = performRequest('POST', "/_aliases", mapper.writeValueAsString(["actions": actions]))
+        if (response?.first != 200)
+            throw new WhelkIndexException("Could not point alias ${alias} at ${index}: ${response?.second}")
+        log.info("Alias ${alias} now points at ${index} (was ${previous})")
+        return previous
+    }
+
+    List<String> getAliasedIndices(String alias) {
+        Tuple2<Integer, String> response = performRequest('GET', "/_alias/${alias}", null)
+        if (response?.first == 404)
+            return []
+        if (response?.first != 200)
+            throw new WhelkIndexException("Could not get indices for alias ${alias}: ${response?.second}")
+        Map indices = mapper.readValue(response.second, Map)
+        return indices.keySet().toList()
+    }
+
     Map getShapeForIndex(Document document, Whelk whelk, String collection) {
 
+        // Shape a copy, leaving the document as it was. Shaping may be repeated if a request has to be resent.
+        // The document is not changed while the copy is in use, so the copy can read through to its data.
+        Document copy = document.copyOnWriteClone()
+
         if (!collection.equals("hold")) {
             List externalRefs = document.getExternalRefs()
             List convertedExternalLinks = JsonLd.expandLinks(externalRefs, whelk.jsonld.getDisplayData().get(JsonLd.getCONTEXT_KEY()))
             Map referencedData = whelk.bulkLoad(convertedExternalLinks)
                     .collectEntries { id, doc -> [id, doc.data] }
-            whelk.jsonld.embellish(document.data, referencedData, true)
+            whelk.jsonld.embellish(copy.data, referencedData, true)
         }
 
         log.debug("Framing ${document.getShortId()}")
-        Document copy = document.clone()
         boolean chipsify = false
         copy.data['@graph'] = copy.data['@graph'].collect { whelk.jsonld.toCard(it, chipsify) }
 
@@ -235,6 +563,10 @@ class ElasticSearch {
         results.totalHits = responseMap.hits.total
         results.items = responseMap.hits.hits.collect { it."_source" }
         results.aggregations = responseMap.aggregations
+        if (responseMap.hits.hits) {
+            // Only present for sorted queries, see pageAfter()
+            results.lastSortValues = responseMap.hits.hits.last().sort
+        }
 
         return results
     }
@@ -257,6 +589,11 @@ class ElasticSearch {
      * then joined with AND.
      *
      * E.g. k1=v1&k1=v2&k2=v3 -> (k1=v1 OR k1=v2) AND (k2=v3)
+     *
+     * Exact constraints that cannot affect relevance (the @type terms) go in
+     * filter context, where ES skips scoring and can cache them. Parameter
+     * clauses that are matched as full text stay in must, since they
+     * contribute to the score.
      */
     static Map createJsonDsl(Map queryParameters, int limit=DEFAULT_PAGE_SIZE,
                              int offset=0, String sortBy=null) {
@@ -277,8 +614,9 @@ class ElasticSearch {
                                                    'default_operator': 'and']]
         }
 
+        List filters = []
         List reservedParameters = ['q', 'p', 'o', 'value', '_limit',
-                                   '_offset', '_sort', '_site_base_uri']
+                                   '_offset', '_sort', '_after', '_site_base_uri']
 
         def groups = queryParameters.groupBy {p -> getPrefixIfExist(p.key)}
         Map nested = groups.findAll{g -> g.value.size() == 2}
@@ -297,11 +635,41 @@ class ElasticSearch {
                 }
                 // we assume vals is a String[], since that's that we get
                 // from HttpServletResponse.getParameterMap()
-                musts << buildESShouldClause(k, vals)
+                if (k == JsonLd.TYPE_KEY) {
+                    // keyword field, so an exact terms filter will do
+                    filters << ['terms': [(k): vals as List]]
+                } else {
+                    musts << buildESShouldClause(k, vals)
+                }
             }
         }
 
-        dslQuery['query'] = ['bool': ['must': musts]]
+        Map bool = ['must': musts]
+        if (filters) {
+            bool['filter'] = filters
+        }
+        dslQuery['query'] = ['bool': bool]
+        return dslQuery
+    }
+
+    /**
+     * Make a DSL query fetch the page following the hit with sort values 'searchAfter' (or the first page, if null).
+     *
+     * Unlike from/size, the cost of this does not grow with the depth of the page. The sort is made total by adding
+     * the document id as tiebreaker (and relevance first, if not sorted otherwise), so that the sort values of the
+     * last hit (lastSortValues in the query result) identify the position to continue from.
+     */
+    static Map pageAfter(Map dslQuery, List searchAfter) {
+        List sortClauses = dslQuery['sort'] ?: [['_score': ['order': 'desc']]]
+        if (!sortClauses.any { Map clause -> clause.containsKey(SEARCH_AFTER_TIEBREAKER) }) {
+            sortClauses = sortClauses + [[(SEARCH_AFTER_TIEBREAKER): ['order': 'asc']]]
+        }
+        dslQuery['sort'] = sortClauses
+
+        if (searchAfter) {
+            dslQuery['search_after'] = searchAfter
+            dslQuery['from'] = 0
+        }
         return dslQuery
     }
 
@@ -60,7 +60,7 @@ class PostgreSQLComponent {
                      GET_DOCUMENT_VERSION_BY_MAIN_ID,
                      GET_ALL_DOCUMENT_VERSIONS_BY_MAIN_ID,
                      GET_DOCUMENT_BY_SAMEAS_ID, LOAD_ALL_DOCUMENTS,
-                     LOAD_ALL_DOCUMENTS_BY_COLLECTION,
+                     LOAD_ALL_DOCUMENTS_BY_COLLECTION, LOAD_ALL_DOCUMENTS_IN_ID_RANGE, GET_ID_PARTITION_BOUNDS,
                      DELETE_DOCUMENT_STATEMENT, STATUS_OF_DOCUMENT,
                      LOAD_ID_FROM_ALTERNATE, INSERT_IDENTIFIERS,
                      LOAD_RECORD_IDENTIFIERS, LOAD_THING_IDENTIFIERS, DELETE_IDENTIFIERS, LOAD_COLLECTIONS,
@@ -73,11 +73,18 @@ class PostgreSQLComponent {
     protected String FIND_BY, COUNT_BY
     protected String GET_SYSTEMID_BY_IRI
     protected String GET_DOCUMENT_BY_IRI
+    protected String GET_ID_AND_MODIFIED_BY_IRIS
+    protected String LOAD_DATA_BY_IDS
+    protected String LOAD_EMBELLISHED_BY_IDS, LOAD_DATA_BY_IRIS, GET_ID_AND_COLLECTION_BY_IRIS, GET_ATTACHED_HOLDING_IDS
     protected String GET_MINMAX_MODIFIED
     protected String UPDATE_MINMAX_MODIFIED
     protected String GET_LEGACY_PROFILE
     protected String INSERT_EMBELLISHED_DOCUMENT
     protected String DELETE_EMBELLISHED_DOCUMENT
+    protected String LOAD_INDEX_FINGERPRINTS, SAVE_INDEX_FINGERPRINT, DELETE_INDEX_FINGERPRINT
+    protected String INSERT_OAIPMH_SET, UPDATE_OAIPMH_SETS_MODIFIED, UPDATE_OAIPMH_BIB_SETS_MODIFIED
+    protected String LOAD_OAIPMH_PAYLOADS, SAVE_OAIPMH_PAYLOAD, DELETE_OAIPMH_PAYLOADS
+    protected String DELETE_OAIPMH_TOMBSTONES, INSERT_OAIPMH_TOMBSTONE
 
     // Query defaults
     static final int DEFAULT_PAGE_SIZE = 50
@@ -116,6 +123,10 @@ class PostgreSQLComponent {
         String dependenciesTableName = mainTableName + "__dependencies"
         String profilesTableName = mainTableName + "__profiles"
         String embellishedTableName = mainTableName + "__embellished"
+        String fingerprintsTableName = mainTableName + "__index_fingerprints"
+        String oaipmhSetsTableName = mainTableName + "__oaipmh_sets"
+        String oaipmhCacheTableName = mainTableName + "__oaipmh_cache"
+        String oaipmhTombstonesTableName = mainTableName + "__oaipmh_tombstones"
 
         connectionPool = new BasicDataSource()
 
@@ -202,6 +213,10 @@ class PostgreSQLComponent {
         LOAD_COLLECTIONS = "SELECT DISTINCT collection FROM $mainTableName"
         LOAD_ALL_DOCUMENTS_BY_COLLECTION = "SELECT id,data,created,modified,deleted FROM $mainTableName " +
                 "WHERE modified >= ? AND modified <= ? AND collection = ? AND deleted = false"
+        LOAD_ALL_DOCUMENTS_IN_ID_RANGE = "SELECT id,data,created,modified,deleted FROM $mainTableName " +
+                "WHERE collection = ? AND deleted = false AND id > ?"
+        GET_ID_PARTITION_BOUNDS = "SELECT percentile_disc(?) WITHIN GROUP (ORDER BY id) FROM $mainTableName " +
+                "WHERE collection = ? AND deleted = false"
         LOAD_RECORD_IDENTIFIERS = "SELECT iri from $idTableName WHERE id = ? AND graphIndex = 0"
         LOAD_THING_IDENTIFIERS = "SELECT iri from $idTableName WHERE id = ? AND graphIndex = 1"
 
@@ -217,6 +232,33 @@ class PostgreSQLComponent {
         UPDATE_MINMAX_MODIFIED = "WITH dependsOn AS (SELECT modified FROM $dependenciesTableName JOIN $mainTableName ON " + dependenciesTableName + ".dependsOnId = " + mainTableName+ ".id WHERE " + dependenciesTableName + ".id = ? UNION SELECT modified FROM $mainTableName WHERE id = ?) " +
                 "UPDATE $mainTableName SET depMinModified = (SELECT MIN(modified) FROM dependsOn), depMaxModified = (SELECT MAX(modified) FROM dependsOn) WHERE id = ?"
 
+        LOAD_INDEX_FINGERPRINTS = "SELECT id, fingerprint FROM $fingerprintsTableName WHERE id = ANY(?)"
+        SAVE_INDEX_FINGERPRINT = "WITH upsertfingerprint AS (UPDATE $fingerprintsTableName SET fingerprint = ?, modified = now() WHERE id = ? RETURNING *) " +
+                "INSERT INTO $fingerprintsTableName (id, fingerprint) SELECT ?,? WHERE NOT EXISTS (SELECT * FROM upsertfingerprint)"
+        DELETE_INDEX_FINGERPRINT = "DELETE FROM $fingerprintsTableName WHERE id = ?"
+
+        INSERT_OAIPMH_SET = "INSERT INTO $oaipmhSetsTableName (setSpec, id, modified) SELECT ?, id, modified FROM $mainTableName " +
+                "WHERE id = ? AND NOT EXISTS (SELECT 1 FROM $oaipmhSetsTableName WHERE setSpec = ? AND id = ?)"
+        UPDATE_OAIPMH_SETS_MODIFIED = "UPDATE $oaipmhSetsTableName SET modified = GREATEST(modified, (SELECT modified FROM $mainTableName WHERE id = ?)) WHERE id = ?"
+        UPDATE_OAIPMH_BIB_SETS_MODIFIED = "UPDATE $oaipmhSetsTableName SET modified = GREATEST(modified, (SELECT modified FROM $mainTableName WHERE id = ?)) " +
+                "WHERE id = ? AND setSpec LIKE 'bib:%'"
+
+        DELETE_OAIPMH_TOMBSTONES = "DELETE FROM $oaipmhTombstonesTableName WHERE id = ?"
+        INSERT_OAIPMH_TOMBSTONE = "INSERT INTO $oaipmhTombstonesTableName (id, modified, collection, changedBy, sigel, itemOf, setSpecs) " +
+                "SELECT id, modified, collection, changedBy, data#>>'{@graph,1,heldBy,@id}', data#>>'{@graph,1,itemOf,@id}', " +
+                "ARRAY(SELECT setSpec FROM $oaipmhSetsTableName WHERE id = ?) FROM $mainTableName WHERE id = ? AND deleted = true"
+
+        LOAD_OAIPMH_PAYLOADS = "SELECT main.id, main.modified, main.depMaxModified, main.checksum, cache.modified AS cachedModified, " +
+                "cache.depMaxModified AS cachedDepMaxModified, cache.checksum AS cachedChecksum, cache.data FROM $mainTableName main " +
+                "LEFT JOIN $oaipmhCacheTableName cache ON cache.id = main.id AND cache.format = ? WHERE main.id = ANY(?)"
+        // Only saved if the record is still the one the payload was converted from
+        SAVE_OAIPMH_PAYLOAD = "WITH currentrecord AS (SELECT id FROM $mainTableName WHERE id = ? AND checksum = ?), " +
+                "upsertpayload AS (UPDATE $oaipmhCacheTableName SET modified = ?, depMaxModified = ?, checksum = ?, data = ? " +
+                "WHERE id = ? AND format = ? AND EXISTS (SELECT * FROM currentrecord) RETURNING *) " +
+                "INSERT INTO $oaipmhCacheTableName (id, format, modified, depMaxModified, checksum, data) SELECT ?,?,?,?,?,? " +
+                "WHERE EXISTS (SELECT * FROM currentrecord) AND NOT EXISTS (SELECT * FROM upsertpayload)"
+        DELETE_OAIPMH_PAYLOADS = "DELETE FROM $oaipmhCacheTableName WHERE id = ?"
+
         // Queries
         QUERY_LD_API = "SELECT id,data,created,modified,deleted FROM $mainTableName WHERE deleted IS NOT TRUE AND "
 
@@ -238,6 +280,13 @@ class PostgreSQLComponent {
 
         GET_SYSTEMID_BY_IRI = "SELECT id FROM $idTableName WHERE iri = ?"
         GET_DOCUMENT_BY_IRI = "SELECT lddb.id,lddb.data,lddb.created,lddb.modified,lddb.deleted FROM lddb INNER JOIN lddb__identifiers ON lddb.id = lddb__identifiers.id WHERE lddb__identifiers.iri = ?"
+        GET_ID_AND_MODIFIED_BY_IRIS = "SELECT lddb__identifiers.iri,lddb.id,lddb.modified FROM lddb INNER JOIN lddb__identifiers ON lddb.id = lddb__identifiers.id WHERE lddb__identifiers.iri = ANY(?)"
+        LOAD_DATA_BY_IDS = "SELECT id,data FROM $mainTableName WHERE id = ANY(?)"
+        LOAD_EMBELLISHED_BY_IDS = "SELECT id,data FROM $embellishedTableName WHERE id = ANY(?)"
+        LOAD_DATA_BY_IRIS = "SELECT lddb__identifiers.iri,lddb.data FROM lddb INNER JOIN lddb__identifiers ON lddb.id = lddb__identifiers.id WHERE lddb__identifiers.iri = ANY(?)"
+        GET_ID_AND_COLLECTION_BY_IRIS = "SELECT lddb__identifiers.iri,lddb.id,lddb.collection FROM lddb INNER JOIN lddb__identifiers ON lddb.id = lddb__identifiers.id WHERE lddb__identifiers.iri = ANY(?)"
+        GET_ATTACHED_HOLDING_IDS = "SELECT id, data#>>'{@graph,1,itemOf,@id}' AS itemOf FROM $mainTableName " +
+                "WHERE collection = 'hold' AND deleted = false AND data#>>'{@graph,1,itemOf,@id}' = ANY(?)"
 
         GET_LEGACY_PROFILE = "SELECT profile FROM $profilesTableName WHERE library_id = ?"
      }
@@ -347,8 +396,11 @@ class PostgreSQLComponent {
             if (linkFinder != null)
                 linkFinder.normalizeIdentifiers(doc, connection)
 
+            // The caller may have edited the data in place, make sure we checksum what is actually stored.
+            doc.resetChecksum()
             insert = rigInsertStatement(insert, doc, changedIn, changedBy, collection, deleted)
             insert.executeUpdate()
+            saveOaiPmhTombstone(doc, connection, deleted)
             connection.commit()
             Document savedDoc = load(doc.getShortId(), connection)
             Date createdAt = parseDate(savedDoc.getCreated())
@@ -476,7 +528,6 @@ class PostgreSQLComponent {
         Connection connection = getConnection()
         connection.setAutoCommit(false)
         PreparedStatement selectStatement
-        PreparedStatement updateStatement
         ResultSet resultSet
 
         try {
@@ -501,9 +552,8 @@ class PostgreSQLComponent {
                 throw new SQLException("Not allowed to merge deleted record: " + remainingID)
             resultSet.close()
             Date modTime = new Date()
-            updateStatement = connection.prepareStatement(UPDATE_DOCUMENT)
-            rigUpdateStatement(updateStatement, remainingDocument, modTime, changedIn, changedBy, collection, false)
-            updateStatement.execute()
+            remainingDocument.resetChecksum()
+            updateDocumentRow(remainingDocument, connection, modTime, changedIn, changedBy, collection, false)
             saveVersion(remainingDocument, connection, createdTime, modTime, changedIn, changedBy, collection, false)
             refreshDerivativeTables(remainingDocument, connection, false)
 
@@ -513,6 +563,7 @@ class PostgreSQLComponent {
                 String dependerShortId = depender.get(0)
                 updateMinMaxDepModified((String) dependerShortId, connection)
                 removeEmbellishedDocument(dependerShortId, connection)
+                removeOaiPmhPayloads(dependerShortId, connection)
             }
 
             // Update the disappearing record
@@ -527,9 +578,7 @@ class PostgreSQLComponent {
             disappearingDocument.setDeleted(true)
             createdTime = new Date(resultSet.getTimestamp("created").getTime())
             resultSet.close()
-            updateStatement = connection.prepareStatement(UPDATE_DOCUMENT)
-            rigUpdateStatement(updateStatement, disappearingDocument, modTime, changedIn, changedBy, collection, true)
-            updateStatement.execute()
+            updateDocumentRow(disappearingDocument, connection, modTime, changedIn, changedBy, collection, true)
             saveVersion(disappearingDocument, connection, createdTime, modTime, changedIn, changedBy, collection, true)
             saveIdentifiers(disappearingDocument, connection, true, true)
             saveDependencies(disappearingDocument, connection)
@@ -539,6 +588,7 @@ class PostgreSQLComponent {
             for (Tuple2<String, String> depender : dependers) {
                 String dependerShortId = depender.get(0)
                 removeEmbellishedDocument(dependerShortId, connection)
+                removeOaiPmhPayloads(dependerShortId, connection)
                 updateMinMaxDepModified((String) dependerShortId, connection)
                 selectStatement = connection.prepareStatement(GET_DOCUMENT_FOR_UPDATE)
                 selectStatement.setString(1, dependerShortId)
@@ -548,11 +598,8 @@ class PostgreSQLComponent {
                 Document dependerDoc = assembleDocument(resultSet)
                 if (linkFinder != null)
                     linkFinder.normalizeIdentifiers(dependerDoc, connection)
-                updateStatement = connection.prepareStatement(UPDATE_DOCUMENT)
                 String dependerCollection = LegacyIntegrationTools.determineLegacyCollection(dependerDoc, jsonld)
-                rigUpdateStatement(updateStatement, dependerDoc, modTime, changedIn, changedBy, dependerCollection, false)
-                updateStatement.execute()
-                updateStatement.close()
+                updateDocumentRow(dependerDoc, connection, modTime, changedIn, changedBy, dependerCollection, false)
                 refreshDerivativeTables(dependerDoc, connection, false)
             }
 
@@ -566,8 +613,6 @@ class PostgreSQLComponent {
                 resultSet.close()
             if (selectStatement != null)
                 selectStatement.close()
-            if (updateStatement != null)
-                updateStatement.close()
             if (connection != null) {
                 connection.close()
             }
@@ -584,7 +629,6 @@ class PostgreSQLComponent {
         // Resources to be closed
         Connection connection = getConnection()
         PreparedStatement selectStatement
-        PreparedStatement updateStatement
         ResultSet resultSet
 
         Document doc = null
@@ -607,6 +651,7 @@ class PostgreSQLComponent {
             // Performs the callers updates on the document
             Document preUpdateDoc = doc.clone()
             updateAgent.update(doc)
+            doc.resetChecksum()
             if (linkFinder != null)
                 linkFinder.normalizeIdentifiers(doc)
             verifyDocumentIdRetention(preUpdateDoc, doc)
@@ -618,9 +663,7 @@ class PostgreSQLComponent {
             if (minorUpdate) {
                 modTime = new Date(resultSet.getTimestamp("modified").getTime())
             }
-            updateStatement = connection.prepareStatement(UPDATE_DOCUMENT)
-            rigUpdateStatement(updateStatement, doc, modTime, changedIn, changedBy, collection, deleted)
-            updateStatement.execute()
+            updateDocumentRow(doc, connection, modTime, changedIn, changedBy, collection, deleted)
 
             // The versions and identifiers tables are NOT under lock. Synchronization is only maintained on the main table.
             saveVersion(doc, connection, createdTime, modTime, changedIn, changedBy, collection, deleted)
@@ -628,6 +671,7 @@ class PostgreSQLComponent {
             for (Tuple2<String, String> depender : getDependers(doc.getShortId())) {
                 updateMinMaxDepModified((String) depender.get(0), connection)
                 removeEmbellishedDocument((String) depender.get(0), connection)
+                removeOaiPmhPayloads((String) depender.get(0), connection)
             }
             updateMinMaxDepModified(doc.getShortId(), connection)
             connection.commit()
@@ -659,10 +703,6 @@ class PostgreSQLComponent {
                 selectStatement.close()
             } catch (Exception e) {
             }
-            try {
-                updateStatement.close()
-            } catch (Exception e) {
-            }
             try {
                 connection.close()
             } catch (Exception e) {
@@ -716,13 +756,19 @@ class PostgreSQLComponent {
     }
 
     public refreshDerivativeTables(Document doc) {
-        refreshDerivativeTables(doc, getConnection(), doc.deleted)
+        Connection connection = getConnection()
+        refreshDerivativeTables(doc, connection, doc.deleted)
+        saveOaiPmhTombstone(doc, connection, doc.deleted)
     }
 
     public refreshDerivativeTables(Document doc, Connection connection, boolean deleted) {
         saveIdentifiers(doc, connection, deleted)
+        // Before the dependencies are replaced, since the record a holding was for until now is one of them
+        saveOaiPmhSets(doc, connection)
         saveDependencies(doc, connection)
         removeEmbellishedDocument(doc.getShortId(), connection)
+        // A minor update keeps the modified time, so cached payloads cannot be told apart from current ones
+        removeOaiPmhPayloads(doc.getShortId(), connection)
     }
 
     /**
@@ -799,6 +845,93 @@ class PostgreSQLComponent {
         }
     }
 
+    /**
+     * Keeps the OAI-PMH set memberships of 'doc' up to date: a holding is in the hold:<sigel> set, and the record it
+     * is a holding for in the bib:<sigel> set.
+     *
+     * Memberships are never removed. A record that leaves a set (because a holding was moved to another sigel or
+     * record, or deleted) stays in it, with the modified time of the change, so that incremental harvests of the set
+     * are sent the record again and can see from its own setSpecs that it is no longer in the set.
+     */
+    private void saveOaiPmhSets(Document doc, Connection connection) {
+        String id = doc.getShortId()
+        String heldBy = doc.getHeldBy()
+        String sigel = heldBy != null ? LegacyIntegrationTools.uriToLegacySigel(heldBy) : null
+        String holdingFor = doc.getHoldingFor()
+
+        // The records this has been a holding for until now
+        Set<String> bibIds = new HashSet<>()
+        PreparedStatement getHoldingFor = connection.prepareStatement(GET_DEPENDENCIES_OF_TYPE)
+        try {
+            getHoldingFor.setString(1, id)
+            getHoldingFor.setString(2, "itemOf")
+            ResultSet rs = getHoldingFor.executeQuery()
+            try {
+                while (rs.next())
+                    bibIds.add(rs.getString(1))
+            } finally { rs.close() }
+        } finally { getHoldingFor.close() }
+
+        if (sigel != null && holdingFor != null) {
+            insertOaiPmhSet("hold:" + sigel, id, connection)
+            String holdingForId = getSystemIdByIri(holdingFor, connection)
+            if (holdingForId != null) {
+                insertOaiPmhSet("bib:" + sigel, holdingForId, connection)
+                bibIds.add(holdingForId)
+            }
+        }
+
+        PreparedStatement updateModified = connection.prepareStatement(UPDATE_OAIPMH_SETS_MODIFIED)
+        try {
+            updateModified.setString(1, id)
+            updateModified.setString(2, id)
+            updateModified.executeUpdate()
+        } finally { updateModified.close() }
+
+        // The records this holding was, or now is, for have left or joined a bib:<sigel> set
+        PreparedStatement updateBibModified = connection.prepareStatement(UPDATE_OAIPMH_BIB_SETS_MODIFIED)
+        try {
+            for (String bibId : bibIds) {
+                updateBibModified.setString(1, id)
+                updateBibModified.setString(2, bibId)
+                updateBibModified.executeUpdate()
+            }
+        } finally { updateBibModified.close() }
+    }
+
+    /**
+     * Keeps the OAI-PMH tombstone of 'doc' up to date: a deleted record has one (with the sets it was in when it was
+     * deleted), others don't.
+     */
+    private void saveOaiPmhTombstone(Document doc, Connection connection, boolean deleted) {
+        String id = doc.getShortId()
+        PreparedStatement removeTombstones = connection.prepareStatement(DELETE_OAIPMH_TOMBSTONES)
+        try {
+            removeTombstones.setString(1, id)
+            removeTombstones.executeUpdate()
+        } finally { removeTombstones.close() }
+
+        if (deleted) {
+            PreparedStatement insertTombstone = connection.prepareStatement(INSERT_OAIPMH_TOMBSTONE)
+            try {
+                insertTombstone.setString(1, id)
+                insertTombstone.setString(2, id)
+                insertTombstone.executeUpdate()
+            } finally { insertTombstone.close() }
+        }
+    }
+
+    private void insertOaiPmhSet(String setSpec, String id, Connection connection) {
+        PreparedStatement insertSet = connection.prepareStatement(INSERT_OAIPMH_SET)
+        try {
+            insertSet.setString(1, setSpec)
+            insertSet.setString(2, id)
+            insertSet.setString(3, setSpec)
+            insertSet.setString(4, id)
+            insertSet.executeUpdate()
+        } finally { insertSet.close() }
+    }
+
     private void updateMinMaxDepModified(String id) {
         Connection connection
         try {
@@ -886,6 +1019,20 @@ class PostgreSQLComponent {
         return insert
     }
 
+    /**
+     * Updates the row of 'doc' in the main table. The OAI-PMH tombstone of 'doc' follows its deleted flag, so the
+     * flag must not be changed other than through here (or createDocument).
+     */
+    private void updateDocumentRow(Document doc, Connection connection, Date modTime, String changedIn, String changedBy,
+                                   String collection, boolean deleted) {
+        PreparedStatement updateStatement = connection.prepareStatement(UPDATE_DOCUMENT)
+        try {
+            rigUpdateStatement(updateStatement, doc, modTime, changedIn, changedBy, collection, deleted)
+            updateStatement.execute()
+        } finally { updateStatement.close() }
+        saveOaiPmhTombstone(doc, connection, deleted)
+    }
+
     private void rigUpdateStatement(PreparedStatement update, Document doc, Date modTime, String changedIn, String changedBy, String collection, boolean deleted) {
         update.setObject(1, doc.dataAsString, java.sql.Types.OTHER)
         update.setString(2, collection)
@@ -950,6 +1097,7 @@ class PostgreSQLComponent {
         PreparedStatement ver_batch = connection.prepareStatement(INSERT_DOCUMENT_VERSION)
         try {
             docs.each { doc ->
+                doc.resetChecksum()
                 if (linkFinder != null)
                     linkFinder.normalizeIdentifiers(doc)
                 Date now = new Date()
@@ -959,16 +1107,20 @@ class PostgreSQLComponent {
                 }
                 batch = rigInsertStatement(batch, doc, changedIn, changedBy, collection, false)
                 batch.addBatch()
+            }
+            batch.executeBatch()
+            ver_batch.executeBatch()
+            // The derivative tables may refer to the main table rows, so they are refreshed once those exist
+            docs.each { doc ->
                 refreshDerivativeTables(doc, connection, false)
                 if (updateDepMinMax) {
                     for (Tuple2<String, String> depender : getDependers(doc.getShortId())) {
                         updateMinMaxDepModified((String) depender.get(0), connection)
                         removeEmbellishedDocument((String) depender.get(0), connection)
+                        removeOaiPmhPayloads((String) depender.get(0), connection)
                     }
                 }
             }
-            batch.executeBatch()
-            ver_batch.executeBatch()
             connection.commit()
             log.debug("Stored ${docs.size()} documents in collection ${collection} (versioning: ${versioning})")
             return true
@@ -1398,6 +1550,85 @@ class PostgreSQLComponent {
         }
     }
 
+    /**
+     * Like loadEmbellished, but for all of 'ids' with a constant number of queries: one for the cached embellished
+     * documents, and for the ones not cached yet, one for the documents and one for everything they link to.
+     * Returns a map from id to embellished document, ids of missing documents are left out.
+     */
+    Map<String, Document> loadEmbellishedByIds(Collection<String> ids, JsonLd jsonld) {
+        Map<String, Document> result = [:]
+        if (ids.isEmpty())
+            return result
+
+        Connection connection = getConnection()
+        PreparedStatement preparedStatement
+        ResultSet rs
+        try {
+            preparedStatement = connection.prepareStatement(LOAD_EMBELLISHED_BY_IDS)
+            preparedStatement.setArray(1, connection.createArrayOf("text", ids as Object[]))
+            rs = preparedStatement.executeQuery()
+            while (rs.next()) {
+                result.put(rs.getString("id"), new Document(mapper.readValue(rs.getString("data"), Map)))
+            }
+            rs.close()
+            preparedStatement.close()
+
+            Collection<String> misses = ids.findAll { !result.containsKey(it) }
+            if (misses.isEmpty())
+                return result
+
+            // Cache-misses, embellish and store
+            List<Document> documents = []
+            preparedStatement = connection.prepareStatement(LOAD_DATA_BY_IDS)
+            preparedStatement.setArray(1, connection.createArrayOf("text", misses as Object[]))
+            rs = preparedStatement.executeQuery()
+            while (rs.next()) {
+                documents.add(new Document(mapper.readValue(rs.getString("data"), Map)))
+            }
+            rs.close()
+            preparedStatement.close()
+
+            Map context = (Map) jsonld.getDisplayData().get(JsonLd.getCONTEXT_KEY())
+            Map<Document, List<String>> linksByDocument = [:]
+            Set<String> allLinks = new HashSet<>()
+            for (Document document : documents) {
+                List<String> links = JsonLd.expandLinks(document.getExternalRefs(), context)
+                linksByDocument.put(document, links)
+                allLinks.addAll(links)
+            }
+
+            // Kept as text, so that each document gets its own copy of what it links to
+            Map<String, String> linkedData = [:]
+            if (!allLinks.isEmpty()) {
+                preparedStatement = connection.prepareStatement(LOAD_DATA_BY_IRIS)
+                preparedStatement.setArray(1, connection.createArrayOf("text", allLinks as Object[]))
+                rs = preparedStatement.executeQuery()
+                while (rs.next()) {
+                    linkedData.put(rs.getString("iri"), rs.getString("data"))
+                }
+            }
+
+            for (Document document : documents) {
+                Map referencedData = [:]
+                for (String iri : linksByDocument.get(document)) {
+                    String data = linkedData.get(iri)
+                    if (data != null) {
+                        Document externalDocument = new Document(mapper.readValue(data, Map))
+                        referencedData.put(externalDocument.getShortId(), externalDocument.data)
+                    }
+                }
+                jsonld.embellish(document.data, referencedData, false)
+                cacheEmbellishedDocument(document.getShortId(), document, connection)
+                result.put(document.getShortId(), document)
+            }
+            return result
+        } finally {
+            try {rs?.close()} catch (Exception e) { /* ignore */ }
+            try {preparedStatement?.close()} catch (Exception e) { /* ignore */ }
+            connection.close()
+        }
+    }
+
     String getCollectionBySystemID(String id) {
         Connection connection = getConnection()
         try {
@@ -1538,6 +1769,108 @@ class PostgreSQLComponent {
         }
     }
 
+    /**
+     * Returns the system id and modified time of the documents with the given IRIs (by IRI), without loading them.
+     */
+    Map<String, Tuple2<String, Date>> getIdAndModifiedByIris(Collection<String> iris) {
+        Map<String, Tuple2<String, Date>> result = [:]
+        if (iris.isEmpty())
+            return result
+
+        Connection connection = getConnection()
+        PreparedStatement preparedStatement
+        ResultSet rs
+        try {
+            preparedStatement = connection.prepareStatement(GET_ID_AND_MODIFIED_BY_IRIS)
+            preparedStatement.setArray(1, connection.createArrayOf("text", iris as Object[]))
+            rs = preparedStatement.executeQuery()
+            while (rs.next()) {
+                result.put(rs.getString("iri"), new Tuple2<String, Date>(rs.getString("id"),
+                        new Date(rs.getTimestamp("modified").getTime())))
+            }
+        } finally {
+            connection.close()
+        }
+        return result
+    }
+
+    /**
+     * Returns the system ids and collections of the documents with the given IRIs (by IRI), in one query.
+     */
+    Map<String, Tuple2<String, String>> getIdAndCollectionByIris(Collection<String> iris) {
+        Map<String, Tuple2<String, String>> result = [:]
+        if (iris.isEmpty())
+            return result
+
+        Connection connection = getConnection()
+        PreparedStatement preparedStatement
+        ResultSet rs
+        try {
+            preparedStatement = connection.prepareStatement(GET_ID_AND_COLLECTION_BY_IRIS)
+            preparedStatement.setArray(1, connection.createArrayOf("text", iris as Object[]))
+            rs = preparedStatement.executeQuery()
+            while (rs.next()) {
+                result.put(rs.getString("iri"), new Tuple2<String, String>(rs.getString("id"), rs.getString("collection")))
+            }
+        } finally {
+            connection.close()
+        }
+        return result
+    }
+
+    /**
+     * Returns the system ids of the (non-deleted) holdings for each of the given thing identifiers, in one query.
+     * Thing identifiers without holdings are left out.
+     */
+    Map<String, List<String>> getAttachedHoldingIds(Collection<String> thingIdentifiers) {
+        Map<String, List<String>> result = [:]
+        if (thingIdentifiers.isEmpty())
+            return result
+
+        Connection connection = getConnection()
+        PreparedStatement preparedStatement
+        ResultSet rs
+        try {
+            preparedStatement = connection.prepareStatement(GET_ATTACHED_HOLDING_IDS)
+            preparedStatement.setArray(1, connection.createArrayOf("text", thingIdentifiers as Object[]))
+            rs = preparedStatement.executeQuery()
+            while (rs.next()) {
+                String itemOf = rs.getString("itemOf")
+                if (!result.containsKey(itemOf))
+                    result.put(itemOf, new ArrayList<String>())
+                result.get(itemOf).add(rs.getString("id"))
+            }
+        } finally {
+            connection.close()
+        }
+        return result
+    }
+
+    /**
+     * Returns the data of the documents with the given system ids (by id), in one query. Unlike load(), this does
+     * not fetch the alternate identifiers of the documents.
+     */
+    Map<String, Map> loadDataByIds(Collection<String> ids) {
+        Map<String, Map> result = [:]
+        if (ids.isEmpty())
+            return result
+
+        Connection connection = getConnection()
+        PreparedStatement preparedStatement
+        ResultSet rs
+        try {
+            preparedStatement = connection.prepareStatement(LOAD_DATA_BY_IDS)
+            preparedStatement.setArray(1, connection.createArrayOf("text", ids as Object[]))
+            rs = preparedStatement.executeQuery()
+            while (rs.next()) {
+                result.put(rs.getString("id"), mapper.readValue(rs.getString("data"), Map))
+            }
+        } finally {
+            connection.close()
+        }
+        return result
+    }
+
     String getHoldingForBibAndSigel(String bibThingUri, String libraryUri, Connection connection) {
         PreparedStatement preparedStatement
         ResultSet rs
@@ -1926,29 +2259,81 @@ class PostgreSQLComponent {
     @CompileStatic(SKIP)
     Iterable<Document> loadAll(String collection, boolean includeDeleted = false, Date since = null, Date until = null) {
         log.debug("Load all called with collection: $collection")
+        long untilTS = until?.getTime() ?: PGStatement.DATE_POSITIVE_INFINITY
+        long sinceTS = since?.getTime() ?: 0L
+
+        String sql
+        List<Object> parameters = [new Timestamp(sinceTS), new Timestamp(untilTS)]
+        if (collection) {
+            sql = LOAD_ALL_DOCUMENTS_BY_COLLECTION
+            parameters.add(collection)
+        } else {
+            sql = LOAD_ALL_DOCUMENTS
+        }
+        if (!includeDeleted)
+            sql += " AND deleted = false"
+
+        return streamDocuments(sql, parameters)
+    }
+
+    /**
+     * Load all (non deleted) documents in collection with afterId < id <= toId, in id order.
+     * toId may be null, for no upper bound.
+     */
+    Iterable<Document> loadAllInIdRange(String collection, String afterId, String toId) {
+        String sql = LOAD_ALL_DOCUMENTS_IN_ID_RANGE
+        List<Object> parameters = new ArrayList<Object>()
+        parameters.add(collection)
+        parameters.add(afterId)
+        if (toId != null) {
+            sql += " AND id <= ?"
+            parameters.add(toId)
+        }
+        return streamDocuments(sql + " ORDER BY id", parameters)
+    }
+
+    /**
+     * Get the ids splitting the (non deleted) documents in collection into partitionCount parts of about the same
+     * size, in id order. The last part has no upper bound, so partitionCount - 1 ids are returned.
+     */
+    List<String> getIdPartitionBounds(String collection, int partitionCount) {
+        List<Double> fractions = []
+        for (int i = 1; i < partitionCount; ++i) {
+            fractions.add(((double) i) / partitionCount)
+        }
+        if (fractions.isEmpty())
+            return []
+
+        Connection connection = getConnection()
+        PreparedStatement selectstmt
+        ResultSet rs
+        try {
+            selectstmt = connection.prepareStatement(GET_ID_PARTITION_BOUNDS)
+            selectstmt.setArray(1, connection.createArrayOf("float8", fractions as Object[]))
+            selectstmt.setString(2, collection)
+            rs = selectstmt.executeQuery()
+            List<String> bounds = []
+            if (rs.next() && rs.getArray(1) != null) {
+                for (Object bound : (Object[]) rs.getArray(1).getArray()) {
+                    if (bound != null && !bounds.contains(bound.toString()))
+                        bounds.add(bound.toString())
+                }
+            }
+            return bounds
+        } finally {
+            connection.close()
+        }
+    }
+
+    private Iterable<Document> streamDocuments(String sql, List<Object> parameters) {
         return new Iterable<Document>() {
             Iterator<Document> iterator() {
                 Connection connection = getConnection()
                 connection.setAutoCommit(false)
-                PreparedStatement loadAllStatement
-                long untilTS = until?.getTime() ?: PGStatement.DATE_POSITIVE_INFINITY
-                long sinceTS = since?.getTime() ?: 0L
-
-                String sql
-                if (collection) {
-                    sql = LOAD_ALL_DOCUMENTS_BY_COLLECTION
-
-                } else {
-                    sql = LOAD_ALL_DOCUMENTS
-                }
-                if (!includeDeleted)
-                    sql += " AND deleted = false"
-                loadAllStatement = connection.prepareStatement(sql)
+                PreparedStatement loadAllStatement = connection.prepareStatement(sql)
                 loadAllStatement.setFetchSize(100)
-                loadAllStatement.setTimestamp(1, new Timestamp(sinceTS))
-                loadAllStatement.setTimestamp(2, new Timestamp(untilTS))
-                if (collection) {
-                    loadAllStatement.setString(3, collection)
+                for (int i = 0; i < parameters.size(); ++i) {
+                    loadAllStatement.setObject(i + 1, parameters.get(i))
                 }
                 ResultSet rs = loadAllStatement.executeQuery()
 
@@ -2069,6 +2454,164 @@ class PostgreSQLComponent {
         }
     }
 
+    /**
+     * Load the fingerprints of what was last sent to the search index for the given system IDs.
+     * Returns a map from system ID to fingerprint, IDs without a fingerprint are left out.
+     */
+    public Map<String, String> loadIndexFingerprints(Collection<String> ids) {
+        Map<String, String> fingerprints = [:]
+        if (ids.isEmpty())
+            return fingerprints
+
+        Connection connection = getConnection()
+        PreparedStatement selectstmt
+        ResultSet rs
+        try {
+            selectstmt = connection.prepareStatement(LOAD_INDEX_FINGERPRINTS)
+            selectstmt.setArray(1, connection.createArrayOf("text", ids as Object[]))
+            rs = selectstmt.executeQuery()
+            while (rs.next()) {
+                fingerprints.put(rs.getString("id"), rs.getString("fingerprint"))
+            }
+        } finally {
+            connection.close()
+        }
+        return fingerprints
+    }
+
+    public void saveIndexFingerprints(Map<String, String> fingerprints) {
+        if (fingerprints.isEmpty())
+            return
+
+        Connection connection = getConnection()
+        PreparedStatement savestmt
+        try {
+            savestmt = connection.prepareStatement(SAVE_INDEX_FINGERPRINT)
+            fingerprints.each { String id, String fingerprint ->
+                savestmt.setString(1, fingerprint)
+                savestmt.setString(2, id)
+                savestmt.setString(3, id)
+                savestmt.setString(4, fingerprint)
+                savestmt.addBatch()
+            }
+            savestmt.executeBatch()
+        } finally {
+            connection.close()
+        }
+    }
+
+    public void removeIndexFingerprint(String id) {
+        Connection connection = getConnection()
+        PreparedStatement removestmt
+        try {
+            removestmt = connection.prepareStatement(DELETE_INDEX_FINGERPRINT)
+            removestmt.setString(1, id)
+            removestmt.executeUpdate()
+        } finally {
+            connection.close()
+        }
+    }
+
+    /**
+     * A record converted to an OAI-PMH metadata format, and the modified and depMaxModified of the record it was
+     * converted from.
+     */
+    static class OaiPmhPayload {
+        String id
+        String data
+        Timestamp modified
+        Timestamp depMaxModified
+        String checksum
+    }
+
+    /**
+     * Load the OAI-PMH payloads cached for the given system IDs in 'format'. Returns a map from system ID to payload,
+     * IDs of missing records are left out.
+     *
+     * The data of a payload is null if nothing is cached, or if the record has been modified since it was cached (or
+     * anything it depends on has, if 'checkDependencies'). Either way, modified, depMaxModified and checksum are those
+     * the record has now, for saving a payload converted anew with saveOaiPmhPayloads.
+     *
+     * A minor update leaves the times unchanged, so the checksum of the record has to match too. Saving a record also
+     * drops what is cached for it and its dependers.
+     */
+    public Map<String, OaiPmhPayload> loadOaiPmhPayloads(Collection<String> ids, String format, boolean checkDependencies) {
+        Map<String, OaiPmhPayload> payloads = [:]
+        if (ids.isEmpty())
+            return payloads
+
+        Connection connection = getConnection()
+        PreparedStatement selectstmt
+        ResultSet rs
+        try {
+            selectstmt = connection.prepareStatement(LOAD_OAIPMH_PAYLOADS)
+            selectstmt.setString(1, format)
+            selectstmt.setArray(2, connection.createArrayOf("text", ids as Object[]))
+            rs = selectstmt.executeQuery()
+            while (rs.next()) {
+                OaiPmhPayload payload = new OaiPmhPayload()
+                payload.id = rs.getString("id")
+                payload.modified = rs.getTimestamp("modified")
+                payload.depMaxModified = rs.getTimestamp("depMaxModified")
+                payload.checksum = rs.getString("checksum")
+                boolean valid = payload.modified == rs.getTimestamp("cachedModified") &&
+                        payload.checksum == rs.getString("cachedChecksum") &&
+                        (!checkDependencies || payload.depMaxModified == rs.getTimestamp("cachedDepMaxModified"))
+                if (valid)
+                    payload.data = rs.getString("data")
+                payloads.put(payload.id, payload)
+            }
+        } finally {
+            connection.close()
+        }
+        return payloads
+    }
+
+    /**
+     * Save OAI-PMH payloads in 'format'. A payload is left out if the record no longer has the checksum it was
+     * converted from, so that a conversion overtaken by an update is not saved as current.
+     */
+    public void saveOaiPmhPayloads(Collection<OaiPmhPayload> payloads, String format) {
+        if (payloads.isEmpty())
+            return
+
+        Connection connection = getConnection()
+        PreparedStatement savestmt
+        try {
+            savestmt = connection.prepareStatement(SAVE_OAIPMH_PAYLOAD)
+            for (OaiPmhPayload payload : payloads) {
+                savestmt.setString(1, payload.id)
+                savestmt.setString(2, payload.checksum)
+                savestmt.setTimestamp(3, payload.modified)
+                savestmt.setTimestamp(4, payload.depMaxModified)
+                savestmt.setString(5, payload.checksum)
+                savestmt.setString(6, payload.data)
+                savestmt.setString(7, payload.id)
+                savestmt.setString(8, format)
+                savestmt.setString(9, payload.id)
+                savestmt.setString(10, format)
+                savestmt.setTimestamp(11, payload.modified)
+                savestmt.setTimestamp(12, payload.depMaxModified)
+                savestmt.setString(13, payload.checksum)
+                savestmt.setString(14, payload.data)
+                savestmt.addBatch()
+            }
+            savestmt.executeBatch()
+        } finally {
+            connection.close()
+        }
+    }
+
+    private void removeOaiPmhPayloads(String id, Connection connection) {
+        PreparedStatement preparedStatement = connection.prepareStatement(DELETE_OAIPMH_PAYLOADS)
+        try {
+            preparedStatement.setString(1, id)
+            preparedStatement.execute()
+        } finally {
+            preparedStatement.close()
+        }
+    }
+
     /**
      * Get a database connection.
      */
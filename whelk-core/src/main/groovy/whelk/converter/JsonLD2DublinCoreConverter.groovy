@@ -4,12 +4,13 @@ import whelk.Document
 import whelk.JsonLd
 
 import javax.xml.stream.XMLOutputFactory
+import javax.xml.stream.XMLStreamException
 import javax.xml.stream.XMLStreamWriter
 
 /**
  * An extremely minimal and very lossy converter from jsonld to dublin core. Only identifiers are included.
  */
-class JsonLD2DublinCoreConverter implements FormatConverter
+class JsonLD2DublinCoreConverter implements XmlStreamConverter
 {
     Map convert(Map originaldata, String id) {
         HashMap<String, String> data = new HashMap<String, String>()
@@ -17,6 +18,18 @@ class JsonLD2DublinCoreConverter implements FormatConverter
         ByteArrayOutputStream baos = new ByteArrayOutputStream()
         XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance()
         XMLStreamWriter writer = xmlOutputFactory.createXMLStreamWriter(baos)
+        convertTo(originaldata, id, writer)
+        writer.writeEndDocument()
+        writer.close()
+
+        String xmlString = baos.toString("UTF-8")
+
+        data.put(JsonLd.NON_JSON_CONTENT_KEY, xmlString)
+
+        return data
+    }
+
+    void convertTo(Map originaldata, String id, XMLStreamWriter writer) throws XMLStreamException {
         writer.writeStartElement("oai_dc", "dc", "http://www.openarchives.org/OAI/2.0/oai_dc/")
         writer.writeNamespace("oai_dc", "http://www.openarchives.org/OAI/2.0/oai_dc/")
         writer.writeNamespace("dc", "http://purl.org/dc/elements/1.1/")
@@ -29,14 +42,6 @@ class JsonLD2DublinCoreConverter implements FormatConverter
         writer.writeEndElement()
 
         writer.writeEndElement()
-        writer.writeEndDocument()
-        writer.close()
-
-        String xmlString = baos.toString("UTF-8")
-
-        data.put(JsonLd.NON_JSON_CONTENT_KEY, xmlString)
-
-        return data
     }
 
     public String getRequiredContentType() {
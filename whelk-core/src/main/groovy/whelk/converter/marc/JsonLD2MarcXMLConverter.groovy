@@ -3,14 +3,23 @@ package whelk.converter.marc
 import groovy.util.logging.Log4j2 as Log
 import org.codehaus.jackson.map.ObjectMapper
 import org.w3c.dom.DocumentFragment
+import se.kb.libris.util.marc.Controlfield
+import se.kb.libris.util.marc.Datafield
+import se.kb.libris.util.marc.Field
 import se.kb.libris.util.marc.MarcRecord
+import se.kb.libris.util.marc.Subfield
 import whelk.Document
 import whelk.JsonLd
-import whelk.converter.FormatConverter
 import whelk.converter.JSONMarcConverter
+import whelk.converter.XmlStreamConverter
+
+import javax.xml.stream.XMLStreamException
+import javax.xml.stream.XMLStreamWriter
 
 @Log
-class JsonLD2MarcXMLConverter implements FormatConverter {
+class JsonLD2MarcXMLConverter implements XmlStreamConverter {
+
+    static final String MARCXML_NAMESPACE = "http://www.loc.gov/MARC21/slim"
 
     // List of restricted chars defined at: https://www.w3.org/TR/xml11/#charsets
     static List<String> restrictedSequences = []
@@ -36,19 +45,88 @@ class JsonLD2MarcXMLConverter implements FormatConverter {
 
     @Override
     Map convert(Map data, String id) {
+        MarcRecord record = toMarcRecord(data, id)
+
+        String xmlString = whelk.converter.JSONMarcConverter.marcRecordAsXMLString(record)
+        xmlString = filterRestrictedXmlEscapeSequences(xmlString)
+        Map xmlDocument = [(JsonLd.NON_JSON_CONTENT_KEY): xmlString]
+
+        return xmlDocument
+    }
+
+    /**
+     * Writes the MARCXML record straight to 'writer', leaving out the characters that are restricted in XML (like
+     * convert() does).
+     */
+    @Override
+    void convertTo(Map data, String id, XMLStreamWriter writer) throws XMLStreamException {
+        writeMarcXml(toMarcRecord(data, id), writer)
+    }
+
+    static void writeMarcXml(MarcRecord record, XMLStreamWriter writer) throws XMLStreamException {
+        writer.writeStartElement("record")
+        writer.writeDefaultNamespace(MARCXML_NAMESPACE)
+        String type = getRecordType(record)
+        if (type != null)
+            writer.writeAttribute("type", type)
+
+        writer.writeStartElement("leader")
+        writer.writeCharacters(filterRestrictedXmlChars(record.getLeader()))
+        writer.writeEndElement()
+
+        for (Field field : record.getFields()) {
+            if (field instanceof Controlfield) {
+                writer.writeStartElement("controlfield")
+                writer.writeAttribute("tag", field.getTag())
+                writer.writeCharacters(filterRestrictedXmlChars(((Controlfield) field).getData()))
+                writer.writeEndElement()
+            } else {
+                Datafield datafield = (Datafield) field
+                writer.writeStartElement("datafield")
+                writer.writeAttribute("ind1", String.valueOf(datafield.getIndicator(0)))
+                writer.writeAttribute("ind2", String.valueOf(datafield.getIndicator(1)))
+                writer.writeAttribute("tag", datafield.getTag())
+                for (Subfield subfield : datafield.getSubfields()) {
+                    writer.writeStartElement("subfield")
+                    writer.writeAttribute("code", String.valueOf(subfield.getCode()))
+                    writer.writeCharacters(filterRestrictedXmlChars(subfield.getData()))
+                    writer.writeEndElement()
+                }
+                writer.writeEndElement()
+            }
+        }
+
+        writer.writeEndElement() // record
+    }
+
+    private MarcRecord toMarcRecord(Map data, String id) {
         Document originalDocument = new Document(data)
 
         Map marcJsonData = jsonldConverter.convert(data, id)
 
         MarcRecord record = JSONMarcConverter.fromJson(mapper.writeValueAsString(marcJsonData))
 
-        record = prepareRecord(record, id, originalDocument.getModified(), originalDocument.getChecksum())
-
-        String xmlString = whelk.converter.JSONMarcConverter.marcRecordAsXMLString(record)
-        xmlString = filterRestrictedXmlEscapeSequences(xmlString)
-        Map xmlDocument = [(JsonLd.NON_JSON_CONTENT_KEY): xmlString]
+        return prepareRecord(record, id, originalDocument.getModified(), originalDocument.getChecksum())
+    }
 
-        return xmlDocument
+    /**
+     * The type attribute of the record element, as set by DomSerializer (and so in the output of convert()).
+     */
+    private static String getRecordType(MarcRecord record) {
+        switch (String.valueOf(record.getLeader(6))) {
+            case 'z':
+                return "Authority"
+            case ['u', 'v', 'x', 'y']:
+                return "Holdings"
+            case ['a', 'c', 'd', 'e', 'f', 'g', 'i', 'j', 'k', 'm', 'o', 'p', 'r', 't']:
+                return "Bibliographic"
+            case 'w':
+                return "Classification"
+            case 'q':
+                return "Community"
+            default:
+                return null
+        }
     }
 
     static MarcRecord prepareRecord(record, identifier, modified, checksum) {
@@ -89,6 +167,24 @@ class JsonLD2MarcXMLConverter implements FormatConverter {
         return "application/marcxml+xml"
     }
 
+    private static String filterRestrictedXmlChars(String text) {
+        if (text == null)
+            return ""
+        StringBuilder result = null
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i)
+            boolean restricted = (c <= 0x8) || c == 0xB || c == 0xC || (c >= 0xE && c <= 0x1F) ||
+                    (c >= 0x7F && c <= 0x84) || (c >= 0x86 && c <= 0x9F)
+            if (restricted && result == null) {
+                result = new StringBuilder(text.length())
+                result.append(text, 0, i)
+            } else if (!restricted && result != null) {
+                result.append(c)
+            }
+        }
+        return result != null ? result.toString() : text
+    }
+
     private static String filterRestrictedXmlEscapeSequences(String xmlString) {
         for (String s : restrictedSequences) {
             xmlString = xmlString.replaceAll(s, "")
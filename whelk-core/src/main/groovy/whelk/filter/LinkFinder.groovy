@@ -104,6 +104,7 @@ class LinkFinder {
 
         clearReferenceAmbiguities(document)
         replaceSameAsLinksWithPrimaries(document.data, connection, cacheAuthForever)
+        document.resetChecksum()
     }
 
     private void replaceSameAsLinksWithPrimaries(Map data, Connection connection, boolean cacheAuthForever = false) {
@@ -0,0 +1,183 @@
+package whelk.util
+
+import groovy.transform.CompileStatic
+
+/**
+ * Copy-on-write views of document data (nested Maps and Lists).
+ *
+ * Views made with fork() share all underlying maps and lists. A change made through a view copies (shallowly)
+ * the container being changed and its ancestors, and leaves everything else shared. The cost of deriving a
+ * modified copy of some data therefore depends on the size of the change, not the size of the data.
+ *
+ * This only holds for as long as the shared maps and lists are changed through views. Raw references into the
+ * data taken before it was forked must not be used for changes afterwards.
+ *
+ * Views are not thread-safe, even for reads. A forked copy must only be used by one thread at a time.
+ */
+@CompileStatic
+class CopyOnWriteData {
+
+    interface View {
+        Context getContext()
+
+        /**
+         * The container this view currently reads from.
+         */
+        Object currentNode()
+
+        /**
+         * The container this view currently reads from, copied first if it is not exclusively owned by this view's
+         * context.
+         */
+        Object mutableNode()
+    }
+
+    /**
+     * Keeps track of the containers copied for (and thus owned by) one line of views.
+     */
+    static class Context {
+        private Set<Object> owned = newIdentitySet()
+        private final Map<Object, Object> copies = new IdentityHashMap<Object, Object>()
+
+        Object current(Object node) {
+            Object next = copies.get(node)
+            while (next != null) {
+                node = next
+                next = copies.get(node)
+            }
+            return node
+        }
+
+        boolean owns(Object node) {
+            return owned.contains(node)
+        }
+
+        Object copy(Object node) {
+            Object copy = node instanceof Map ? new LinkedHashMap((Map) node) : new ArrayList((List) node)
+            owned.add(copy)
+            copies.put(node, copy)
+            return copy
+        }
+
+        void disown(Object node) {
+            owned.remove(node)
+        }
+
+        /**
+         * Give up ownership of everything, so that anything changed from now on gets copied first.
+         */
+        void release() {
+            owned = newIdentitySet()
+        }
+
+        private static Set<Object> newIdentitySet() {
+            return Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>())
+        }
+    }
+
+    /**
+     * Returns a new copy-on-write view of 'data'. If 'data' is itself a view, it stops changing the containers it
+     * shares with the new view in place.
+     */
+    static Map fork(Map data) {
+        Object root = data
+        if (data instanceof View) {
+            View view = (View) data
+            view.getContext().release()
+            root = view.currentNode()
+        }
+        return new CopyOnWriteMap(new Context(), null, null, (Map) root)
+    }
+
+    static boolean isView(Object data) {
+        return data instanceof View
+    }
+
+    /**
+     * Wraps a value read from 'parent' (at 'key') in a view, if it is a container.
+     */
+    static Object wrap(Context context, View parent, Object key, Object value) {
+        if (value instanceof View)
+            value = ((View) value).currentNode()
+        if (value instanceof Map)
+            return new CopyOnWriteMap(context, parent, key, (Map) value)
+        if (value instanceof List)
+            return new CopyOnWriteList(context, parent, key, (List) value)
+        return value
+    }
+
+    /**
+     * Unwraps a value about to be stored through a view. A view from another context is disowned there, since it
+     * is shared from now on.
+     *
+     * Views nested in plain maps and lists (as made by code copying entries out of a view) are unwrapped too, in
+     * place. Only the plain containers are walked, not what is below a view.
+     */
+    static Object unwrap(Object value) {
+        if (value instanceof View) {
+            View view = (View) value
+            Object node = view.currentNode()
+            view.getContext().disown(node)
+            return node
+        }
+        if (value instanceof Map) {
+            for (Map.Entry entry : ((Map) value).entrySet()) {
+                Object unwrapped = unwrap(entry.getValue())
+                if (!unwrapped.is(entry.getValue()))
+                    entry.setValue(unwrapped)
+            }
+        } else if (value instanceof List) {
+            ListIterator iterator = ((List) value).listIterator()
+            while (iterator.hasNext()) {
+                Object element = iterator.next()
+                Object unwrapped = unwrap(element)
+                if (!unwrapped.is(element))
+                    iterator.set(unwrapped)
+            }
+        }
+        return value
+    }
+
+    /**
+     * Makes sure 'node' is owned by the context of 'view', copying it and replacing it in the parent if needed.
+     */
+    static Object mutable(View view, View parent, Object key, Object node) {
+        Context context = view.getContext()
+        if (context.owns(node))
+            return node
+
+        Object copy = context.copy(node)
+        if (parent != null)
+            replaceChild(parent, key, node, copy)
+        return copy
+    }
+
+    private static void replaceChild(View parent, Object key, Object child, Object copy) {
+        Object parentNode = parent.mutableNode()
+        if (parentNode instanceof Map) {
+            Map map = (Map) parentNode
+            if (isSame(map.get(key), child))
+                map.put(key, copy)
+        } else {
+            List list = (List) parentNode
+            int index = (Integer) key
+            if (index < list.size() && isSame(list.get(index), child)) {
+                list.set(index, copy)
+                return
+            }
+            // The list has changed since the child view was made, look for the child elsewhere
+            for (int i = 0; i < list.size(); ++i) {
+                if (isSame(list.get(i), child)) {
+                    list.set(i, copy)
+                    return
+                }
+            }
+        }
+    }
+
+    private static boolean isSame(Object value, Object node) {
+        if (value instanceof View)
+            value = ((View) value).currentNode()
+        return value.is(node)
+    }
+}
@@ -0,0 +1,71 @@
+package whelk.util
+
+import groovy.transform.CompileStatic
+
+/**
+ * A copy-on-write view of a List in document data, see CopyOnWriteData.
+ */
+@CompileStatic
+class CopyOnWriteList extends AbstractList implements RandomAccess, CopyOnWriteData.View, Serializable {
+
+    private final CopyOnWriteData.Context context
+    private final CopyOnWriteData.View parent
+    private final Object key
+    private List node
+
+    CopyOnWriteList(CopyOnWriteData.Context context, CopyOnWriteData.View parent, Object key, List node) {
+        this.context = context
+        this.parent = parent
+        this.key = key
+        this.node = node
+    }
+
+    CopyOnWriteData.Context getContext() {
+        return context
+    }
+
+    Object currentNode() {
+        node = (List) context.current(node)
+        return node
+    }
+
+    Object mutableNode() {
+        node = (List) CopyOnWriteData.mutable(this, parent, key, currentNode())
+        return node
+    }
+
+    @Override
+    int size() {
+        return ((List) currentNode()).size()
+    }
+
+    @Override
+    Object get(int index) {
+        return CopyOnWriteData.wrap(context, this, index, ((List) currentNode()).get(index))
+    }
+
+    @Override
+    Object set(int index, Object value) {
+        return ((List) mutableNode()).set(index, CopyOnWriteData.unwrap(value))
+    }
+
+    @Override
+    void add(int index, Object value) {
+        ((List) mutableNode()).add(index, CopyOnWriteData.unwrap(value))
+    }
+
+    @Override
+    Object remove(int index) {
+        return ((List) mutableNode()).remove(index)
+    }
+
+    @Override
+    void clear() {
+        if (!isEmpty())
+            ((List) mutableNode()).clear()
+    }
+
+    private Object writeReplace() {
+        return new ArrayList(this)
+    }
+}
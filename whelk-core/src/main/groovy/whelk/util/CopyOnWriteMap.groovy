@@ -0,0 +1,143 @@
+package whelk.util
+
+import groovy.transform.CompileStatic
+
+/**
+ * A copy-on-write view of a Map in document data, see CopyOnWriteData.
+ */
+@CompileStatic
+class CopyOnWriteMap extends AbstractMap implements CopyOnWriteData.View, Serializable {
+
+    private final CopyOnWriteData.Context context
+    private final CopyOnWriteData.View parent
+    private final Object key
+    private Map node
+
+    CopyOnWriteMap(CopyOnWriteData.Context context, CopyOnWriteData.View parent, Object key, Map node) {
+        this.context = context
+        this.parent = parent
+        this.key = key
+        this.node = node
+    }
+
+    CopyOnWriteData.Context getContext() {
+        return context
+    }
+
+    Object currentNode() {
+        node = (Map) context.current(node)
+        return node
+    }
+
+    Object mutableNode() {
+        node = (Map) CopyOnWriteData.mutable(this, parent, key, currentNode())
+        return node
+    }
+
+    @Override
+    int size() {
+        return ((Map) currentNode()).size()
+    }
+
+    @Override
+    boolean isEmpty() {
+        return ((Map) currentNode()).isEmpty()
+    }
+
+    @Override
+    boolean containsKey(Object k) {
+        return ((Map) currentNode()).containsKey(k)
+    }
+
+    @Override
+    Object get(Object k) {
+        return CopyOnWriteData.wrap(context, this, k, ((Map) currentNode()).get(k))
+    }
+
+    @Override
+    Object put(Object k, Object value) {
+        return ((Map) mutableNode()).put(k, CopyOnWriteData.unwrap(value))
+    }
+
+    @Override
+    Object remove(Object k) {
+        if (!containsKey(k))
+            return null
+        return ((Map) mutableNode()).remove(k)
+    }
+
+    @Override
+    void clear() {
+        if (!isEmpty())
+            ((Map) mutableNode()).clear()
+    }
+
+    @Override
+    Set<Map.Entry> entrySet() {
+        return new AbstractSet<Map.Entry>() {
+            @Override
+            Iterator<Map.Entry> iterator() {
+                // Iterate over a snapshot of the keys, since the node may be replaced or changed while iterating
+                Iterator keys = new ArrayList(((Map) currentNode()).keySet()).iterator()
+                return new Iterator<Map.Entry>() {
+                    Object lastKey
+
+                    boolean hasNext() {
+                        return keys.hasNext()
+                    }
+
+                    Map.Entry next() {
+                        lastKey = keys.next()
+                        return new Entry(lastKey)
+                    }
+
+                    void remove() {
+                        CopyOnWriteMap.this.remove(lastKey)
+                    }
+                }
+            }
+
+            @Override
+            int size() {
+                return CopyOnWriteMap.this.size()
+            }
+        }
+    }
+
+    private Object writeReplace() {
+        return new LinkedHashMap(this)
+    }
+
+    private class Entry implements Map.Entry {
+        private final Object entryKey
+
+        Entry(Object entryKey) {
+            this.entryKey = entryKey
+        }
+
+        Object getKey() {
+            return entryKey
+        }
+
+        Object getValue() {
+            return CopyOnWriteMap.this.get(entryKey)
+        }
+
+        Object setValue(Object value) {
+            return CopyOnWriteMap.this.put(entryKey, value)
+        }
+
+        @Override
+        boolean equals(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false
+            Map.Entry other = (Map.Entry) o
+            return Objects.equals(entryKey, other.getKey()) && Objects.equals(getValue(), other.getValue())
+        }
+
+        @Override
+        int hashCode() {
+            return Objects.hashCode(entryKey) ^ Objects.hashCode(getValue())
+        }
+    }
+}
@@ -1,17 +1,38 @@
 package whelk.util
 
 import groovy.transform.CompileStatic
+import io.prometheus.client.Counter
 
 import java.nio.charset.Charset
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
 import javax.net.ssl.SSLSocketFactory
 
 /**
  * Based on the apix_exporter/longtermhttprequest. Using both socket SO_KEEPALIVE and http Connection:keep-alive
  * to keep connections open and alive for as long as possible.
+ *
+ * With compression on, request bodies (streamed ones, and others of at least GZIP_THRESHOLD_BYTES) are sent gzipped,
+ * and gzipped responses are asked for. Gzipped responses are decompressed whether compression is on or not.
  */
 @CompileStatic
 public class LongTermHttpConnection
 {
+    public static final int GZIP_THRESHOLD_BYTES = 1024
+
+    // The compression ratio is compressed / uncompressed, per direction
+    static final Counter uncompressedBytes = Counter.build()
+            .name("http_connection_uncompressed_bytes_total")
+            .help("Size before compression of compressed request and response bodies.")
+            .labelNames("direction").register()
+
+    static final Counter compressedBytes = Counter.build()
+            .name("http_connection_compressed_bytes_total")
+            .help("Size after compression of compressed request and response bodies.")
+            .labelNames("direction").register()
+
+    private static final byte CR = 13
+    private static final byte LF = 10
     private final int TIMEOUT_MS = 1800000
     private int m_responseCode
     private String m_responseData
@@ -19,11 +40,29 @@ public class LongTermHttpConnection
     private Socket m_socket
     private int m_port
     private URL m_properUrl
-    private final byte[] m_buf = new byte[1024]
+    private final int BUFFER_SIZE = 64 * 1024
+    private final byte[] m_buf = new byte[BUFFER_SIZE]
+    private OutputStream m_outputStream
     private ByteArrayOutputStream m_completeResponse
+    private final boolean m_compression
+
+    /**
+     * Writes a request body directly to the connection. Writers may be called more than once for the same request,
+     * if it has to be resent.
+     */
+    public interface BodyWriter
+    {
+        void writeBody(OutputStream outputStream) throws IOException
+    }
 
     public LongTermHttpConnection(String host)
     {
+        this(host, false)
+    }
+
+    public LongTermHttpConnection(String host, boolean compression)
+    {
+        m_compression = compression
         m_properUrl = new URL(host)
         m_port = m_properUrl.getPort()
         if (m_port == -1)
@@ -38,6 +77,24 @@ public class LongTermHttpConnection
     public void sendRequest(String path, String verb, String contentType, String data,
                             String basicAuthName, String basicAuthPass)
             throws IOException
+    {
+        doSendRequest(path, verb, contentType, data, null, basicAuthName, basicAuthPass)
+    }
+
+    /**
+     * Like sendRequest above, but with the body written by bodyWriter as it is being sent (in chunked transfer
+     * encoding), so that it never has to be held in memory as a whole.
+     */
+    public void sendRequest(String path, String verb, String contentType, BodyWriter bodyWriter,
+                            String basicAuthName, String basicAuthPass)
+            throws IOException
+    {
+        doSendRequest(path, verb, contentType, null, bodyWriter, basicAuthName, basicAuthPass)
+    }
+
+    private void doSendRequest(String path, String verb, String contentType, String data, BodyWriter bodyWriter,
+                               String basicAuthName, String basicAuthPass)
+            throws IOException
     {
         int attempts = 0
         while (true)
@@ -48,10 +105,11 @@ public class LongTermHttpConnection
                     m_socket = createSocket(m_properUrl.getProtocol(), m_properUrl.getHost(), m_port)
                     m_socket.setKeepAlive(true)
                     m_socket.setSoTimeout(TIMEOUT_MS)
+                    m_outputStream = new BufferedOutputStream(m_socket.getOutputStream(), BUFFER_SIZE)
                 }
 
-                writeRequest(m_socket.getOutputStream(), m_properUrl.getHost(), path, verb, contentType,
-                        data, basicAuthName, basicAuthPass)
+                writeRequest(m_outputStream, m_properUrl.getHost(), path, verb, contentType,
+                        data, bodyWriter, basicAuthName, basicAuthPass)
                 readResponse(m_socket.getInputStream())
                 break // We're done, no need for retries
             } catch (SocketException | IOException se)
@@ -66,6 +124,12 @@ public class LongTermHttpConnection
                 try { m_socket.close() } catch (Throwable e) { /* ignore */ }
                 m_socket = null
                 m_responseData = null
+            } catch (Throwable e)
+            {
+                // The body writer failed half way through, the connection can't be reused after that
+                try { m_socket.close() } catch (Throwable ignored) { /* ignore */ }
+                m_socket = null
+                throw e
             }
             ++attempts
         }
@@ -73,7 +137,8 @@ public class LongTermHttpConnection
 
     public void close() throws IOException
     {
-        m_socket.close()
+        if (m_socket != null)
+            m_socket.close()
     }
 
     public int getResponseCode()
@@ -114,7 +179,7 @@ public class LongTermHttpConnection
     }
 
     private void writeRequest(OutputStream outputStream, String host, String path, String verb, String contentType,
-                              String data, String basicAuthName, String basicAuthPass)
+                              String data, BodyWriter bodyWriter, String basicAuthName, String basicAuthPass)
             throws IOException
     {
         if (path.equals(""))
@@ -125,6 +190,8 @@ public class LongTermHttpConnection
         header.append( "Host: " + host + "\r\n" )
         header.append( "Accept-Charset: utf-8\r\n" )
         header.append( "Connection: keep-alive\r\n" )
+        if (m_compression)
+            header.append( "Accept-Encoding: gzip\r\n" )
 
         if (basicAuthName != null && basicAuthPass != null)
         {
@@ -138,9 +205,26 @@ public class LongTermHttpConnection
         if (data != null)
         {
             dataBytes = data.getBytes(Charset.forName("UTF-8"))
+            if (m_compression && dataBytes.length >= GZIP_THRESHOLD_BYTES)
+            {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(dataBytes.length.intdiv(4) as int)
+                GZIPOutputStream gzipStream = new GZIPOutputStream(compressed)
+                gzipStream.write(dataBytes)
+                gzipStream.close()
+                countCompression("sent", dataBytes.length, compressed.size())
+                dataBytes = compressed.toByteArray()
+                header.append( "Content-Encoding: gzip\r\n" )
+            }
             header.append( "Content-Type: " + contentType + "\r\n" )
             header.append( "Content-Length: " + dataBytes.length + "\r\n" )
         }
+        else if (bodyWriter != null)
+        {
+            if (m_compression)
+                header.append( "Content-Encoding: gzip\r\n" )
+            header.append( "Content-Type: " + contentType + "\r\n" )
+            header.append( "Transfer-Encoding: chunked\r\n" )
+        }
         header.append( "\r\n" )
 
         outputStream.write(header.toString().getBytes(Charset.forName("UTF-8")))
@@ -148,6 +232,25 @@ public class LongTermHttpConnection
         if (dataBytes != null)
             outputStream.write(dataBytes)
 
+        if (bodyWriter != null)
+        {
+            ChunkedOutputStream chunkedStream = new ChunkedOutputStream(outputStream)
+            if (m_compression)
+            {
+                CountingOutputStream compressedStream = new CountingOutputStream(chunkedStream)
+                GZIPOutputStream gzipStream = new GZIPOutputStream(compressedStream, BUFFER_SIZE)
+                CountingOutputStream uncompressedStream = new CountingOutputStream(gzipStream)
+                bodyWriter.writeBody(uncompressedStream)
+                gzipStream.finish()
+                countCompression("sent", uncompressedStream.count, compressedStream.count)
+            }
+            else
+            {
+                bodyWriter.writeBody(chunkedStream)
+            }
+            chunkedStream.finish()
+        }
+
         outputStream.flush()
     }
 
@@ -156,77 +259,60 @@ public class LongTermHttpConnection
     {
         m_completeResponse = new ByteArrayOutputStream()
 
-        int bytesRead = 0
-        int totalBytesRead = 0
-        int contentLength = Integer.MAX_VALUE
-        int headerLength = Integer.MAX_VALUE
-        while ( bytesRead != -1 && totalBytesRead < ((long)headerLength + (long)contentLength) )
+        // Read until all headers are in
+        int headerLength = -1
+        while (headerLength == -1)
         {
-            bytesRead = inputStream.read(m_buf)
+            int bytesRead = inputStream.read(m_buf)
             if (bytesRead == -1)
-                continue
-
+                throw new IOException("Connection closed before the end of response headers.")
+            int searchFrom = Math.max(0, m_completeResponse.size() - 3)
             m_completeResponse.write(m_buf, 0, bytesRead)
-            totalBytesRead += bytesRead
-
-            //System.out.print( new String(m_buf, "UTF-8") ) // print all raw http to terminal
+            headerLength = indexOfHeaderEnd(m_completeResponse.toByteArray(), searchFrom)
+        }
 
-            if (headerLength == Integer.MAX_VALUE) // If we haven't parsed all headers yet
-            {
-                String responseText = m_completeResponse.toString("UTF-8").toLowerCase()
-                int contentLengthHeaderBeginsAt
-                if ( (contentLengthHeaderBeginsAt = responseText.indexOf("content-length:")) != -1)
-                {
-                    int lineEndAt = responseText.indexOf("\r\n", contentLengthHeaderBeginsAt)
-                    if (lineEndAt > contentLengthHeaderBeginsAt)
-                    {
-                        String contentLengthString = responseText.substring(contentLengthHeaderBeginsAt + "content-length:".length(), lineEndAt)
-                        contentLength = Integer.parseInt(contentLengthString.trim())
-                    }
-                }
+        byte[] received = m_completeResponse.toByteArray()
+        processHeaders(new String(received, 0, headerLength, Charset.forName("ISO-8859-1")))
+        BodyInputStream bodyStream = new BodyInputStream(received, headerLength, inputStream)
+
+        byte[] body
+        String contentLength = getHeader("Content-Length")
+        String transferEncoding = getHeader("Transfer-Encoding")
+        if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked"))
+            body = readChunkedBody(bodyStream)
+        else if (contentLength != null)
+            body = readFully(bodyStream, Integer.parseInt(contentLength.trim()))
+        else
+            body = new byte[0] // If there was no content-length, then there can be no body.
 
-                // Scan for end of headers
-                if (responseText.contains("\r\n\r\n"))
-                {
-                    headerLength = responseText.indexOf("\r\n\r\n") + 4
-
-                    // If we've read all the headers, and there was no content-length, then there can be no body. Consider the response fully received.
-                    if (contentLength == Integer.MAX_VALUE)
-                    {
-                        processCompleteResponse(responseText)
-                        return
-                    }
-                }
-            }
+        String contentEncoding = getHeader("Content-Encoding")
+        if (contentEncoding != null && contentEncoding.trim().equalsIgnoreCase("gzip") && body.length > 0)
+        {
+            int compressedLength = body.length
+            body = readAll(new GZIPInputStream(new ByteArrayInputStream(body)))
+            countCompression("received", body.length, compressedLength)
         }
 
-        // Response completely retrieved.
-        String responseText = m_completeResponse.toString("UTF-8")
-        processCompleteResponse(responseText)
+        m_responseData = new String(body, Charset.forName("UTF-8"))
     }
 
-    private void processCompleteResponse(String responseText)
+    private void processHeaders(String headerText)
     {
-        int introEnd = responseText.indexOf("\r\n")
-        if (introEnd == -1)
-            throw new IOException("Malformed HTTP response, no intro line ending: " + responseText)
-        String introLine = responseText.substring(0, introEnd)
+        int introEnd = headerText.indexOf("\r\n")
+        String introLine = headerText.substring(0, introEnd)
 
         // The intro line should look something like: HTTP/1.1 200 OK
         if (!introLine.startsWith("HTTP/1."))
-            throw new IOException("Malformed HTTP response, no 'HTTP/1.X': " + responseText)
+            throw new IOException("Malformed HTTP response, no 'HTTP/1.X': " + headerText)
         // Next three chars should be the response code.
         m_responseCode = Integer.parseInt( introLine.substring(9, 12) )
 
-        int headerEnd = responseText.indexOf("\r\n\r\n")
-        if (headerEnd == -1)
-            throw new IOException("Malformed HTTP response, no correct header ending: " + responseText)
-
-        String headerString = responseText.substring(introEnd, headerEnd).trim()
-        m_responseData = responseText.substring(headerEnd+3)
+        String headerString = headerText.substring(introEnd).trim()
+        m_responseHeaders = new HashMap<String, String>()
+        if (headerString.isEmpty())
+            return
 
         String[] headerLines = headerString.split("\r\n")
-        m_responseHeaders = new HashMap<String, String>()
         for (String headerLine : headerLines)
         {
             int delimiterIndex = headerLine.indexOf(':')
@@ -237,5 +323,234 @@ public class LongTermHttpConnection
                     headerLine.substring(delimiterIndex+1, headerLine.length()).trim())
         }
     }
-}
 
+    private String getHeader(String name)
+    {
+        for (Map.Entry<String, String> header : m_responseHeaders.entrySet())
+        {
+            if (header.getKey().equalsIgnoreCase(name))
+                return header.getValue()
+        }
+        return null
+    }
+
+    private static int indexOfHeaderEnd(byte[] bytes, int from)
+    {
+        for (int i = from; i + 3 < bytes.length; ++i)
+        {
+            if (bytes[i] == CR && bytes[i+1] == LF && bytes[i+2] == CR && bytes[i+3] == LF)
+                return i + 4
+        }
+        return -1
+    }
+
+    private byte[] readChunkedBody(InputStream input)
+            throws IOException
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream()
+        while (true)
+        {
+            String sizeLine = readLine(input)
+            int extensionStart = sizeLine.indexOf(';')
+            if (extensionStart != -1)
+                sizeLine = sizeLine.substring(0, extensionStart)
+            int size = Integer.parseInt(sizeLine.trim(), 16)
+            if (size == 0)
+                break
+            body.write(readFully(input, size))
+            readLine(input)
+        }
+        // Skip any trailers, up to the final empty line
+        while (!readLine(input).isEmpty()) {}
+        return body.toByteArray()
+    }
+
+    private static String readLine(InputStream input)
+            throws IOException
+    {
+        StringBuilder line = new StringBuilder()
+        int b
+        while ((b = input.read()) != LF)
+        {
+            if (b == -1)
+                throw new IOException("Connection closed in the middle of a response.")
+            if (b != CR)
+                line.append((char) b)
+        }
+        return line.toString()
+    }
+
+    private byte[] readFully(InputStream input, int length)
+            throws IOException
+    {
+        byte[] result = new byte[length]
+        int offset = 0
+        while (offset < length)
+        {
+            int bytesRead = input.read(result, offset, length - offset)
+            if (bytesRead == -1)
+                throw new IOException("Connection closed after " + offset + " of " + length + " bytes of response body.")
+            offset += bytesRead
+        }
+        return result
+    }
+
+    private byte[] readAll(InputStream input)
+            throws IOException
+    {
+        ByteArrayOutputStream result = new ByteArrayOutputStream()
+        int bytesRead
+        while ((bytesRead = input.read(m_buf)) != -1)
+            result.write(m_buf, 0, bytesRead)
+        return result.toByteArray()
+    }
+
+    private static void countCompression(String direction, long uncompressed, long compressed)
+    {
+        uncompressedBytes.labels(direction).inc(uncompressed)
+        compressedBytes.labels(direction).inc(compressed)
+    }
+
+    /**
+     * The response body: what was read past the headers, then the rest from the connection. Everything read from
+     * the connection is also kept in m_completeResponse (for error reporting).
+     */
+    private class BodyInputStream extends InputStream
+    {
+        private final byte[] m_initial
+        private int m_position
+        private final InputStream m_in
+
+        BodyInputStream(byte[] initial, int position, InputStream input)
+        {
+            m_initial = initial
+            m_position = position
+            m_in = input
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            if (m_position < m_initial.length)
+                return m_initial[m_position++] & 0xff
+            int b = m_in.read()
+            if (b != -1)
+                m_completeResponse.write(b)
+            return b
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (m_position < m_initial.length)
+            {
+                int n = Math.min(len, m_initial.length - m_position)
+                System.arraycopy(m_initial, m_position, b, off, n)
+                m_position += n
+                return n
+            }
+            int bytesRead = m_in.read(b, off, len)
+            if (bytesRead > 0)
+                m_completeResponse.write(b, off, bytesRead)
+            return bytesRead
+        }
+    }
+
+    /**
+     * Counts the bytes written through it.
+     */
+    private static class CountingOutputStream extends FilterOutputStream
+    {
+        long count = 0
+
+        CountingOutputStream(OutputStream out)
+        {
+            super(out)
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            out.write(b)
+            ++count
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len)
+            count += len
+        }
+    }
+
+    /**
+     * Buffers written data and passes it on as HTTP/1.1 chunks of (at most) CHUNK_SIZE bytes. Flushing does not
+     * send a partial chunk, only finish() does.
+     */
+    private static class ChunkedOutputStream extends OutputStream
+    {
+        private static final int CHUNK_SIZE = 64 * 1024
+        private static final byte[] CRLF = "\r\n".getBytes(Charset.forName("UTF-8"))
+        private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(Charset.forName("UTF-8"))
+
+        private final OutputStream m_out
+        private final byte[] m_chunk = new byte[CHUNK_SIZE]
+        private int m_chunkLength = 0
+
+        ChunkedOutputStream(OutputStream out)
+        {
+            m_out = out
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            if (m_chunkLength == CHUNK_SIZE)
+                writeChunk()
+            m_chunk[m_chunkLength++] = (byte) b
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            while (len > 0)
+            {
+                if (m_chunkLength == CHUNK_SIZE)
+                    writeChunk()
+                int n = Math.min(len, CHUNK_SIZE - m_chunkLength)
+                System.arraycopy(b, off, m_chunk, m_chunkLength, n)
+                m_chunkLength += n
+                off += n
+                len -= n
+            }
+        }
+
+        @Override
+        public void flush()
+        {
+            // Only send full chunks until finish()
+        }
+
+        @Override
+        public void close()
+        {
+            // The underlying stream belongs to the connection
+        }
+
+        void finish() throws IOException
+        {
+            if (m_chunkLength > 0)
+                writeChunk()
+            m_out.write(LAST_CHUNK)
+        }
+
+        private void writeChunk() throws IOException
+        {
+            m_out.write(Integer.toHexString(m_chunkLength).getBytes(Charset.forName("UTF-8")))
+            m_out.write(CRLF)
+            m_out.write(m_chunk, 0, m_chunkLength)
+            m_out.write(CRLF)
+            m_chunkLength = 0
+        }
+    }
+}
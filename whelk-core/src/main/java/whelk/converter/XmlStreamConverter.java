@@ -0,0 +1,16 @@
+package whelk.converter;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.util.Map;
+
+/**
+ * A converter to an XML format that can also write its result directly to an XMLStreamWriter, instead of returning
+ * it as a string (that would have to be parsed again to be embedded in another XML document).
+ *
+ * Implementations should do everything that may fail before writing anything, so that a failed conversion does not
+ * leave half a document in the writer.
+ */
+public interface XmlStreamConverter extends FormatConverter {
+    public void convertTo(Map data, String id, XMLStreamWriter writer) throws XMLStreamException;
+}
@@ -5,6 +5,7 @@ import spock.lang.Unroll
 import whelk.component.PostgreSQLComponent
 import whelk.converter.marc.MarcFrameConverter
 import whelk.filter.LinkFinder
+import whelk.util.CopyOnWriteData
 import whelk.util.LegacyIntegrationTools
 import whelk.util.PropertyLoader
 
@@ -357,6 +358,24 @@ class DocumentSpec extends Specification {
         assert doc.getSigel() == null
     }
 
+    def "copy-on-write clone should not share changes"() {
+        given:
+        Document doc = new Document(["@graph": examples[0].data])
+        String originalJson = doc.getDataAsString()
+        Document copy = doc.copyOnWriteClone()
+
+        when:
+        copy.addRecordIdentifier("http://example.org/other")
+        copy.setThingType("Instance")
+
+        then:
+        doc.getDataAsString() == originalJson
+        !CopyOnWriteData.isView(doc.data)
+        doc.getRecordIdentifiers() == examples[0].recordIds
+        copy.getRecordIdentifiers() == examples[0].recordIds + ["http://example.org/other"]
+        copy.getThingType() == "Instance"
+    }
+
     def "Cannot set created"() {
         //TODO: Fix this and make this a positive test.
         //TODO: see JIRA Ticket LXL-329
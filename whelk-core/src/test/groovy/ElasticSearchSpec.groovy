@@ -79,5 +79,37 @@ class ElasticSearchSpec extends Specification {
         assert ElasticSearch.createJsonDsl(queryParameters, 0, 0) == expected
     }
 
-}
+    def "Should filter on types with a terms query and score other parameters"() {
+        when:
+        Map queryParameters = ['q': ['Tove'] as String[], '@type': ['Instance', 'Print'] as String[],
+                               'name': ['Jansson'] as String[]]
+        Map expected = [from:0,
+                        size:0,
+                        query:
+                           [bool:
+                              [must:[[simple_query_string:[query:'Tove', default_operator:'and']],
+                                     [bool:[should:[[match:[name:'Jansson']]], minimum_should_match:1]]],
+                               filter:[[terms:['@type':['Instance', 'Print']]]]]]
+        ]
 
+        then:
+        assert ElasticSearch.createJsonDsl(queryParameters, 0, 0) == expected
+    }
+
+    def "Should add tiebreaker sort and search_after when paging after a hit"() {
+        expect:
+        ElasticSearch.pageAfter(['from': 20, 'size': 10, 'sort': sort], searchAfter) == expected
+
+        where:
+        sort                                  | searchAfter       | expected
+        null                                  | null              | ['from': 20, 'size': 10,
+                                                                     'sort': [['_score': ['order': 'desc']], ['@id': ['order': 'asc']]]]
+        [['created': ['order': 'desc']]]      | ['2018', 'a']     | ['from': 0, 'size': 10,
+                                                                     'sort': [['created': ['order': 'desc']], ['@id': ['order': 'asc']]],
+                                                                     'search_after': ['2018', 'a']]
+        [['@id': ['order': 'desc']]]          | ['a']             | ['from': 0, 'size': 10,
+                                                                     'sort': [['@id': ['order': 'desc']]],
+                                                                     'search_after': ['a']]
+    }
+
+}
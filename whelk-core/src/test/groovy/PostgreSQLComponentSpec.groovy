@@ -140,4 +140,217 @@ class PostgreSQLComponentSpec extends Specification {
         cs1 == cs2
     }
 
+    def "should recalculate cached checksum when document is changed"() {
+        given:
+        Document doc = new Document(["@graph": [["@id": "https://libris.kb.se/testid", "key": "some data"], ["@id": "https://libris.kb.se/testid#it"]]])
+        String cs1 = doc.checksum
+
+        when:
+        doc.setRecordStatus("marc:New")
+        String cs2 = doc.checksum
+        doc.deepReplaceId("https://libris.kb.se/otherid")
+        String cs3 = doc.checksum
+        doc.data["@graph"][0]["key"] = "some new data"
+        String cs4 = doc.checksum
+        doc.resetChecksum()
+        String cs5 = doc.checksum
+
+        then:
+        cs1 != cs2
+        cs2 != cs3
+        cs3 == cs4
+        cs4 != cs5
+        cs5 == new Document(doc.data).checksum
+    }
+
+    def "should give a merged-away record an OAI-PMH tombstone"() {
+        given:
+        List<Map> executed = []
+        Connection connection = Stub(Connection)
+        connection.prepareStatement(_) >> { String sql -> recordingStatement(sql, executed) }
+        PostgreSQLComponent mergeStorage = new PostgreSQLComponent(null, "lddb") {
+            @Override
+            Connection getConnection() {
+                connection
+            }
+
+            @Override
+            String getSystemIdByIri(String iri, Connection c) {
+                return iri.substring(iri.lastIndexOf('/') + 1)
+            }
+
+            @Override
+            List getDependers(String id) {
+                return []
+            }
+        }
+        Document remaining = new Document(mapper.readValue(recordData("remaining"), Map))
+
+        when:
+        mergeStorage.mergeExisting("https://libris.kb.se/remaining", "https://libris.kb.se/disappearing", remaining,
+                "xl", "SEK", "bib", null)
+
+        then:
+        executed.findAll { it.sql.contains("INSERT INTO lddb__oaipmh_tombstones") }*.params == [[1: "disappearing", 2: "disappearing"]]
+        executed.findAll { it.sql.contains("DELETE FROM lddb__oaipmh_tombstones") }*.params.collect { it[1] }.sort() ==
+                ["disappearing", "remaining"]
+    }
+
+    def "should only use cached OAI-PMH payloads converted from the current record"() {
+        given:
+        Timestamp before = new Timestamp(1000)
+        Timestamp after = new Timestamp(2000)
+        List<Map> rows = [
+                [id: "current", modified: before, depMaxModified: before, checksum: "a", cachedModified: before, cachedDepMaxModified: before, cachedChecksum: "a", data: "<current/>"],
+                [id: "modified", modified: after, depMaxModified: before, checksum: "b", cachedModified: before, cachedDepMaxModified: before, cachedChecksum: "a", data: "<modified/>"],
+                [id: "minorUpdate", modified: before, depMaxModified: before, checksum: "b", cachedModified: before, cachedDepMaxModified: before, cachedChecksum: "a", data: "<minorUpdate/>"],
+                [id: "dependency", modified: before, depMaxModified: after, checksum: "a", cachedModified: before, cachedDepMaxModified: before, cachedChecksum: "a", data: "<dependency/>"],
+                [id: "uncached", modified: before, depMaxModified: before, checksum: "a", cachedModified: null, cachedDepMaxModified: null, cachedChecksum: null, data: null],
+        ]
+        Connection connection = Stub(Connection)
+        PreparedStatement statement = Stub(PreparedStatement)
+        connection.prepareStatement(_) >> statement
+        statement.executeQuery() >> rowsResultSet(rows)
+
+        when:
+        Map<String, PostgreSQLComponent.OaiPmhPayload> payloads = stubStorage(connection).loadOaiPmhPayloads(rows*.id, "marcxml", checkDependencies)
+
+        then:
+        payloads.collectEntries { id, payload -> [id, payload.data] } == expected
+        payloads.modified.modified == after
+        payloads.dependency.depMaxModified == after
+        payloads.minorUpdate.checksum == "b"
+
+        where:
+        checkDependencies | expected
+        true              | [current: "<current/>", modified: null, minorUpdate: null, dependency: null, uncached: null]
+        false             | [current: "<current/>", modified: null, minorUpdate: null, dependency: "<dependency/>", uncached: null]
+    }
+
+    def "should save OAI-PMH payloads with the times and checksum of the record they were converted from"() {
+        given:
+        List<Map> executed = []
+        Connection connection = Stub(Connection)
+        connection.prepareStatement(_) >> { String sql -> recordingStatement(sql, executed) }
+        def payload = new PostgreSQLComponent.OaiPmhPayload(id: "current", data: "<current/>",
+                modified: new Timestamp(1000), depMaxModified: new Timestamp(2000), checksum: "a")
+
+        when:
+        stubStorage(connection).saveOaiPmhPayloads([payload], "marcxml")
+
+        then:
+        // Only if the record still has that checksum
+        executed*.sql.every { it.contains("FROM lddb WHERE id = ? AND checksum = ?") }
+        executed*.params == [[1: "current", 2: "a", 3: payload.modified, 4: payload.depMaxModified, 5: "a", 6: "<current/>",
+                              7: "current", 8: "marcxml", 9: "current", 10: "marcxml", 11: payload.modified,
+                              12: payload.depMaxModified, 13: "a", 14: "<current/>"]]
+    }
+
+    def "should drop cached OAI-PMH payloads of a record on a minor update"() {
+        given:
+        List<Map> executed = []
+        Connection connection = Stub(Connection)
+        connection.prepareStatement(_) >> { String sql -> recordingStatement(sql, executed) }
+
+        when:
+        stubStorage(connection).storeAtomicUpdate("current", true, "xl", "SEK", { Document doc ->
+            doc.data["@graph"][1]["name"] = "changed"
+        } as PostgreSQLComponent.UpdateAgent)
+
+        then:
+        executed.findAll { it.sql.contains("DELETE FROM lddb__oaipmh_cache") }*.params == [[1: "current"]]
+    }
+
+    def "should keep the OAI-PMH set memberships of a moved holding but bump them"() {
+        given:
+        List<Map> executed = []
+        Connection connection = Stub(Connection)
+        connection.prepareStatement(_) >> { String sql ->
+            if (!sql.contains("SELECT dependsOnId"))
+                return recordingStatement(sql, executed)
+            // The holding was for oldbib until now
+            PreparedStatement statement = Stub(PreparedStatement)
+            ResultSet rs = Stub(ResultSet)
+            rs.next() >>> [true, false]
+            rs.getString(1) >> "oldbib"
+            statement.executeQuery() >> rs
+            statement
+        }
+        PostgreSQLComponent holdStorage = new PostgreSQLComponent(null, "lddb") {
+            @Override
+            String getSystemIdByIri(String iri, Connection c) {
+                return iri.substring(iri.lastIndexOf('/') + 1)
+            }
+        }
+        Document holding = new Document(["@graph": [
+                ["@id": "https://libris.kb.se/hold1"],
+                ["@id": "https://libris.kb.se/hold1#it", "heldBy": ["@id": "https://libris.kb.se/library/" + sigel],
+                 "itemOf": ["@id": "https://libris.kb.se/" + bib]]]])
+
+        when:
+        holdStorage.refreshDerivativeTables(holding, connection, false)
+
+        then:
+        executed.findAll { it.sql.contains("DELETE FROM lddb__oaipmh_sets") }.isEmpty()
+        executed.findAll { it.sql.contains("INSERT INTO lddb__oaipmh_sets") }*.params.collect { [it[1], it[2]] } ==
+                [["hold:" + sigel, "hold1"], ["bib:" + sigel, bib]]
+        executed.findAll { it.sql.contains("UPDATE lddb__oaipmh_sets") && it.sql.contains("'bib:%'") }*.params
+                .collect { it[2] }.sort() == bumped
+
+        where:
+        sigel | bib      | bumped
+        "S"   | "newbib" | ["newbib", "oldbib"]
+        "T"   | "oldbib" | ["oldbib"]
+    }
+
+    private PostgreSQLComponent stubStorage(Connection connection) {
+        return new PostgreSQLComponent(null, "lddb") {
+            @Override
+            Connection getConnection() {
+                connection
+            }
+
+            @Override
+            List getDependers(String id) {
+                return []
+            }
+        }
+    }
+
+    private ResultSet rowsResultSet(List<Map> rows) {
+        int row = -1
+        ResultSet rs = Stub(ResultSet)
+        rs.next() >> { ++row < rows.size() }
+        rs.getString(_) >> { String column -> rows[row][column] }
+        rs.getTimestamp(_) >> { String column -> rows[row][column] }
+        return rs
+    }
+
+    private PreparedStatement recordingStatement(String sql, List<Map> executed) {
+        Map execution = [sql: sql, params: [:]]
+        PreparedStatement statement = Stub(PreparedStatement)
+        statement.setString(_, _) >> { int i, String value -> execution.params[i] = value }
+        statement.setTimestamp(_, _) >> { int i, Timestamp value -> execution.params[i] = value }
+        statement.addBatch() >> { executed.add([sql: sql, params: new HashMap(execution.params)]) }
+        statement.executeUpdate() >> { executed.add([sql: sql, params: new HashMap(execution.params)]); 1 }
+        statement.execute() >> { executed.add([sql: sql, params: new HashMap(execution.params)]); false }
+        statement.executeQuery() >> {
+            executed.add([sql: sql, params: new HashMap(execution.params)])
+            ResultSet rs = Stub(ResultSet)
+            if (sql.contains("FOR UPDATE")) {
+                rs.next() >>> [true, false]
+                rs.getString("data") >> recordData((String) execution.params[1])
+                rs.getTimestamp(_) >> new Timestamp(0)
+                rs.getBoolean("deleted") >> false
+            } else {
+                rs.next() >> false
+            }
+            rs
+        }
+        return statement
+    }
+
+    private static String recordData(String id) {
+        return mapper.writeValueAsString("@graph": [["@id": "https://libris.kb.se/" + id, "controlNumber": id], ["@id": "https://libris.kb.se/" + id + "#it"]])
+    }
 }
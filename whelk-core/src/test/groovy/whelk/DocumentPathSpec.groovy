@@ -0,0 +1,50 @@
+package whelk
+
+import spock.lang.Specification
+
+class DocumentPathSpec extends Specification {
+
+    def "should reuse compiled paths"() {
+        expect:
+        DocumentPath.compile(["@graph", 1, "heldBy", "@id"]).is(DocumentPath.compile(["@graph", 1, "heldBy", "@id"]))
+    }
+
+    def "should get value at path"() {
+        given:
+        Map data = ["@graph": [["@id": "record"], ["@id": "thing", "heldBy": ["@id": "library"]]]]
+
+        expect:
+        DocumentPath.compile(path).get(data) == value
+
+        where:
+        path                               | value
+        ["@graph", 1, "heldBy", "@id"]     | "library"
+        ["@graph", 0, "@id"]               | "record"
+        ["@graph", 0, "heldBy", "@id"]     | null
+        ["@graph", 2, "@id"]               | null
+        ["@graph", "1", "@id"]             | null
+        ["@graph", 1, "@id", "x"]          | null
+    }
+
+    def "should create missing structure when setting value"() {
+        given:
+        Map data = [:]
+
+        when:
+        boolean result = DocumentPath.compile(["@graph", 1, "heldBy", "@id"]).set(data, "library")
+
+        then:
+        result
+        data == ["@graph": [[:], ["heldBy": ["@id": "library"]]]]
+    }
+
+    def "should not set value on conflicting structure"() {
+        given:
+        Map data = ["@graph": ["a": "b"]]
+
+        expect:
+        !DocumentPath.compile(["@graph", 1, "@id"]).set(data, "thing")
+        data == ["@graph": ["a": "b"]]
+    }
+
+}
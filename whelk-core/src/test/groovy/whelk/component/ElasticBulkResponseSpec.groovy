@@ -0,0 +1,57 @@
+package whelk.component
+
+import spock.lang.Specification
+
+class ElasticBulkResponseSpec extends Specification {
+
+    static final String FAILED = '''{"took":30,"errors":true,"items":[
+        {"index":{"_index":"test","_type":"bib","_id":"1","_version":1,"result":"created","status":201}},
+        {"index":{"_index":"test","_type":"bib","_id":"2","status":429,
+                  "error":{"type":"es_rejected_execution_exception","reason":"rejected"}}},
+        {"index":{"_index":"test","_type":"bib","_id":"3","_version":2,"result":"updated","status":200}},
+        {"index":{"_index":"test","_type":"bib","_id":"4","status":400,
+                  "error":{"type":"mapper_parsing_exception","reason":"failed to parse","caused_by":{"type":"x"}}}}]}'''
+
+    static final String DELETED = '''{"took":3,"errors":false,"items":[
+        {"delete":{"_index":"test","_type":"bib","_id":"1","found":true,"result":"deleted","status":200}},
+        {"delete":{"_index":"test","_type":"bib","_id":"2","found":false,"result":"not_found","status":404}}]}'''
+
+    static final String REJECTED = '''{"error":{"root_cause":[{"type":"illegal_argument_exception",
+        "reason":"The bulk request must be terminated by a newline [\\n]"}],"type":"illegal_argument_exception",
+        "reason":"The bulk request must be terminated by a newline [\\n]"},"status":400}'''
+
+    def "should keep only failed items"() {
+        when:
+        ElasticBulkResponse response = ElasticBulkResponse.parse(FAILED)
+
+        then:
+        response.took == 30
+        response.errors
+        response.failures*.position == [1, 3]
+        response.failures*.id == ["2", "4"]
+        response.failures*.status == [429, 400]
+        response.failures[1].error.reason == "failed to parse"
+        response.isSuccess(0)
+        !response.isSuccess(1)
+        response.isSuccess(2)
+        response.countFailures(429) == 1
+    }
+
+    def "should skip items without errors unless parsing all"() {
+        expect:
+        ElasticBulkResponse.parse(DELETED).failures.isEmpty()
+        ElasticBulkResponse.parseAll(DELETED).failures*.position == [1]
+        ElasticBulkResponse.parseAll(DELETED).failures*.status == [404]
+    }
+
+    def "should not count anything as a success in a rejected request"() {
+        when:
+        ElasticBulkResponse response = ElasticBulkResponse.parse(REJECTED)
+
+        then:
+        !response.isBulkResponse()
+        !response.isSuccess(0)
+        ElasticBulkResponse.parse(FAILED).isBulkResponse()
+        ElasticBulkResponse.parse(DELETED).isBulkResponse()
+    }
+}
@@ -0,0 +1,67 @@
+package whelk.component
+
+import spock.lang.Specification
+import whelk.Document
+import whelk.Whelk
+
+class ElasticBulkWriterSpec extends Specification {
+
+    ElasticSearch elastic = new ElasticSearch("localhost", "cluster", "index") {
+        @Override
+        Map getShapeForIndex(Document document, Whelk whelk, String collection) {
+            String id = document.getShortId()
+            return ["@id": "${id}#it".toString(), "name": "Name of ${id}"]
+        }
+    }
+
+    List<Document> docs = ["a1", "b2", "c3"].collect {
+        new Document(["@graph": [["@id": Document.BASE_URI.resolve(it).toString()], ["@id": "thing"]]])
+    }
+
+    def "should write action rows and shapes as NDJSON"() {
+        given:
+        ElasticBulkWriter writer = new ElasticBulkWriter(elastic, docs, "bib", null, null)
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+
+        when:
+        writer.writeBody(out)
+        List<String> lines = out.toString("UTF-8").split("\n")
+
+        then:
+        out.toString("UTF-8").endsWith("\n")
+        lines.size() == 6
+        lines[0] == '{"index":{"_index":"index","_type":"bib","_id":"a1"}}'
+        lines[1] == '{"@id":"a1#it","name":"Name of a1"}'
+        lines[5] == '{"@id":"c3#it","name":"Name of c3"}'
+        writer.writtenIds == ["a1", "b2", "c3"]
+    }
+
+    def "should leave out unchanged documents"() {
+        given:
+        ElasticBulkWriter first = new ElasticBulkWriter(elastic, docs, "bib", null, null)
+        first.writeBody(new ByteArrayOutputStream())
+        Map fingerprints = [first.writtenIds, first.writtenFingerprints].transpose().collectEntries()
+        fingerprints["b2"] = "something else"
+
+        when:
+        ElasticBulkWriter writer = new ElasticBulkWriter(elastic, docs, "bib", null, fingerprints)
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+        writer.writeBody(out)
+
+        then:
+        writer.hasChanges()
+        writer.writtenIds == ["b2"]
+        out.toString("UTF-8").split("\n").size() == 2
+    }
+
+    def "should have nothing to write when all documents are unchanged"() {
+        given:
+        ElasticBulkWriter first = new ElasticBulkWriter(elastic, docs, "bib", null, null)
+        first.writeBody(new ByteArrayOutputStream())
+        Map fingerprints = [first.writtenIds, first.writtenFingerprints].transpose().collectEntries()
+
+        expect:
+        !new ElasticBulkWriter(elastic, docs, "bib", null, fingerprints).hasChanges()
+        new ElasticBulkWriter(elastic, docs, "hold", null, fingerprints).hasChanges()
+    }
+}
@@ -0,0 +1,47 @@
+package whelk.component
+
+import spock.lang.Specification
+import whelk.exception.WhelkIndexException
+
+class ElasticConnectionPoolSpec extends Specification {
+
+    def "should spread leases over nodes"() {
+        given:
+        ElasticConnectionPool pool = new ElasticConnectionPool(["http://a:9200", "http://b:9200"], 2, 1000)
+
+        when:
+        List<ElasticConnectionPool.Lease> leases = (1..4).collect { pool.lease() }
+
+        then:
+        leases.collect { it.connection.m_properUrl.host }.countBy { it } == ["a": 2, "b": 2]
+    }
+
+    def "should time out when all connections are leased"() {
+        given:
+        ElasticConnectionPool pool = new ElasticConnectionPool(["http://a:9200"], 1, 100)
+        pool.lease()
+
+        when:
+        pool.lease()
+
+        then:
+        thrown(WhelkIndexException)
+    }
+
+    def "should reuse released connections unless discarded"() {
+        given:
+        ElasticConnectionPool pool = new ElasticConnectionPool(["http://a:9200"], 1, 1000)
+        ElasticConnectionPool.Lease first = pool.lease()
+
+        when:
+        pool.release(first)
+        ElasticConnectionPool.Lease second = pool.lease()
+        second.discard()
+        pool.release(second)
+        ElasticConnectionPool.Lease third = pool.lease()
+
+        then:
+        second.connection.is(first.connection)
+        !third.connection.is(first.connection)
+    }
+}
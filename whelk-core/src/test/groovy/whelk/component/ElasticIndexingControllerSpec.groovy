@@ -0,0 +1,65 @@
+package whelk.component
+
+import spock.lang.Specification
+
+class ElasticIndexingControllerSpec extends Specification {
+
+    def "should grow while requests are fast"() {
+        given:
+        ElasticIndexingController controller = new ElasticIndexingController(8)
+
+        when:
+        ElasticIndexingController.SUCCESSES_PER_CONCURRENCY_STEP.times { controller.onResponse(100, 0) }
+
+        then:
+        controller.getBatchSize() > ElasticIndexingController.INITIAL_BATCH_SIZE
+        controller.getMaxInFlight() == 5
+    }
+
+    def "should shrink batches when requests are slow"() {
+        given:
+        ElasticIndexingController controller = new ElasticIndexingController(8)
+
+        when:
+        controller.onResponse(ElasticIndexingController.TARGET_LATENCY_MS * 2, 0)
+
+        then:
+        controller.getBatchSize() == 750
+        controller.getMaxInFlight() == 4
+    }
+
+    def "should back off when throttled"() {
+        given:
+        ElasticIndexingController controller = new ElasticIndexingController(8)
+
+        when:
+        controller.onResponse(100, 3)
+        controller.onThrottled()
+        20.times { controller.onThrottled() }
+
+        then:
+        controller.getBatchSize() == ElasticIndexingController.MIN_BATCH_SIZE
+        controller.getMaxInFlight() == 1
+    }
+
+    def "should block when too many requests are in flight"() {
+        given:
+        ElasticIndexingController controller = new ElasticIndexingController(2)
+        controller.acquire()
+        boolean acquired = false
+        Thread thread = Thread.start {
+            controller.acquire()
+            acquired = true
+        }
+
+        when:
+        thread.join(200)
+        boolean blocked = !acquired
+        controller.release()
+        thread.join(1000)
+
+        then:
+        blocked
+        acquired
+    }
+}
@@ -0,0 +1,87 @@
+package whelk.component
+
+import spock.lang.Specification
+
+class ElasticSearchRemoveSpec extends Specification {
+
+    static final String DELETED = '''{"took":1,"errors":false,"items":[
+        {"delete":{"_index":"test","_type":"bib","_id":"1","result":"deleted","status":200}}]}'''
+
+    static final String NOT_FOUND = '''{"took":1,"errors":false,"items":[
+        {"delete":{"_index":"test","_type":"bib","_id":"1","result":"not_found","status":404}}]}'''
+
+    static final String REJECTED = '''{"took":1,"errors":true,"items":[
+        {"delete":{"_index":"test","_type":"bib","_id":"1","status":429,"error":{"type":"es_rejected_execution_exception"}}}]}'''
+
+    List<String> sent = []
+    List<String> paths = []
+    List<Tuple2<Integer, String>> responses = []
+
+    ElasticSearch elastic = new ElasticSearch("localhost", null, "test") {
+        @Override
+        Tuple2<Integer, String> performRequest(String method, String path, String body, String contentType0) {
+            sent.add(body)
+            paths.add(path)
+            return responses ? responses.remove(0) : new Tuple2<Integer, String>(200, DELETED)
+        }
+    }
+
+    def "should delete a single document before returning"() {
+        when:
+        elastic.remove("1", "bib")
+
+        then:
+        sent.size() == 1
+        sent[0].contains('"delete"')
+    }
+
+    def "should send queued deletes in one request when flushed"() {
+        when:
+        ["1", "2", "3"].each { elastic.queueRemove(it, "bib") }
+
+        then:
+        sent.isEmpty()
+
+        when:
+        elastic.close()
+
+        then:
+        sent.size() == 1
+        sent[0].readLines().size() == 3
+    }
+
+    def "should back off before retrying failed deletes"() {
+        given:
+        responses = [null, new Tuple2<Integer, String>(200, REJECTED)]
+
+        when:
+        long start = System.currentTimeMillis()
+        elastic.remove("1", "bib")
+
+        then:
+        sent.size() == 3
+        System.currentTimeMillis() - start >= ElasticSearch.BULK_RETRY_BACKOFF_MS * (1 + 2)
+    }
+
+    def "should take a delete of a missing document as done"() {
+        given:
+        responses = [new Tuple2<Integer, String>(200, NOT_FOUND)]
+
+        when:
+        elastic.remove("1", "bib")
+
+        then:
+        paths == ["/_bulk"]
+    }
+
+    def "should delete legacy identifiers by query"() {
+        given:
+        responses = [new Tuple2<Integer, String>(200, '{"deleted":1,"total":1}')]
+
+        when:
+        elastic.queueRemove("http://example.org/legacy/1", "bib")
+
+        then:
+        paths == ["/test/_delete_by_query?conflicts=proceed"]
+    }
+}
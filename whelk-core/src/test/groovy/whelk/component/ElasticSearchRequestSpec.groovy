@@ -0,0 +1,111 @@
+package whelk.component
+
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import spock.lang.Specification
+import whelk.Document
+import whelk.Whelk
+import whelk.exception.WhelkIndexException
+
+import java.nio.charset.StandardCharsets
+
+class ElasticSearchRequestSpec extends Specification {
+
+    static final String INDEXED = '''{"took":3,"errors":false,"items":[]}'''
+
+    HttpServer server
+    List<Tuple2<Integer, String>> responses = []
+    int requests = 0
+    int throttled = 0
+    ElasticSearch elastic
+
+    void setup() {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0)
+        server.createContext("/") { HttpExchange exchange ->
+            exchange.requestBody.bytes
+            Tuple2<Integer, String> response = responses ? responses.remove(0) : new Tuple2<Integer, String>(200, INDEXED)
+            requests++
+            byte[] body = response.second.getBytes(StandardCharsets.UTF_8)
+            exchange.responseHeaders.add("Content-Type", "application/json")
+            exchange.sendResponseHeaders(response.first, body.length)
+            exchange.responseBody.write(body)
+            exchange.close()
+        }
+        server.start()
+
+        elastic = new ElasticSearch("localhost:${server.address.port}", null, "test") {
+            @Override
+            Map getShapeForIndex(Document document, Whelk whelk, String collection) {
+                return ["@id": document.getShortId()]
+            }
+        }
+        elastic.indexingController = new ElasticIndexingController(4) {
+            @Override
+            synchronized void onThrottled() {
+                throttled++
+                super.onThrottled()
+            }
+        }
+    }
+
+    void cleanup() {
+        elastic.close()
+        server.stop(0)
+    }
+
+    def "should back off and retry a throttled bulk request"() {
+        given:
+        responses = [new Tuple2<Integer, String>(429, '{"error":"es_rejected_execution_exception"}')]
+
+        when:
+        Tuple2<Integer, String> response = elastic.performRequest('POST', '/_bulk', '{}\n', ElasticSearch.BULK_CONTENT_TYPE)
+
+        then:
+        response.first == 200
+        requests == 2
+        throttled == 1
+    }
+
+    def "should not report a throttled search to the indexing controller"() {
+        given:
+        responses = [new Tuple2<Integer, String>(429, '{"error":"es_rejected_execution_exception"}')]
+
+        when:
+        Tuple2<Integer, String> response = elastic.performRequest('POST', '/test/_search', '{}')
+
+        then:
+        response.first == 200
+        requests == 2
+        throttled == 0
+    }
+
+    def "should retry a bulk request rejected as a whole by an overloaded cluster"() {
+        given:
+        responses = [new Tuple2<Integer, String>(503, '{"error":"unavailable_shards_exception"}')]
+
+        when:
+        elastic.bulkIndex(docs(), "bib", null, false)
+
+        then:
+        requests == 2
+        throttled == 1
+    }
+
+    def "should fail a bulk request rejected for other reasons"() {
+        given:
+        responses = [new Tuple2<Integer, String>(400, '{"error":"illegal_argument_exception"}')]
+
+        when:
+        elastic.bulkIndex(docs(), "bib", null, false)
+
+        then:
+        thrown(WhelkIndexException)
+        requests == 1
+    }
+
+    private static List<Document> docs() {
+        return ["a1", "b2"].collect {
+            new Document(["@graph": [["@id": Document.BASE_URI.resolve(it).toString()], ["@id": "thing"]]])
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package whelk.converter.marc
+
+import se.kb.libris.util.marc.Datafield
+import se.kb.libris.util.marc.MarcRecord
+import se.kb.libris.util.marc.impl.ControlfieldImpl
+import se.kb.libris.util.marc.impl.DatafieldImpl
+import se.kb.libris.util.marc.impl.MarcRecordImpl
+import spock.lang.Specification
+import whelk.converter.JSONMarcConverter
+
+import javax.xml.stream.XMLOutputFactory
+import javax.xml.stream.XMLStreamWriter
+
+class JsonLD2MarcXMLConverterSpec extends Specification {
+
+    def "should write the same MARCXML as the DOM serialization"() {
+        given:
+        MarcRecord record = makeRecord(leader, "Title & <subtitle>")
+
+        expect:
+        parse(writeMarcXml(record)) == parse(JSONMarcConverter.marcRecordAsXMLString(record))
+
+        where:
+        leader << ["00000cam a2200000 a 4500", "00000cz  a2200000n  4500", "00000cx  a22000001  4500",
+                   "00000c   a2200000   4500"]
+    }
+
+    def "should leave out restricted characters"() {
+        given:
+        MarcRecord record = makeRecord("00000cam a2200000 a 4500", "a\u0002b\u001Fc\u0090d")
+
+        expect:
+        new XmlSlurper().parseText(writeMarcXml(record)).datafield.subfield.text() == "abcd"
+    }
+
+    private static MarcRecord makeRecord(String leader, String title) {
+        MarcRecord record = new MarcRecordImpl()
+        record.setLeader(leader)
+        record.addField(new ControlfieldImpl("001", "123"))
+        Datafield datafield = new DatafieldImpl("245")
+        datafield.setIndicator(0, '1' as char)
+        datafield.setIndicator(1, ' ' as char)
+        datafield.addSubfield('a' as char, title)
+        record.addField(datafield)
+        return record
+    }
+
+    private static String writeMarcXml(MarcRecord record) {
+        StringWriter stringWriter = new StringWriter()
+        XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(stringWriter)
+        JsonLD2MarcXMLConverter.writeMarcXml(record, writer)
+        writer.flush()
+        return stringWriter.toString()
+    }
+
+    private static String parse(String xml) {
+        // Normalized, so that character references and escaping don't matter
+        return groovy.xml.XmlUtil.serialize(new XmlParser().parseText(xml))
+    }
+}
@@ -0,0 +1,93 @@
+package whelk.util
+
+import org.codehaus.jackson.map.ObjectMapper
+import spock.lang.Specification
+
+class CopyOnWriteDataSpec extends Specification {
+
+    static Map sample() {
+        return ["@graph": [["@id": "record", "sameAs": [["@id": "alias"]]],
+                           ["@id": "thing", "hasTitle": [["mainTitle": "Title"]], "heldBy": ["@id": "library"]]]]
+    }
+
+    def "forked views should not see each others changes"() {
+        given:
+        Map original = sample()
+        Map a = CopyOnWriteData.fork(original)
+        Map b = CopyOnWriteData.fork(a)
+
+        when:
+        a["@graph"][1]["hasTitle"][0]["mainTitle"] = "Changed"
+        b["@graph"][0]["sameAs"] << ["@id": "other alias"]
+        b["@graph"][1].remove("heldBy")
+
+        then:
+        original == sample()
+        a["@graph"][1]["hasTitle"][0]["mainTitle"] == "Changed"
+        a["@graph"][0]["sameAs"] == [["@id": "alias"]]
+        a["@graph"][1]["heldBy"] == ["@id": "library"]
+        b["@graph"][1]["hasTitle"][0]["mainTitle"] == "Title"
+        b["@graph"][0]["sameAs"] == [["@id": "alias"], ["@id": "other alias"]]
+        !b["@graph"][1].containsKey("heldBy")
+    }
+
+    def "should only copy changed parts"() {
+        given:
+        Map original = sample()
+        Map view = CopyOnWriteData.fork(original)
+
+        when:
+        view["@graph"][0]["@id"] = "changed"
+
+        then:
+        ((CopyOnWriteData.View) view["@graph"][1]).currentNode().is(original["@graph"][1])
+        !((CopyOnWriteData.View) view["@graph"][0]).currentNode().is(original["@graph"][0])
+    }
+
+    def "should keep changes made through earlier views of the same node"() {
+        given:
+        Map view = CopyOnWriteData.fork(sample())
+        List sameAs1 = view["@graph"][0]["sameAs"]
+        List sameAs2 = view["@graph"][0]["sameAs"]
+
+        when:
+        sameAs1.add(["@id": "one"])
+        sameAs2.add(["@id": "two"])
+        view["@graph"][0]["sameAs"].each { it["checked"] = true }
+
+        then:
+        view["@graph"][0]["sameAs"] == [["@id": "alias", "checked": true],
+                                        ["@id": "one", "checked": true],
+                                        ["@id": "two", "checked": true]]
+    }
+
+    def "should serialize like plain data"() {
+        given:
+        Map view = CopyOnWriteData.fork(sample())
+        view["@graph"][1]["heldBy"]["@id"] = "other library"
+        ObjectMapper mapper = new ObjectMapper()
+        Map expected = sample()
+        expected["@graph"][1]["heldBy"]["@id"] = "other library"
+
+        expect:
+        mapper.readValue(mapper.writeValueAsString(view), Map) == expected
+        whelk.Document.deepCopy(view) == expected
+    }
+
+
+    def "should unwrap views nested in plain containers"() {
+        given:
+        Map original = sample()
+        Map view = CopyOnWriteData.fork(original)
+
+        when:
+        // Like JsonLd.toCard, copying entries (views) out of a view into new plain maps
+        view["@graph"] = view["@graph"].collect { Map thing -> new LinkedHashMap(thing) }
+        view["@graph"][1]["hasTitle"][0]["mainTitle"] = "Changed"
+
+        then:
+        original == sample()
+        !CopyOnWriteData.isView(((CopyOnWriteData.View) view).currentNode()["@graph"][1]["hasTitle"])
+        view["@graph"][1]["hasTitle"][0]["mainTitle"] == "Changed"
+    }
+}
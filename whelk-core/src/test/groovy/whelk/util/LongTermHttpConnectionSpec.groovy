@@ -0,0 +1,145 @@
+package whelk.util
+
+import spock.lang.Specification
+
+import java.nio.charset.Charset
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+
+class LongTermHttpConnectionSpec extends Specification {
+
+    static final Charset UTF8 = Charset.forName("UTF-8")
+
+    def "should send streamed body in chunks"() {
+        given:
+        ServerSocket server = new ServerSocket(0)
+        String received = null
+        String headers = null
+        Thread thread = Thread.start {
+            Socket socket = server.accept()
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()))
+            headers = readLine(input)
+            String line
+            while ((line = readLine(input)) != "")
+                headers += "\n" + line
+            ByteArrayOutputStream body = new ByteArrayOutputStream()
+            int size
+            while ((size = Integer.parseInt(readLine(input), 16)) != 0) {
+                byte[] chunk = new byte[size]
+                input.readFully(chunk)
+                body.write(chunk)
+                readLine(input)
+            }
+            readLine(input)
+            received = body.toString("UTF-8")
+            socket.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\n{}".getBytes(UTF8))
+            socket.getOutputStream().flush()
+            socket.close()
+        }
+        String row = '{"index":{"_id":"åäö"}}\n'
+        String expected = row * 5000
+        LongTermHttpConnection connection = new LongTermHttpConnection("http://localhost:" + server.getLocalPort())
+
+        when:
+        connection.sendRequest("/_bulk", "POST", "application/x-ndjson", { OutputStream out ->
+            5000.times { out.write(row.getBytes(UTF8)) }
+        } as LongTermHttpConnection.BodyWriter, null, null)
+        thread.join()
+        server.close()
+
+        then:
+        connection.getResponseCode() == 200
+        headers.contains("Transfer-Encoding: chunked")
+        !headers.contains("Content-Length")
+        received == expected
+    }
+
+    def "should gzip request body and decompress chunked gzipped response"() {
+        given:
+        ServerSocket server = new ServerSocket(0)
+        String received = null
+        String headers = null
+        String response = '{"hits":"åäö"}' * 1000
+        Thread thread = Thread.start {
+            Socket socket = server.accept()
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()))
+            headers = readLine(input)
+            String line
+            int length = 0
+            while ((line = readLine(input)) != "") {
+                headers += "\n" + line
+                if (line.startsWith("Content-Length:"))
+                    length = Integer.parseInt(line.substring("Content-Length:".length()).trim())
+            }
+            byte[] body = new byte[length]
+            input.readFully(body)
+            received = new GZIPInputStream(new ByteArrayInputStream(body)).getText("UTF-8")
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream()
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed)
+            gzip.write(response.getBytes(UTF8))
+            gzip.close()
+            byte[] bytes = compressed.toByteArray()
+            int half = bytes.length.intdiv(2)
+            OutputStream out = socket.getOutputStream()
+            out.write("HTTP/1.1 200 OK\r\nContent-Encoding: gzip\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes(UTF8))
+            out.write((Integer.toHexString(half) + "\r\n").getBytes(UTF8))
+            out.write(bytes, 0, half)
+            out.write(("\r\n" + Integer.toHexString(bytes.length - half) + "\r\n").getBytes(UTF8))
+            out.write(bytes, half, bytes.length - half)
+            out.write("\r\n0\r\n\r\n".getBytes(UTF8))
+            out.flush()
+            socket.close()
+        }
+        String request = '{"query":"åäö"}' * 1000
+        LongTermHttpConnection connection = new LongTermHttpConnection("http://localhost:" + server.getLocalPort(), true)
+
+        when:
+        connection.sendRequest("/_search", "POST", "application/json", request, null, null)
+        thread.join()
+        server.close()
+
+        then:
+        headers.contains("Content-Encoding: gzip")
+        headers.contains("Accept-Encoding: gzip")
+        received == request
+        connection.getResponseCode() == 200
+        connection.getResponseData() == response
+    }
+
+    def "should not compress small request bodies"() {
+        given:
+        ServerSocket server = new ServerSocket(0)
+        String headers = null
+        Thread thread = Thread.start {
+            Socket socket = server.accept()
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()))
+            headers = readLine(input)
+            String line
+            while ((line = readLine(input)) != "")
+                headers += "\n" + line
+            input.readFully(new byte[2])
+            socket.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\n{}".getBytes(UTF8))
+            socket.getOutputStream().flush()
+            socket.close()
+        }
+        LongTermHttpConnection connection = new LongTermHttpConnection("http://localhost:" + server.getLocalPort(), true)
+
+        when:
+        connection.sendRequest("/_search", "POST", "application/json", "{}", null, null)
+        thread.join()
+        server.close()
+
+        then:
+        !headers.contains("Content-Encoding")
+        connection.getResponseData() == "{}"
+    }
+
+    private static String readLine(DataInputStream input) {
+        ByteArrayOutputStream line = new ByteArrayOutputStream()
+        int b
+        while ((b = input.read()) != '\n')
+            line.write(b)
+        return line.toString("UTF-8").trim()
+    }
+}